@@ -0,0 +1,83 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * 基准测试共用的环境：临时目录中的数据库和上传目录，以及不经过网络的客户端连接。
+ */
+final class BenchSupport {
+    private BenchSupport() {} // Prevents instantiation
+
+    // 在临时目录中建库并把上传目录指向同一目录，必须在本JVM第一次使用 SqliteUtil 和 ServerConfig 之前调用
+    static Path openTempDatabase() throws IOException {
+        Path dir = Files.createTempDirectory("tcp-bench");
+        System.setProperty("sqlite.file", dir.resolve("messages.db").toString());
+        System.setProperty("server.upload_dir", dir.resolve("uploads").toString());
+        SqliteUtil.initDatabase();
+        return dir;
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // 像从网络读到一样处理一行文本：行的原始字节按文本协议的行编码生成
+    static void handleLine(ServerCore.ClientHandler handler, String line) throws IOException {
+        byte[] raw = line.getBytes(ServerCore.LINE_CHARSET);
+        handler.handleLine(line, raw, 0, raw.length);
+    }
+
+    // 未连接的套接字，只提供日志和聊天记录用到的对端地址
+    static Socket fakeSocket() {
+        return new Socket() {
+            @Override
+            public InetAddress getInetAddress() {
+                return InetAddress.getLoopbackAddress();
+            }
+        };
+    }
+
+    // 只统计字节数的客户端输出，代替真实连接
+    static final class CountingOutput implements ClientOutput {
+        long bytes;
+
+        @Override
+        public void send(ByteBuffer data) {
+            bytes += data.remaining();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void sendFile(ByteBuffer header, FileChannel file, long position, long count, boolean closeWhenDone)
+                throws IOException {
+            bytes += header.remaining() + count;
+            if (closeWhenDone) {
+                file.close();
+            }
+        }
+
+        @Override
+        public void offer(ByteBuffer data) {
+            bytes += data.remaining();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
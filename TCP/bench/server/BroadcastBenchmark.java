@@ -0,0 +1,52 @@
+package server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 一条服务器广播投递到 N 个连接的开销：编码一次、存入回放缓存、逐个放入各连接的发送队列。
+ * 连接的输出只计数，不经过网络。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"10", "100", "1000"})
+    int clients;
+
+    @Param({"false", "true"})
+    boolean binary;
+
+    private ServerCore core;
+
+    @Setup
+    public void setUp() throws IOException {
+        core = new ServerCore(new ServerConfig(ServerMode.BLOCKING));
+        for (int i = 0; i < clients; i++) {
+            ServerCore.ClientHandler handler =
+                    core.registerClient(BenchSupport.fakeSocket(), new BenchSupport.CountingOutput());
+            if (binary) {
+                BenchSupport.handleLine(handler, "VERSION_CHECK|v1.1|BINARY1");
+            }
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        core.broadcast("服务器公告：今晚 22:00 维护，预计持续 30 分钟");
+    }
+}
@@ -0,0 +1,67 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 聊天记录写入临时 SQLite 文件的吞吐量：每次提交一批记录给 AsyncLogWriter，
+ * 等写线程全部提交到数据库后结束，结果为每秒写入的记录数。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(ChatLogBenchmark.BATCH)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatLogBenchmark {
+    static final int BATCH = 1000;
+
+    @Param({"64", "1024"})
+    int messageLength;
+
+    private Path dir;
+    private AsyncLogWriter writer;
+    private String message;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchSupport.openTempDatabase();
+        writer = new AsyncLogWriter(error -> {});
+        writer.start();
+        message = "聊天".repeat(messageLength / 2);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        writer.close();
+        SqliteUtil.closeReaders();
+        BenchSupport.deleteTree(dir);
+    }
+
+    @Benchmark
+    public void insert() {
+        long target = writer.written() + BATCH;
+        for (int i = 0; i < BATCH; i++) {
+            writer.logChat("/127.0.0.1", message);
+        }
+        while (writer.written() < target) {
+            LockSupport.parkNanos(100_000);  // 不自旋，单核机器上也要让出 CPU 给写线程
+        }
+    }
+}
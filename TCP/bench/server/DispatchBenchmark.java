@@ -0,0 +1,77 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.Base64Util;
+
+/**
+ * 文本协议一行的解析和分发（ClientHandler.handleLine 中按前缀路由），包括解码、处理和回复编码，
+ * 回复写入不经过网络的输出。普通文本消息要经过全部前缀判断。
+ * 聊天记录交给丢弃记录的写入器，数据库写入由 ChatLogBenchmark 单独测量。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+    @Param({"text", "room", "version"})
+    String kind;
+
+    private Path dir;
+    private ServerCore core;
+    private ServerCore.ClientHandler handler;
+    private String line;
+    private byte[] raw;  // 这一行的原始字节，与从网络读到的一样
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchSupport.openTempDatabase();
+        core = new ServerCore(new ServerConfig(ServerMode.BLOCKING));
+        core.startStorage(new AsyncLogWriter(error -> {}) {
+            @Override
+            boolean logChat(String clientAddress, String room, String message) {
+                return true;
+            }
+        });
+        handler = core.registerClient(BenchSupport.fakeSocket(), new BenchSupport.CountingOutput());
+        BenchSupport.handleLine(handler, "ROOM_JOIN|bench");
+        String message = Base64Util.encode("基准测试消息 benchmark message 0123456789");
+        switch (kind) {
+            case "text":
+                line = message;
+                break;
+            case "room":
+                line = "ROOM_MSG|bench|" + message;
+                break;
+            default:
+                line = "VERSION_CHECK|v1.1";
+        }
+        raw = line.getBytes(ServerCore.LINE_CHARSET);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        core.shutdown();
+        BenchSupport.deleteTree(dir);
+    }
+
+    @Benchmark
+    public void handleLine() throws IOException {
+        handler.handleLine(line, raw, 0, raw.length);
+    }
+}
@@ -0,0 +1,81 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Base64Util 各接口在不同数据长度下的编解码耗时：返回新 String/byte[] 的便捷方法，
+ * 写入调用方缓冲区的方法，以及从协议行的字节中解码Base64部分（文本协议实际使用的方式）。48KB 为客户端上传的数据块大小。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64Benchmark {
+    @Param({"64", "1024", "49152"})
+    int size;
+
+    private byte[] data;
+    private String encoded;
+    private byte[] encodeBuffer;
+    private byte[] decodeBuffer;
+    private byte[] encodedBytes;
+    private byte[] line;  // 协议行：前缀之后是Base64数据
+
+    @Setup
+    public void setUp() {
+        data = new byte[size];
+        new Random(42).nextBytes(data);
+        encoded = Base64Util.encode(data);
+        encodeBuffer = new byte[Base64Util.encodedLength(size)];
+        decodeBuffer = new byte[size];
+        encodedBytes = encoded.getBytes(StandardCharsets.ISO_8859_1);
+        line = ("FILE_CHUNK|1|0|" + encoded).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Benchmark
+    public String encodeToString() {
+        return Base64Util.encode(data);
+    }
+
+    @Benchmark
+    public int encodeIntoBuffer() {
+        return Base64Util.encode(data, 0, data.length, encodeBuffer, 0);
+    }
+
+    @Benchmark
+    public byte[] decodeToArray() {
+        return Base64Util.decode(encoded);
+    }
+
+    @Benchmark
+    public int decodeIntoBuffer() {
+        return Base64Util.decode(encodedBytes, 0, encodedBytes.length, decodeBuffer, 0);
+    }
+
+    @Benchmark
+    public ByteBuffer decodeLineTail() {
+        int start = "FILE_CHUNK|1|0|".length();
+        return Base64Util.decode(line, start, line.length - start);
+    }
+
+    @Benchmark
+    public boolean validate() {
+        return Base64Util.isValidBase64(encoded);
+    }
+}
@@ -1,27 +1,54 @@
 package client;
 
-import util.Base64Util;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.HttpURLConnection;
-import java.net.Socket;
 import java.net.URL;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import util.FrameCompression;
+import util.HistoryEntry;
+import util.MessageConsole;
 
 public class ClientGUI {
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 54321;
     private static final AtomicBoolean isUpdating = new AtomicBoolean(false);
+    private static final int UPLOAD_CHUNK_SIZE = 48 * 1024;  // 分块上传每块字节数
+    private static final int OFFER_RETRIES = 60;      // 相同内容正在上传时的重试次数
+    private static final long OFFER_RETRY_MS = 1000;  // 重试间隔
+    private static final int SEEN_IDS = 1024;  // 用于去重的最近消息id个数
     private static final String UPDATE_URL = "https://foruda.gitee.com/attach_file/1750213823783078520/tcp.jar?token=6115a3726b1fd65705ac1a4dc8c289cd&ts=1750383762&attname=TCP.jar";
 
     private JFrame frame;
-    private JTextArea textArea;
+    private MessageConsole console;
     private JTextField inputField;
-    private PrintWriter out;
-    private Socket socket;
+    private ConnectionManager connections;  // 连接、断线重连和断线期间的待发消息
+    private boolean connectedOnce;  // 是否已经连接过，仅由连接线程访问
+    private volatile String currentRoom;  // 当前发言的房间，null 表示公共聊天
+    private final AtomicInteger uploadIds = new AtomicInteger();  // 分块上传ID
+    private final AtomicInteger downloadIds = new AtomicInteger();  // 文件下载请求ID
+    private final AtomicInteger historyIds = new AtomicInteger();   // 聊天记录查询请求ID
+    private volatile HistoryDialog historyDialog;  // 打开的聊天记录窗口
+    private final Map<String, Long> lastSeenIds = new ConcurrentHashMap<>();  // 房间（空字符串为服务器广播）-> 已收到的最大消息id，重连后从这里继续回放
+    // 最近收到的消息id，回放与在线消息重叠的部分只显示一次（仅由读取线程访问）
+    private final Set<Long> seenIds = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > SEEN_IDS;
+        }
+    });
 
     // 版本信息内部类
     private static class VersionInfo {
@@ -69,14 +96,9 @@ public class ClientGUI {
         mainPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
 
         // 消息显示区域
-        textArea = new JTextArea();
-        textArea.setEditable(false);
-        textArea.setFont(new Font("微软雅黑", Font.PLAIN, 12));
-        textArea.setBackground(new Color(255, 255, 255));
-        textArea.setMargin(new Insets(5, 5, 5, 5));
-        JScrollPane scrollPane = new JScrollPane(textArea);
-        scrollPane.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
-        mainPanel.add(scrollPane, BorderLayout.CENTER);
+        console = new MessageConsole(new Font("微软雅黑", Font.PLAIN, 12));
+        console.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        mainPanel.add(console, BorderLayout.CENTER);
 
         // 底部面板
         JPanel bottomPanel = new JPanel(new BorderLayout(10, 10));
@@ -95,17 +117,23 @@ public class ClientGUI {
         // 创建按钮
         JButton sendButton = createStyledButton("发送", new Color(70, 130, 180));
         JButton uploadButton = createStyledButton("上传文件", new Color(46, 139, 87));
+        JButton downloadButton = createStyledButton("下载文件", new Color(205, 133, 63));
+        JButton historyButton = createStyledButton("聊天记录", new Color(100, 149, 237));
         JButton updateButton = createStyledButton("检查更新", new Color(218, 112, 214));
 
         // 添加按钮事件监听
         sendButton.addActionListener(e -> sendMessage());
         uploadButton.addActionListener(e -> uploadFile());
+        downloadButton.addActionListener(e -> downloadFile());
+        historyButton.addActionListener(e -> openHistory());
         updateButton.addActionListener(e -> checkVersionWithServer());
         inputField.addActionListener(e -> sendMessage());
 
         // 添加按钮到面板
         buttonPanel.add(sendButton);
         buttonPanel.add(uploadButton);
+        buttonPanel.add(downloadButton);
+        buttonPanel.add(historyButton);
         buttonPanel.add(updateButton);
         bottomPanel.add(buttonPanel, BorderLayout.EAST);
 
@@ -137,63 +165,99 @@ public class ClientGUI {
         
         return button;
     }
-    //连接服务器
-    private void connectToServer() {
-        try {
-            socket = new Socket(SERVER_HOST, SERVER_PORT);
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            new Thread(() -> {
-                try (BufferedReader in = new BufferedReader(
-                        new InputStreamReader(socket.getInputStream()))) {
-                    String line;
-                    while ((line = in.readLine()) != null) {
-                        if (line.startsWith("NEED_UPDATE|") || line.equals("CURRENT_VERSION")) {
-                            handleServerResponse(line);
-                        } else {
-                            String decodedMessage = Base64Util.decodeToString(line);
-                            appendMessage("服务器: " + decodedMessage);
-                        }
-                    }
-                } catch (IOException e) {
-                    if (!isUpdating.get()) {
-                        appendMessage("服务器连接断开: " + e.getMessage());
-                        checkVersionWithServer(); // 连接断开时主动检查版本
-                        reconnectToServer();
-                    }
-                } finally {
-                    closeConnection();
-                }
-            }).start();
+    // 服务器消息回调
+    private final ServerConnection.Listener serverListener = new ServerConnection.Listener() {
+        public void onText(String text) {
+            appendMessage("服务器: " + text);
+        }
 
-            appendMessage("已连接到服务器 " + SERVER_HOST + ":" + SERVER_PORT);
-            // 连接成功后立即检查版本
-            checkVersionWithServer();
-        } catch (IOException e) {
-            appendMessage("连接服务器失败: " + e.getMessage());
+        public void onVersionResponse(String response) {
+            handleServerResponse(response);
         }
-    }
 
-    private void reconnectToServer() {
-        new Thread(() -> {
-            while (true) {
-                try {
-                    Thread.sleep(5000); // 5秒后重试
-                    socket = new Socket(SERVER_HOST, SERVER_PORT);
-                    out = new PrintWriter(socket.getOutputStream(), true);
-                    appendMessage("已重新连接到服务器");
-                    checkVersionWithServer(); // 重新连接后检查版本
-                    break;
-                } catch (Exception e) {
-                    appendMessage("重新连接服务器失败，5秒后重试...");
+        public void onRoomMessage(String room, String text) {
+            appendMessage("[" + room + "] " + text);
+        }
+
+        public void onChat(long id, String room, String text) {
+            if (!seenIds.add(id)) {
+                return;  // 已经显示过
+            }
+            lastSeenIds.merge(room, id, Math::max);
+            appendMessage(room.isEmpty() ? "服务器: " + text : "[" + room + "] " + text);
+        }
+
+        public void onDownloadFinished(String filename, Path path) {
+            appendMessage("文件 " + filename + " 下载完成: " + path.toAbsolutePath());
+        }
+
+        public void onDownloadFailed(String filename, String reason) {
+            appendMessage("下载文件 " + filename + " 失败: " + reason);
+        }
+
+        public void onHistory(int requestId, List<HistoryEntry> entries, long nextBeforeId) {
+            HistoryDialog dialog = historyDialog;
+            if (dialog != null) {
+                dialog.onPage(requestId, entries, nextBeforeId);
+            }
+        }
+    };
+
+    //连接服务器：连接线程负责连接、读取和断线重连
+    private void connectToServer() {
+        connections = new ConnectionManager(SERVER_HOST, SERVER_PORT, serverListener, new ConnectionManager.Session() {
+            public void opened(ServerConnection conn) throws IOException {
+                startSession(conn);
+            }
+
+            public void flushed(int count) {
+                appendMessage("已发送断线期间的 " + count + " 条消息");
+            }
+
+            public void lost(String reason, boolean connected, long delayMs) {
+                if (isUpdating.get()) {
+                    return;
                 }
+                String retry = String.format("，%.1f秒后重试", delayMs / 1000.0);
+                appendMessage((connected ? "服务器连接断开: " : "连接服务器失败: ") + reason + retry);
             }
-        }).start();
+        });
+        connections.start();
+    }
+
+    // 新连接和重连共用：握手，恢复房间并回放错过的消息，之后由连接线程发出待发消息并开始读取
+    private void startSession(ServerConnection conn) throws IOException {
+        appendMessage(connectedOnce ? "已重新连接到服务器" : "已连接到服务器 " + SERVER_HOST + ":" + SERVER_PORT);
+        connectedOnce = true;
+        // 连接成功后立即检查版本，同时协商传输协议
+        conn.handshake(VersionInfo.CURRENT_VERSION, serverListener);
+        String codec = conn.compressionName();
+        appendMessage(!conn.isBinary() ? "使用文本传输协议"
+                : codec != null ? "已启用二进制传输协议，压缩算法: " + codec : "已启用二进制传输协议");
+        resumeSession(conn);
+    }
+
+    // 服务器不保留断开连接的房间成员关系，重新加入当前房间；
+    // 再从服务器的最近消息缓存回放上次收到之后的广播和房间消息，首次连接时回放缓存中的全部消息
+    private void resumeSession(ServerConnection conn) throws IOException {
+        String room = currentRoom;
+        if (room != null) {
+            conn.joinRoom(room);
+        }
+        conn.requestReplay(lastSeenIds.getOrDefault("", 0L), "");
+        if (room != null) {
+            conn.requestReplay(lastSeenIds.getOrDefault(room, 0L), room);
+        }
     }
 
     private void checkVersionWithServer() {
-        if (out != null) {
-            out.println("VERSION_CHECK|" + VersionInfo.CURRENT_VERSION);
+        ServerConnection conn = connections.current();
+        if (conn != null) {
+            try {
+                conn.sendVersionCheck(VersionInfo.CURRENT_VERSION);
+            } catch (IOException e) {
+                appendMessage("版本检查失败: " + e.getMessage());
+            }
         }
     }
 
@@ -341,46 +405,164 @@ public class ClientGUI {
         }
     }
 
+    // 发送消息。/join 房间名 加入房间并在该房间发言，/leave 离开当前房间回到公共聊天。
+    // 断线时聊天消息进入待发队列，重连后按顺序发出；加入和离开房间只记录下来，重连时由 resumeSession 恢复
     private void sendMessage() {
         String rawMessage = inputField.getText().trim();
-        if (!rawMessage.isEmpty() && out != null) {
-            String encodedMessage = Base64Util.encode(rawMessage);
-            out.println(encodedMessage);
-            appendMessage("我: " + rawMessage);
+        if (rawMessage.isEmpty()) {
+            return;
+        }
+        ServerConnection conn = connections.current();
+        try {
+            String room = currentRoom;
+            if (rawMessage.startsWith("/join ")) {
+                String target = rawMessage.substring("/join ".length()).trim();
+                if (conn != null) {
+                    conn.joinRoom(target);
+                    conn.requestReplay(lastSeenIds.getOrDefault(target, 0L), target);  // 显示房间最近的消息
+                }
+                currentRoom = target;
+            } else if (rawMessage.equals("/leave")) {
+                if (room != null) {
+                    if (conn != null) {
+                        conn.leaveRoom(room);
+                    }
+                    currentRoom = null;
+                }
+            } else {
+                ConnectionManager.Delivery delivery = connections.send(room, rawMessage);
+                if (delivery == ConnectionManager.Delivery.FULL) {
+                    appendMessage("未连接到服务器，待发送的消息过多，本条消息没有发送");
+                    return;  // 保留输入框中的内容
+                }
+                String prefix = room != null ? "[" + room + "] 我: " : "我: ";
+                appendMessage(prefix + rawMessage + (delivery == ConnectionManager.Delivery.QUEUED ? "（连接恢复后发送）" : ""));
+            }
             inputField.setText("");
+        } catch (IOException e) {
+            appendMessage("发送失败: " + e.getMessage());
         }
     }
 
     private void uploadFile() {
         JFileChooser chooser = new JFileChooser();
         int ret = chooser.showOpenDialog(frame);
-        if (ret == JFileChooser.APPROVE_OPTION) {
+        ServerConnection conn = connections.current();
+        if (ret == JFileChooser.APPROVE_OPTION && conn != null) {
             File file = chooser.getSelectedFile();
-            try {
-                byte[] fileBytes = Files.readAllBytes(file.toPath());
-                String protocol = "FILE|" + file.getName() + "|" + Base64Util.encode(fileBytes);
-                out.println(protocol);
-                appendMessage("正在上传文件: " + file.getName() + " (" + fileBytes.length + "字节)");
-            } catch (IOException e) {
-                appendMessage("上传文件失败: " + e.getMessage());
-            }
+            new Thread(() -> streamFile(file, conn)).start();
         }
     }
 
-    private void appendMessage(String msg) {
-        SwingUtilities.invokeLater(() -> {
-            textArea.append(msg + "\n");
-            textArea.setCaretPosition(textArea.getDocument().getLength());
-        });
+    // 下载服务器上已上传的文件，保存位置旁有未完成的 .part 文件时自动续传
+    private void downloadFile() {
+        ServerConnection conn = connections.current();
+        if (conn == null) {
+            return;
+        }
+        String filename = JOptionPane.showInputDialog(frame, "请输入要下载的文件名:", "下载文件",
+                JOptionPane.PLAIN_MESSAGE);
+        if (filename == null || filename.trim().isEmpty()) {
+            return;
+        }
+        filename = filename.trim();
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File(filename));
+        if (chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        try {
+            conn.download(downloadIds.incrementAndGet(), filename, chooser.getSelectedFile().toPath());
+            appendMessage("正在下载文件: " + filename);
+        } catch (IOException e) {
+            appendMessage("下载文件失败: " + e.getMessage());
+        }
     }
 
-    private void closeConnection() {
-        try {
-            if (out != null) out.close();
-            if (socket != null) socket.close();
+    // 打开当前房间（或公共聊天）的聊天记录窗口
+    private void openHistory() {
+        HistoryDialog previous = historyDialog;
+        if (previous != null) {
+            previous.dispose();
+        }
+        String room = currentRoom;
+        HistoryDialog dialog = new HistoryDialog(frame, room != null ? room : "",
+                new Font("微软雅黑", Font.PLAIN, 12), (beforeId, target, keyword) -> {
+                    ServerConnection conn = connections.current();
+                    if (conn == null) {
+                        throw new IOException("未连接到服务器");
+                    }
+                    int id = historyIds.incrementAndGet();
+                    conn.requestHistory(id, beforeId, HistoryDialog.PAGE_SIZE, target, keyword);
+                    return id;
+                });
+        historyDialog = dialog;  // 先登记，再发出第一页查询
+        dialog.setVisible(true);
+        dialog.search();
+    }
+
+    // 分块上传：按固定大小从磁盘读取并逐块发送，内存占用与文件大小无关，
+    // 数据块之间可以穿插聊天消息
+    // 先计算文件的 SHA-256 提交给服务器，服务器已有相同内容时不发送数据；
+    // 有上次中断留下的部分时从服务器回复的偏移处续传
+    private void streamFile(File file, ServerConnection conn) {
+        int uploadId = uploadIds.incrementAndGet();
+        long size = file.length();
+        appendMessage("正在上传文件: " + file.getName() + " (" + size + "字节)");
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] buffer = new byte[UPLOAD_CHUNK_SIZE];
+            byte[] hash = sha256(in, buffer);
+            long offset = conn.offerFile(uploadId, size, hash, file.getName());
+            boolean compressible = FrameCompression.isCompressible(file.getName());  // 已压缩的文件类型不再压缩
+            for (int retry = 0; offset == -1 && retry < OFFER_RETRIES; retry++) {
+                if (retry == 0) {
+                    appendMessage("相同文件正在由其他客户端上传，等待完成...");
+                }
+                Thread.sleep(OFFER_RETRY_MS);
+                offset = conn.offerFile(uploadId, size, hash, file.getName());
+            }
+            if (offset < 0) {
+                if (offset == -1) {
+                    appendMessage("上传文件失败: 等待其他客户端上传超时");
+                }
+                return;  // 被拒绝的原因由服务器另行发送
+            }
+            if (offset >= size) {
+                return;  // 服务器已有相同内容
+            }
+            if (offset > 0) {
+                appendMessage("从 " + offset + " 字节处继续上传");
+            }
+            in.seek(offset);
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                conn.sendFileChunk(uploadId, offset, buffer, n, compressible);
+                offset += n;
+            }
+            conn.sendFileEnd(uploadId);
         } catch (IOException e) {
-            e.printStackTrace();
+            appendMessage("上传文件失败: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] sha256(RandomAccessFile in, byte[] buffer) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            digest.update(buffer, 0, n);
         }
+        return digest.digest();
+    }
+
+    private void appendMessage(String msg) {
+        console.append(msg);
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,185 @@
+package client;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 管理到服务器的连接。一个连接线程负责建立连接、恢复会话、读取直到断开，然后按指数退避加随机抖动等待后重连，
+ * 同一时刻只有一条连接和一个读取线程。断线期间（以及重连后恢复会话期间）发送的聊天消息进入有界的待发队列，
+ * 会话恢复后先按原顺序发出队列中的消息，之后的消息才直接发送，顺序不会被打乱。
+ * 参数可通过系统属性调整：client.reconnect_base_ms（首次重连的最长等待，默认1000）、
+ * client.reconnect_max_ms（最长等待，默认30000）、client.outbox（待发队列条数，默认200）。
+ */
+final class ConnectionManager {
+    private static final long BACKOFF_BASE_MS = Math.max(100, Long.getLong("client.reconnect_base_ms", 1000));
+    private static final long BACKOFF_MAX_MS = Math.max(BACKOFF_BASE_MS, Long.getLong("client.reconnect_max_ms", 30000));
+    private static final long BACKOFF_MIN_MS = 100;  // 两次连接之间至少间隔
+    private static final int OUTBOX_CAPACITY = Math.max(1, Integer.getInteger("client.outbox", 200));
+
+    // 一条聊天消息的发送结果
+    enum Delivery {
+        SENT,    // 已写到连接
+        QUEUED,  // 当前没有可用的连接，已放入待发队列
+        FULL     // 待发队列已满，消息没有发送
+    }
+
+    // 连接生命周期回调，由连接线程调用
+    interface Session {
+        // 新连接建立后、发出待发消息和开始读取之前调用：握手并恢复房间和回放；抛出异常视为这次连接失败
+        void opened(ServerConnection conn) throws IOException;
+
+        // 会话恢复后发出了断线期间的 count 条消息
+        void flushed(int count);
+
+        // 连接失败或断开，connected 表示之前已恢复会话，delayMs 毫秒后重试
+        void lost(String reason, boolean connected, long delayMs);
+    }
+
+    private final String host;
+    private final int port;
+    private final ServerConnection.Listener listener;
+    private final Session session;
+    private final ArrayDeque<Pending> outbox = new ArrayDeque<>();  // 待发消息（在 this 上同步访问）
+    private volatile ServerConnection connection;  // 已恢复会话、可以直接发送的连接，在 this 上同步修改
+    private volatile boolean closed;
+    private Thread thread;
+
+    ConnectionManager(String host, int port, ServerConnection.Listener listener, Session session) {
+        this.host = host;
+        this.port = port;
+        this.listener = listener;
+        this.session = session;
+    }
+
+    void start() {
+        thread = new Thread(this::run, "server-connection");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // 当前可用的连接，没有时返回 null
+    ServerConnection current() {
+        return connection;
+    }
+
+    // 发送一条聊天消息，room 为 null 表示公共聊天。待发队列不为空时排在队列之后，保持发送顺序
+    synchronized Delivery send(String room, String text) {
+        Pending message = new Pending(room, text);
+        ServerConnection conn = connection;
+        if (conn != null) {
+            try {
+                message.sendTo(conn);
+                return Delivery.SENT;
+            } catch (IOException e) {
+                // 连接已不可用：关闭它让连接线程立即发现断开并重连，这条消息进入待发队列
+                connection = null;
+                closeQuietly(conn);
+            }
+        }
+        if (outbox.size() >= OUTBOX_CAPACITY) {
+            return Delivery.FULL;
+        }
+        outbox.addLast(message);
+        return Delivery.QUEUED;
+    }
+
+    void close() {
+        closed = true;
+        ServerConnection conn;
+        synchronized (this) {
+            conn = connection;
+            connection = null;
+        }
+        closeQuietly(conn);
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void run() {
+        int failures = 0;
+        while (!closed) {
+            ServerConnection conn = null;
+            boolean connected = false;
+            String reason;
+            try {
+                conn = new ServerConnection(host, port);
+                session.opened(conn);
+                int flushed = flushOutbox(conn);
+                connected = true;
+                failures = 0;
+                if (flushed > 0) {
+                    session.flushed(flushed);
+                }
+                conn.readLoop(listener);
+                reason = "服务器关闭了连接";
+            } catch (IOException e) {
+                reason = e.getMessage() != null ? e.getMessage() : e.toString();
+            } finally {
+                synchronized (this) {
+                    if (connection == conn) {
+                        connection = null;
+                    }
+                }
+                closeQuietly(conn);
+            }
+            if (closed) {
+                return;
+            }
+            long delay = backoff(failures++);
+            session.lost(reason, connected, delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // 按顺序发出待发队列中的消息，然后把连接设为可用；发送失败的消息和之后的消息留在队列中
+    private synchronized int flushOutbox(ServerConnection conn) throws IOException {
+        int count = 0;
+        Pending message;
+        while ((message = outbox.peekFirst()) != null) {
+            message.sendTo(conn);
+            outbox.removeFirst();
+            count++;
+        }
+        connection = conn;
+        return count;
+    }
+
+    // 全抖动的指数退避：在 [0, min(上限, 基数·2^失败次数)] 内均匀取值，
+    // 服务器重启时大量客户端的重连分散到整个区间，不会同时涌入
+    private static long backoff(int failures) {
+        long ceiling = failures < 30 ? Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << failures) : BACKOFF_MAX_MS;
+        return BACKOFF_MIN_MS + ThreadLocalRandom.current().nextLong(ceiling);
+    }
+
+    private static void closeQuietly(ServerConnection conn) {
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private static final class Pending {
+        final String room;
+        final String text;
+
+        Pending(String room, String text) {
+            this.room = room;
+            this.text = text;
+        }
+
+        void sendTo(ServerConnection conn) throws IOException {
+            if (room != null) {
+                conn.sendRoomMessage(room, text);
+            } else {
+                conn.sendText(text);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package client;
+
+import util.ProtocolReader;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 一次文件下载的状态：数据先写入目标文件旁的 .part 临时文件，收齐后再改名。
+ * 下载中断后 .part 文件保留，再次下载同一目标时从它的当前大小续传。
+ */
+class FileDownload {
+    private final String filename;
+    private final Path target;
+    private final Path partFile;
+    private final FileChannel channel;
+    private final long startOffset;
+
+    private FileDownload(String filename, Path target, Path partFile, FileChannel channel, long startOffset) {
+        this.filename = filename;
+        this.target = target;
+        this.partFile = partFile;
+        this.channel = channel;
+        this.startOffset = startOffset;
+    }
+
+    // 打开（或续用）临时文件
+    static FileDownload open(String filename, Path target) throws IOException {
+        Path partFile = target.resolveSibling(target.getFileName() + ".part");
+        FileChannel channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        return new FileDownload(filename, target, partFile, channel, channel.size());
+    }
+
+    String filename() {
+        return filename;
+    }
+
+    // 续传的起始偏移，即临时文件中已有的字节数
+    long startOffset() {
+        return startOffset;
+    }
+
+    // 把读取器中接下来的 count 个字节写到 offset 处，写到文件末尾时返回 true
+    boolean write(ProtocolReader reader, long offset, long count, long total) throws IOException {
+        reader.copyTo(channel, offset, count);
+        return offset + count >= total;
+    }
+
+    // 下载完成：截掉多余内容后把临时文件改名为目标文件
+    Path finish(long total) throws IOException {
+        channel.truncate(total);
+        channel.close();
+        Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+
+    // 中止下载，保留临时文件以便续传
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+}
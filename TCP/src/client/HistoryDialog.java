@@ -0,0 +1,117 @@
+package client;
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.IOException;
+import java.util.List;
+import util.HistoryEntry;
+
+/**
+ * 聊天记录窗口：打开时加载最近的一页，可按关键词搜索，
+ * 滚动到列表底部时再向服务器请求更早的一页（键集分页，按上一页最后一条的 id 继续）。
+ */
+class HistoryDialog extends JDialog {
+    static final int PAGE_SIZE = 50;
+
+    // 向服务器发送一页查询，返回请求ID
+    interface PageLoader {
+        int request(long beforeId, String room, String keyword) throws IOException;
+    }
+
+    private final String room;  // 空字符串表示公共聊天
+    private final PageLoader loader;
+    private final JTextField searchField = new JTextField();
+    private final DefaultListModel<String> model = new DefaultListModel<>();
+    private final JList<String> list = new JList<>(model);
+    private final JScrollPane scrollPane = new JScrollPane(list);
+    private final JLabel statusLabel = new JLabel(" ");
+    // 以下字段只在事件调度线程中访问
+    private String keyword = "";
+    private int requestId = -1;      // 当前等待的请求，过期请求的结果被忽略
+    private long nextBeforeId;       // 下一页的起点，0 表示没有更早的记录
+    private boolean loading;
+
+    HistoryDialog(Frame owner, String room, Font font, PageLoader loader) {
+        super(owner, room.isEmpty() ? "聊天记录 - 公共聊天" : "聊天记录 - 房间 " + room, false);
+        this.room = room;
+        this.loader = loader;
+        setSize(600, 450);
+        setLocationRelativeTo(owner);
+
+        JPanel searchPanel = new JPanel(new BorderLayout(5, 5));
+        searchPanel.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        searchPanel.add(new JLabel("关键词:"), BorderLayout.WEST);
+        searchField.setFont(font);
+        searchPanel.add(searchField, BorderLayout.CENTER);
+        JButton searchButton = new JButton("搜索");
+        searchPanel.add(searchButton, BorderLayout.EAST);
+
+        list.setFont(font);
+        list.setFixedCellHeight(list.getFontMetrics(font).getHeight() + 2);
+        list.setFixedCellWidth(1);
+        scrollPane.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+        statusLabel.setBorder(BorderFactory.createEmptyBorder(2, 5, 2, 5));
+
+        getContentPane().add(searchPanel, BorderLayout.NORTH);
+        getContentPane().add(scrollPane, BorderLayout.CENTER);
+        getContentPane().add(statusLabel, BorderLayout.SOUTH);
+
+        searchButton.addActionListener(e -> search());
+        searchField.addActionListener(e -> search());
+        // 滚动到接近底部时加载更早的记录
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (!e.getValueIsAdjusting()) {
+                loadMoreIfNeeded();
+            }
+        });
+    }
+
+    // 按当前关键词从最新一条重新查询，窗口打开后由调用方调用一次加载最近的记录
+    void search() {
+        keyword = searchField.getText().trim();
+        model.clear();
+        nextBeforeId = 0;
+        load(0);
+    }
+
+    private void load(long beforeId) {
+        try {
+            requestId = loader.request(beforeId, room, keyword);
+            loading = true;
+            statusLabel.setText("正在加载...");
+        } catch (IOException e) {
+            loading = false;
+            statusLabel.setText("查询失败: " + e.getMessage());
+        }
+    }
+
+    private void loadMoreIfNeeded() {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        boolean nearBottom = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 5 * list.getFixedCellHeight();
+        if (nearBottom && !loading && nextBeforeId != 0) {
+            load(nextBeforeId);
+        }
+    }
+
+    // 由连接的读取线程调用
+    void onPage(int id, List<HistoryEntry> entries, long next) {
+        SwingUtilities.invokeLater(() -> {
+            if (id != requestId) {
+                return;  // 已被新的搜索取代
+            }
+            loading = false;
+            nextBeforeId = next;
+            for (HistoryEntry entry : entries) {
+                model.addElement(entry.timestamp + "  " + entry.clientAddress + ": " + entry.message);
+            }
+            if (model.isEmpty()) {
+                // 短关键词按窗口逐段扫描，一页可能为空但还有更早的记录
+                statusLabel.setText(next == 0 ? "没有找到记录" : "正在搜索更早的记录...");
+            } else {
+                statusLabel.setText("已加载 " + model.size() + " 条" + (next == 0 ? "，没有更早的记录" : ""));
+            }
+            // 本页不足以填满窗口时不会产生滚动事件，直接继续加载
+            SwingUtilities.invokeLater(this::loadMoreIfNeeded);
+        });
+    }
+}
@@ -0,0 +1,432 @@
+package client;
+
+import util.Base64Util;
+import util.BinaryProtocol;
+import util.FrameCompression;
+import util.HistoryEntry;
+import util.NetOptions;
+import util.ProtocolReader;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 与服务器的一条连接。连接后先用文本协议做版本检查握手，并声明支持二进制帧协议；
+ * 服务器回应同一标记时双方切换到二进制帧，否则（旧服务器）继续使用 Base64 文本行协议。
+ * 发送方法可被多个线程调用，每次发送的数据不会交错。
+ */
+class ServerConnection implements Closeable {
+    private static final Charset LINE_CHARSET = Charset.defaultCharset();  // 文本协议的行编码
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final int OFFER_TIMEOUT_MS = 30000;  // 等待服务器回复续传偏移的最长时间
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final ProtocolReader reader;
+    private volatile boolean binary;
+    private volatile FrameCompression compression;  // 握手时协商的压缩，未协商时为 null
+    private final Map<Integer, FileDownload> downloads = new ConcurrentHashMap<>();  // 进行中的下载
+    private final Map<Integer, CompletableFuture<Long>> offers = new ConcurrentHashMap<>();  // 等待续传偏移的上传
+    private final Map<Integer, List<HistoryEntry>> historyPages = new HashMap<>();  // 文本协议下正在接收的查询结果（仅由读取线程访问）
+    private byte[] chunkBase64;  // 文本协议数据块的Base64缓冲区，按需扩大（在 out 上同步访问）
+
+    // 服务器消息回调，由读取线程调用
+    interface Listener {
+        void onText(String text);               // 普通文本消息
+
+        void onVersionResponse(String response);  // 版本检查结果: NEED_UPDATE|版本|地址 或 CURRENT_VERSION
+
+        void onRoomMessage(String room, String text);  // 所加入房间中其他成员的消息（文本协议）
+
+        // 二进制协议下带消息id的房间消息或服务器广播（room 为空字符串），回放的消息也经由这里，可能与已收到的重复
+        void onChat(long id, String room, String text);
+
+        void onDownloadFinished(String filename, Path path);
+
+        void onDownloadFailed(String filename, String reason);
+
+        // 一页聊天记录（从新到旧），nextBeforeId 为 0 表示没有更早的记录
+        void onHistory(int requestId, List<HistoryEntry> entries, long nextBeforeId);
+    }
+
+    ServerConnection(String host, int port) throws IOException {
+        this.socket = new Socket();
+        NetOptions.apply(socket);  // 接收缓冲区需要在连接前设置
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        } catch (IOException e) {
+            socket.close();  // 重连时会反复失败，不遗留未关闭的套接字
+            throw e;
+        }
+        this.out = new BufferedOutputStream(socket.getOutputStream(), NetOptions.WRITE_BUFFER);
+        this.reader = new ProtocolReader(socket.getInputStream(), LINE_CHARSET);
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    // 协商的压缩算法名称，未启用压缩时返回 null
+    String compressionName() {
+        FrameCompression c = compression;
+        return c != null ? c.name() : null;
+    }
+
+    // 版本检查握手：发送版本号和协议标记，读取到版本检查结果为止，之前收到的消息交给 listener
+    void handshake(String version, Listener listener) throws IOException {
+        String codecs = FrameCompression.offered();
+        writeLine("VERSION_CHECK|" + version + "|" + BinaryProtocol.CAPABILITY + (codecs.isEmpty() ? "" : "|" + codecs));
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (isVersionResponse(line)) {
+                    // 结果|BINARY1[|选中的压缩算法]
+                    int marker = line.indexOf("|" + BinaryProtocol.CAPABILITY);
+                    if (marker >= 0) {
+                        String rest = line.substring(marker + 1 + BinaryProtocol.CAPABILITY.length());
+                        if (rest.startsWith("|")) {
+                            compression = FrameCompression.create(rest.substring(1));
+                        }
+                        line = line.substring(0, marker);
+                        binary = true;
+                        writeFrame(BinaryProtocol.heartbeat(BinaryProtocol.PING, 0));  // 表示会回复服务器的心跳
+                    }
+                    listener.onVersionResponse(line);
+                    return;
+                }
+                listener.onText(decodeText(line, 0));
+            }
+            throw new IOException("握手时服务器关闭了连接");
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    // 读取服务器消息直到连接关闭
+    void readLoop(Listener listener) throws IOException {
+        while (true) {
+            if (binary) {
+                int type = reader.readFrameHeader();
+                if (type < 0) {
+                    return;
+                }
+                if (type == BinaryProtocol.FILE_DATA) {
+                    // 文件数据不经过帧缓冲区，直接从读缓冲区写入磁盘
+                    int requestId = reader.readInt();
+                    long offset = reader.readLong();
+                    long total = reader.readLong();
+                    receiveFileData(requestId, offset, reader.frameLength() - BinaryProtocol.FILE_DATA_HEADER,
+                            total, listener);
+                    continue;
+                }
+                reader.readPayload();
+                ByteBuffer payload = reader.payload();
+                if ((type & BinaryProtocol.COMPRESSED) != 0) {
+                    if (compression == null) {
+                        throw new IOException("收到未协商的压缩帧");
+                    }
+                    payload = compression.decompress(payload);
+                    type &= ~BinaryProtocol.COMPRESSED & 0xff;
+                }
+                if (type == BinaryProtocol.PING) {
+                    writeFrame(BinaryProtocol.heartbeat(BinaryProtocol.PONG, payload.getLong()));
+                } else if (type == BinaryProtocol.VERSION_CHECK) {
+                    listener.onVersionResponse(BinaryProtocol.readText(payload));
+                } else if (type == BinaryProtocol.FILE_RESUME) {
+                    CompletableFuture<Long> offer = offers.remove(payload.getInt());
+                    if (offer != null) {
+                        offer.complete(payload.getLong());
+                    }
+                } else if (type == BinaryProtocol.ACK) {
+                    payload.getInt();  // 上传ID
+                    listener.onText(BinaryProtocol.readText(payload));
+                } else if (type == BinaryProtocol.MESSAGE) {
+                    listener.onText(BinaryProtocol.readText(payload));
+                } else if (type == BinaryProtocol.CHAT) {
+                    long id = payload.getLong();
+                    String room = BinaryProtocol.readRoom(payload);
+                    listener.onChat(id, room, BinaryProtocol.readText(payload));
+                } else if (type == BinaryProtocol.ROOM_MESSAGE) {
+                    String room = BinaryProtocol.readRoom(payload);
+                    listener.onRoomMessage(room, BinaryProtocol.readText(payload));
+                } else if (type == BinaryProtocol.FILE_ERROR) {
+                    int requestId = payload.getInt();
+                    failDownload(requestId, BinaryProtocol.readText(payload), listener);
+                } else if (type == BinaryProtocol.HISTORY_PAGE) {
+                    int requestId = payload.getInt();
+                    long nextBeforeId = payload.getLong();
+                    listener.onHistory(requestId, BinaryProtocol.readHistoryEntries(payload), nextBeforeId);
+                }
+            } else {
+                String line = reader.readLine();
+                if (line == null) {
+                    return;
+                }
+                if (isVersionResponse(line)) {
+                    listener.onVersionResponse(line);
+                } else if (line.startsWith("ROOM_MSG|")) {
+                    // ROOM_MSG|房间名|Base64文本
+                    int roomEnd = line.indexOf('|', "ROOM_MSG|".length());
+                    listener.onRoomMessage(line.substring("ROOM_MSG|".length(), roomEnd), decodeText(line, roomEnd + 1));
+                } else if (line.startsWith("FILE_DATA|")) {
+                    // FILE_DATA|请求ID|偏移|字节数|文件总大小，随后是原始字节
+                    String[] parts = line.split("\\|");
+                    receiveFileData(Integer.parseInt(parts[1]), Long.parseLong(parts[2]),
+                            Long.parseLong(parts[3]), Long.parseLong(parts[4]), listener);
+                } else if (line.startsWith("FILE_ERROR|")) {
+                    String[] parts = line.split("\\|", 3);
+                    failDownload(Integer.parseInt(parts[1]), parts[2], listener);
+                } else if (line.startsWith("HISTORY_ITEM|")) {
+                    // HISTORY_ITEM|请求ID|id|时间|地址|Base64消息
+                    String[] parts = line.split("\\|", 6);
+                    historyPages.computeIfAbsent(Integer.parseInt(parts[1]), id -> new ArrayList<>())
+                            .add(new HistoryEntry(Long.parseLong(parts[2]), parts[3], parts[4],
+                                    Base64Util.decodeToString(parts[5])));
+                } else if (line.startsWith("HISTORY_END|")) {
+                    // HISTORY_END|请求ID|下一页起始id
+                    String[] parts = line.split("\\|");
+                    List<HistoryEntry> entries = historyPages.remove(Integer.parseInt(parts[1]));
+                    listener.onHistory(Integer.parseInt(parts[1]), entries != null ? entries : List.of(),
+                            Long.parseLong(parts[2]));
+                } else {
+                    listener.onText(decodeText(line, 0));
+                }
+            }
+        }
+    }
+
+    void sendText(String text) throws IOException {
+        if (binary) {
+            writeFrame(BinaryProtocol.textFrame(BinaryProtocol.MESSAGE, text));
+        } else {
+            writeLine(Base64Util.encode(text));
+        }
+    }
+
+    void joinRoom(String room) throws IOException {
+        if (binary) {
+            writeFrame(BinaryProtocol.textFrame(BinaryProtocol.ROOM_JOIN, room));
+        } else {
+            writeLine("ROOM_JOIN|" + room);
+        }
+    }
+
+    void leaveRoom(String room) throws IOException {
+        if (binary) {
+            writeFrame(BinaryProtocol.textFrame(BinaryProtocol.ROOM_LEAVE, room));
+        } else {
+            writeLine("ROOM_LEAVE|" + room);
+        }
+    }
+
+    void sendRoomMessage(String room, String text) throws IOException {
+        if (binary) {
+            writeFrame(BinaryProtocol.roomMessage(room, text));
+        } else {
+            writeLine("ROOM_MSG|" + room + "|" + Base64Util.encode(text));
+        }
+    }
+
+    void sendVersionCheck(String version) throws IOException {
+        if (binary) {
+            writeFrame(BinaryProtocol.textFrame(BinaryProtocol.VERSION_CHECK, version));
+        } else {
+            writeLine("VERSION_CHECK|" + version);
+        }
+    }
+
+    // 按内容哈希提交上传并等待服务器回复续传偏移（需要读取线程在运行）：
+    // 返回文件大小表示服务器已有相同内容，-1 表示相同内容正在由其他连接上传，-2 表示被拒绝。
+    // 旧服务器不支持时直接开始一次普通的分块上传，返回 0
+    long offerFile(int uploadId, long size, byte[] sha256, String filename) throws IOException {
+        if (!binary) {
+            sendFileBegin(uploadId, size, filename);
+            return 0;
+        }
+        CompletableFuture<Long> reply = new CompletableFuture<>();
+        offers.put(uploadId, reply);
+        try {
+            writeFrame(BinaryProtocol.fileOffer(uploadId, size, sha256, filename));
+            return reply.get(OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("等待服务器响应超时");
+        } catch (ExecutionException e) {
+            throw new IOException("连接已关闭");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("上传被中断");
+        } finally {
+            offers.remove(uploadId);
+        }
+    }
+
+    void sendFileBegin(int uploadId, long size, String filename) throws IOException {
+        if (binary) {
+            writeFrame(BinaryProtocol.fileBegin(uploadId, size, filename));
+        } else {
+            writeLine("FILE_BEGIN|" + uploadId + "|" + size + "|" + filename);
+        }
+    }
+
+    // 发送一个数据块：二进制协议直接写原始字节（协商了压缩且 compressible 时压缩后发送），文本协议编码为Base64。
+    // 数据块不单独 flush，写缓冲区满时写出，其余部分随 FILE_END 或下一条消息一起写出
+    void sendFileChunk(int uploadId, long offset, byte[] data, int length, boolean compressible) throws IOException {
+        FrameCompression c = compression;
+        if (binary && c != null && compressible) {
+            ByteBuffer frame = c.compress(BinaryProtocol.fileChunk(uploadId, offset, data, length));
+            synchronized (out) {
+                out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            }
+            return;
+        }
+        synchronized (out) {
+            if (binary) {
+                BinaryProtocol.writeFileChunk(out, uploadId, offset, data, 0, length);
+            } else {
+                // Base64数据编码到复用的缓冲区后直接写出，不生成中间字符串
+                int size = Base64Util.encodedLength(length);
+                if (chunkBase64 == null || chunkBase64.length < size) {
+                    chunkBase64 = new byte[size];
+                }
+                Base64Util.encode(data, 0, length, chunkBase64, 0);
+                out.write(("FILE_CHUNK|" + uploadId + "|" + offset + "|").getBytes(LINE_CHARSET));
+                out.write(chunkBase64, 0, size);
+                out.write('\n');
+            }
+        }
+    }
+
+    void sendFileEnd(int uploadId) throws IOException {
+        if (binary) {
+            writeFrame(BinaryProtocol.fileEnd(uploadId));
+        } else {
+            writeLine("FILE_END|" + uploadId);
+        }
+    }
+
+    // 请求下载服务器上的文件，目标旁已有 .part 临时文件时从它的大小处续传
+    void download(int requestId, String filename, Path target) throws IOException {
+        FileDownload download = FileDownload.open(filename, target);
+        downloads.put(requestId, download);
+        long offset = download.startOffset();
+        try {
+            if (binary) {
+                writeFrame(BinaryProtocol.fileGet(requestId, offset, -1, filename));
+            } else {
+                writeLine("FILE_GET|" + requestId + "|" + offset + "|-1|" + filename);
+            }
+        } catch (IOException e) {
+            downloads.remove(requestId);
+            download.close();
+            throw e;
+        }
+    }
+
+    // 查询一页聊天记录，beforeId 为 0 时从最新一条开始；room 为空字符串表示公共聊天，keyword 为空表示不过滤
+    void requestHistory(int requestId, long beforeId, int limit, String room, String keyword) throws IOException {
+        if (binary) {
+            writeFrame(BinaryProtocol.history(requestId, beforeId, limit, room, keyword));
+        } else {
+            writeLine("HISTORY|" + requestId + "|" + beforeId + "|" + limit + "|" + room + "|"
+                    + Base64Util.encode(keyword));
+        }
+    }
+
+    // 请求回放服务器缓存中 sinceId 之后的消息，room 为空字符串表示服务器广播；文本协议不支持回放
+    void requestReplay(long sinceId, String room) throws IOException {
+        if (binary) {
+            writeFrame(BinaryProtocol.replay(sinceId, room));
+        }
+    }
+
+    private void receiveFileData(int requestId, long offset, long count, long total, Listener listener)
+            throws IOException {
+        FileDownload download = downloads.get(requestId);
+        if (download == null) {
+            reader.skip(count);  // 已取消或未知的下载
+            return;
+        }
+        if (download.write(reader, offset, count, total)) {
+            downloads.remove(requestId);
+            try {
+                listener.onDownloadFinished(download.filename(), download.finish(total));
+            } catch (IOException e) {
+                listener.onDownloadFailed(download.filename(), e.getMessage());
+            }
+        }
+    }
+
+    private void failDownload(int requestId, String reason, Listener listener) {
+        FileDownload download = downloads.remove(requestId);
+        if (download != null) {
+            download.close();
+            listener.onDownloadFailed(download.filename(), reason);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        FrameCompression c = compression;
+        if (c != null) {
+            c.close();
+        }
+        for (CompletableFuture<Long> offer : offers.values()) {
+            offer.completeExceptionally(new IOException("连接已关闭"));
+        }
+        // 未完成的下载保留临时文件，重新下载时续传
+        for (FileDownload download : downloads.values()) {
+            download.close();
+        }
+        downloads.clear();
+    }
+
+    // 解码刚读到的行中从第 start 个字符到行尾的Base64文本，直接读取行的原始字节，不截取子串
+    private String decodeText(String line, int start) {
+        byte[] raw = reader.lineBytes();
+        int length = reader.lineLength();
+        int offset = length == line.length() ? start : line.substring(0, start).getBytes(LINE_CHARSET).length;
+        return Base64Util.decodeToString(raw, offset, length - offset);
+    }
+
+    private static boolean isVersionResponse(String line) {
+        return line.startsWith("NEED_UPDATE|") || line.startsWith("CURRENT_VERSION");
+    }
+
+    private void writeLine(String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes(LINE_CHARSET);
+        synchronized (out) {
+            out.write(bytes);
+            out.flush();
+        }
+    }
+
+    private void writeFrame(ByteBuffer frame) throws IOException {
+        FrameCompression c = compression;
+        if (c != null) {
+            frame = c.compress(frame);
+        }
+        synchronized (out) {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            out.flush();
+        }
+    }
+}
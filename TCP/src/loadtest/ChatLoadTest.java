@@ -0,0 +1,386 @@
+package loadtest;
+
+import util.Base64Util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 端到端压测工具：不依赖 Swing，用虚拟线程打开大量连接，按文本协议以设定的速率混合发送文本消息、
+ * 整文件上传（FILE|）和版本检查（VERSION_CHECK|），用服务器的回复（"服务器已收到"、"文件…已接收并保存"、
+ * 版本检查结果）测量往返延迟，最后输出各类请求的吞吐量和 HdrHistogram 格式的延迟分布。
+ * 每个连接按固定时刻表发送，延迟从计划发送时刻算起，服务端变慢时不会因为客户端少发而低估延迟。
+ * 用法: java loadtest.ChatLoadTest [host] [port] [连接数] [秒数]
+ * 速率为全部连接合计的每秒请求数，通过系统属性设置：load.messages（默认1000）、load.uploads（默认10）、
+ * load.versions（默认10）；load.file_size 为上传文件的字节数（默认4096），load.warmup 为不计入统计的预热秒数（默认5），
+ * 设置 load.hgrm 时各类请求的延迟分布另存为 &lt;load.hgrm&gt;-message.hgrm 等文件。
+ */
+public class ChatLoadTest {
+    private static final int FILE_SIZE = Integer.getInteger("load.file_size", 4096);
+    private static final int WARMUP_SECONDS = Integer.getInteger("load.warmup", 5);
+    private static final String HGRM_PREFIX = System.getProperty("load.hgrm");
+    private static final int CONNECT_CONCURRENCY = 256;  // 同时进行中的连接数，避免超出服务端的 accept 队列
+    private static final long DRAIN_SECONDS = 10;        // 停止发送后等待未回复请求的最长时间
+    private static final String VERSION = "v1.1";
+    private static final String ECHO_PREFIX = "服务器已收到: ";
+
+    // 请求类型，各自统计发送数、完成数和延迟
+    private enum Kind {
+        MESSAGE("消息", "load.messages", 1000),
+        UPLOAD("上传", "load.uploads", 10),
+        VERSION("版本检查", "load.versions", 10);
+
+        final String label;
+        final double rate;
+        final LongAdder sent = new LongAdder();
+        final LongAdder completed = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder measured = new LongAdder();  // 预热结束后计划发送且已完成的请求数
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        Kind(String label, String property, double defaultRate) {
+            this.label = label;
+            this.rate = Double.parseDouble(System.getProperty(property, Double.toString(defaultRate)));
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int seconds;
+
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger connectFailed = new AtomicInteger();
+    private final LongAdder unexpected = new LongAdder();
+    private final Queue<Client> clients = new ConcurrentLinkedQueue<>();
+    private final CountDownLatch ready;
+    private final CountDownLatch go = new CountDownLatch(1);
+    private volatile long startNanos;
+    private volatile long measureStartNanos;
+    private volatile boolean running = true;
+
+    public ChatLoadTest(String host, int port, int connections, int seconds) {
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.seconds = seconds;
+        this.ready = new CountDownLatch(connections);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 54321;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+
+        new ChatLoadTest(host, port, connections, seconds).run();
+    }
+
+    public void run() throws InterruptedException {
+        System.out.printf("压测开始: %s:%d, 连接数=%d, 时长=%ds（另预热%ds）, 每秒消息=%.0f, 上传=%.0f（%d字节）, 版本检查=%.0f%n",
+                host, port, connections, seconds, WARMUP_SECONDS, Kind.MESSAGE.rate, Kind.UPLOAD.rate, FILE_SIZE,
+                Kind.VERSION.rate);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Semaphore connecting = new Semaphore(CONNECT_CONCURRENCY);
+            for (int i = 0; i < connections; i++) {
+                int id = i;
+                executor.execute(() -> runClient(id, connecting));
+            }
+            ready.await();
+            System.out.printf("已连接 %d 个，失败 %d 个%n", connected.get(), connectFailed.get());
+
+            startNanos = System.nanoTime();
+            measureStartNanos = startNanos + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+            go.countDown();
+
+            System.out.println("秒\t已连接\t消息/s\t上传/s\t版本检查/s\t失败\t未回复\t消息p99(ms)");
+            long[] last = new long[Kind.values().length];
+            for (int t = 1; t <= WARMUP_SECONDS + seconds; t++) {
+                LockSupport.parkNanos(startNanos + TimeUnit.SECONDS.toNanos(t) - System.nanoTime());
+                StringBuilder row = new StringBuilder().append(t <= WARMUP_SECONDS ? "预热" : "").append(t)
+                        .append('\t').append(connected.get());
+                long failures = 0;
+                for (Kind kind : Kind.values()) {
+                    long completed = kind.completed.sum();
+                    row.append('\t').append(completed - last[kind.ordinal()]);
+                    last[kind.ordinal()] = completed;
+                    failures += kind.failed.sum();
+                }
+                row.append('\t').append(failures).append('\t').append(outstanding())
+                        .append('\t').append(millis(Kind.MESSAGE.latency.valueAt(99)));
+                System.out.println(row);
+            }
+
+            running = false;
+            long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+            while (outstanding() > 0 && System.nanoTime() < drainDeadline) {
+                TimeUnit.MILLISECONDS.sleep(50);
+            }
+            long lost = outstanding();
+            for (Client client : clients) {
+                client.close();
+            }
+            report(lost);
+        }
+    }
+
+    private void report(long lost) {
+        System.out.printf("压测结束: 连接失败=%d, 未回复=%d, 无法对应请求的回复=%d%n",
+                connectFailed.get(), lost, unexpected.sum());
+        for (Kind kind : Kind.values()) {
+            LatencyHistogram h = kind.latency;
+            System.out.printf("%s: 发送=%d, 完成=%d, 失败=%d, 吞吐=%.1f/s, p50=%sms, p90=%sms, p99=%sms, p999=%sms, max=%sms%n",
+                    kind.label, kind.sent.sum(), kind.completed.sum(), kind.failed.sum(),
+                    (double) kind.measured.sum() / seconds, millis(h.valueAt(50)), millis(h.valueAt(90)),
+                    millis(h.valueAt(99)), millis(h.valueAt(99.9)), millis(h.max()));
+        }
+        for (Kind kind : Kind.values()) {
+            if (kind.latency.count() == 0) {
+                continue;
+            }
+            System.out.printf("%n%s延迟分布（毫秒）:%n", kind.label);
+            kind.latency.outputPercentileDistribution(System.out);
+            if (HGRM_PREFIX != null) {
+                String file = HGRM_PREFIX + "-" + kind.name().toLowerCase() + ".hgrm";
+                try (PrintStream out = new PrintStream(file, StandardCharsets.UTF_8)) {
+                    kind.latency.outputPercentileDistribution(out);
+                } catch (IOException e) {
+                    System.out.println("写入 " + file + " 失败: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private long outstanding() {
+        long total = 0;
+        for (Client client : clients) {
+            total += client.outstanding();
+        }
+        return total;
+    }
+
+    // 单个客户端：连接并完成版本检查后等待统一开始，然后按时刻表发送，另一个虚拟线程读取回复
+    private void runClient(int id, Semaphore connecting) {
+        Client client;
+        try {
+            connecting.acquire();
+            try {
+                client = Client.connect(host, port);
+            } finally {
+                connecting.release();
+            }
+        } catch (IOException e) {
+            connectFailed.incrementAndGet();
+            ready.countDown();
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ready.countDown();
+            return;
+        }
+        clients.add(client);
+        connected.incrementAndGet();
+        ready.countDown();
+
+        Thread.ofVirtual().start(() -> readReplies(client));
+        try {
+            go.await();
+            sendLoop(id, client);
+        } catch (IOException e) {
+            // 连接断开，由读取线程计数
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 按固定间隔发送，每次按速率比例随机选择请求类型；落后于时刻表时立即补发
+    private void sendLoop(int id, Client client) throws IOException {
+        double totalRate = 0;
+        for (Kind kind : Kind.values()) {
+            totalRate += kind.rate;
+        }
+        if (totalRate <= 0) {
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) * connections / totalRate);
+        long next = startNanos + random.nextLong(Math.max(1, interval));  // 各连接错开发送时刻
+        long end = measureStartNanos + TimeUnit.SECONDS.toNanos(seconds);
+        byte[] file = new byte[FILE_SIZE];
+        random.nextBytes(file);
+
+        for (long seq = 0; running && next < end; seq++, next += interval) {
+            long delay = next - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            double pick = random.nextDouble(totalRate);
+            Kind kind = pick < Kind.MESSAGE.rate ? Kind.MESSAGE
+                    : pick < Kind.MESSAGE.rate + Kind.UPLOAD.rate ? Kind.UPLOAD : Kind.VERSION;
+            String line = switch (kind) {
+                case MESSAGE -> Base64Util.encode("压测客户端" + id + " 消息" + seq);
+                case UPLOAD -> {
+                    // 每次上传的内容不同，避免服务端按内容去重后跳过写入
+                    for (int i = 0; i < Math.min(8, file.length); i++) {
+                        file[i] = (byte) ((((long) id << 32) | seq) >>> (i * 8));
+                    }
+                    yield "FILE|load-" + id + "-" + seq + ".bin|" + Base64Util.encode(file);
+                }
+                case VERSION -> "VERSION_CHECK|" + VERSION;
+            };
+            client.send(kind, next, line);
+        }
+    }
+
+    // 读取回复并按类型对应到最早的未回复请求；同一连接上服务端按收到的顺序回复
+    private void readReplies(Client client) {
+        try {
+            String line;
+            while ((line = client.in.readLine()) != null) {
+                long now = System.nanoTime();
+                Kind kind;
+                boolean ok = true;
+                if (line.startsWith("CURRENT_VERSION") || line.startsWith("NEED_UPDATE|")) {
+                    kind = Kind.VERSION;
+                } else {
+                    String text;
+                    try {
+                        text = Base64Util.decodeToString(line);
+                    } catch (IllegalArgumentException e) {
+                        unexpected.increment();
+                        continue;
+                    }
+                    if (text.startsWith(ECHO_PREFIX)) {
+                        kind = Kind.MESSAGE;
+                    } else if (text.startsWith("解码失败")) {
+                        kind = Kind.MESSAGE;
+                        ok = false;
+                    } else if (text.startsWith("文件 ") && text.endsWith(" 已接收并保存")) {
+                        kind = Kind.UPLOAD;
+                    } else if (text.startsWith("保存文件失败")) {
+                        kind = Kind.UPLOAD;
+                        ok = false;
+                    } else {
+                        unexpected.increment();  // 广播等不属于本连接请求的消息
+                        continue;
+                    }
+                }
+                long intended = client.complete(kind);
+                if (intended == Long.MIN_VALUE) {
+                    unexpected.increment();
+                    continue;
+                }
+                if (!ok) {
+                    kind.failed.increment();
+                    continue;
+                }
+                kind.completed.increment();
+                if (intended - measureStartNanos >= 0) {
+                    kind.latency.record(TimeUnit.NANOSECONDS.toMicros(now - intended));
+                    kind.measured.increment();
+                }
+            }
+        } catch (IOException ignored) {
+        } finally {
+            if (client.close()) {
+                connected.decrementAndGet();
+            }
+        }
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.3f", micros / 1000.0);
+    }
+
+    // 一个连接及其各类型未回复请求的计划发送时刻
+    private static final class Client {
+        final Socket socket;
+        final OutputStream out;
+        final BufferedReader in;
+        private final ArrayDeque<Long>[] pending;
+        private boolean closed;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Client(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.pending = new ArrayDeque[Kind.values().length];
+            for (int i = 0; i < pending.length; i++) {
+                pending[i] = new ArrayDeque<>();
+            }
+        }
+
+        // 连接并完成版本检查，不声明二进制协议，之后一直使用文本协议
+        static Client connect(String host, int port) throws IOException {
+            Socket socket = new Socket(host, port);
+            try {
+                socket.setTcpNoDelay(true);
+                Client client = new Client(socket);
+                client.out.write(("VERSION_CHECK|" + VERSION + "\n").getBytes(StandardCharsets.UTF_8));
+                client.out.flush();
+                if (client.in.readLine() == null) {
+                    throw new IOException("服务器关闭了连接");
+                }
+                return client;
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        // 先登记再发送，回复可能在 write 返回前到达
+        void send(Kind kind, long intended, String line) throws IOException {
+            synchronized (this) {
+                pending[kind.ordinal()].addLast(intended);
+            }
+            kind.sent.increment();
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        // 取出该类型最早的未回复请求的计划发送时刻，没有时返回 Long.MIN_VALUE
+        synchronized long complete(Kind kind) {
+            Long intended = pending[kind.ordinal()].pollFirst();
+            return intended != null ? intended : Long.MIN_VALUE;
+        }
+
+        synchronized long outstanding() {
+            long total = 0;
+            for (ArrayDeque<Long> queue : pending) {
+                total += queue.size();
+            }
+            return total;
+        }
+
+        // 关闭连接，返回是否为第一次关闭
+        synchronized boolean close() {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+            return true;
+        }
+    }
+}
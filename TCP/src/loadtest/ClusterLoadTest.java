@@ -0,0 +1,233 @@
+package loadtest;
+
+import util.BinaryProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 集群转发检查：在每个节点上各打开若干个二进制协议客户端，加入同一个房间后同时发送消息，
+ * 检查每个客户端是否恰好一次收到其他所有客户端的每条消息（不丢失、不重复），
+ * 不同消息的id是否各不相同（客户端按id去重，id相同的消息会被当作重复丢掉），
+ * 以及同一发送者的消息是否按发送顺序到达、同一节点分配的消息是否按id递增到达。发现问题时以状态码1退出。
+ * 用法: java loadtest.ClusterLoadTest [host:port,host:port,...] [每个节点的连接数] [每个连接的消息数]
+ * 各节点需要互相配置为集群对端（见 README 的集群一节）。
+ */
+public class ClusterLoadTest {
+    private static final String ROOM = "cluster-load-test";
+    private static final String VERSION = "v1.1";
+    private static final long SETTLE_MS = 1000;     // 全部加入房间后等待，确保房间成员已生效
+    private static final long DRAIN_SECONDS = 30;   // 发送结束后等待消息到齐的最长时间
+    private static final long NODE_MASK = (1 << 10) - 1;  // 消息id低10位为分配它的节点的标记
+
+    private final List<String> nodes;
+    private final int clientsPerNode;
+    private final int messages;
+    private final List<Client> clients = new ArrayList<>();
+
+    public ClusterLoadTest(List<String> nodes, int clientsPerNode, int messages) {
+        this.nodes = nodes;
+        this.clientsPerNode = clientsPerNode;
+        this.messages = messages;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String nodes = args.length > 0 ? args[0] : "localhost:54321,localhost:54322";
+        int clientsPerNode = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+
+        boolean passed = new ClusterLoadTest(List.of(nodes.split(",")), clientsPerNode, messages).run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    public boolean run() throws Exception {
+        System.out.printf("检查开始: 节点=%s, 每个节点的连接数=%d, 每个连接的消息数=%d%n", nodes, clientsPerNode, messages);
+        for (String node : nodes) {
+            int colon = node.lastIndexOf(':');
+            for (int i = 0; i < clientsPerNode; i++) {
+                clients.add(new Client(node + "#" + i, node.substring(0, colon),
+                        Integer.parseInt(node.substring(colon + 1))));
+            }
+        }
+        TimeUnit.MILLISECONDS.sleep(SETTLE_MS);
+
+        CountDownLatch go = new CountDownLatch(1);
+        try (ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Client client : clients) {
+                senders.execute(() -> client.sendAll(go));
+            }
+            go.countDown();
+        }
+
+        long expected = (long) (clients.size() - 1) * messages;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+        while (System.nanoTime() < deadline && clients.stream().anyMatch(c -> c.received() < expected)) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        for (Client client : clients) {
+            client.close();
+        }
+        return verify();
+    }
+
+    // 逐个客户端核对收到的消息
+    private boolean verify() {
+        long missing = 0;
+        long duplicates = 0;
+        long reordered = 0;
+        long collisions = 0;
+        Map<Long, String> textById = new HashMap<>();
+        for (Client receiver : clients) {
+            Map<String, Integer> lastSeq = new HashMap<>();   // 发送者 -> 已收到的最大序号
+            Map<Long, Long> lastId = new HashMap<>();         // 节点标记 -> 已收到的最大id
+            Map<String, Integer> counts = new HashMap<>();
+            for (Chat chat : receiver.chats()) {
+                String previous = textById.putIfAbsent(chat.id, chat.text);
+                if (previous != null && !previous.equals(chat.text)) {
+                    collisions++;
+                }
+                if (counts.merge(chat.text, 1, Integer::sum) > 1) {
+                    duplicates++;
+                    continue;
+                }
+                // 消息文本为 "地址: 发送者|序号"
+                String body = chat.text.substring(chat.text.indexOf(": ") + 2);
+                int bar = body.lastIndexOf('|');
+                String sender = body.substring(0, bar);
+                int seq = Integer.parseInt(body.substring(bar + 1));
+                long node = chat.id & NODE_MASK;
+                if (seq <= lastSeq.getOrDefault(sender, -1) || chat.id <= lastId.getOrDefault(node, Long.MIN_VALUE)) {
+                    reordered++;
+                }
+                lastSeq.merge(sender, seq, Math::max);
+                lastId.merge(node, chat.id, Math::max);
+            }
+            missing += (long) (clients.size() - 1) * messages - counts.size();
+        }
+        boolean passed = missing == 0 && duplicates == 0 && reordered == 0 && collisions == 0;
+        System.out.printf("检查结束: 丢失=%d, 重复=%d, 乱序=%d, id冲突=%d, 结果=%s%n",
+                missing, duplicates, reordered, collisions, passed ? "通过" : "失败");
+        return passed;
+    }
+
+    // 收到的一条 CHAT 帧
+    private static final class Chat {
+        final long id;
+        final String text;
+
+        Chat(long id, String text) {
+            this.id = id;
+            this.text = text;
+        }
+    }
+
+    // 单个二进制协议客户端：连接后加入房间，由一个虚拟线程读取 CHAT 帧
+    private final class Client {
+        private final String name;
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final List<Chat> chats = new ArrayList<>();
+
+        Client(String name, String host, int port) throws IOException {
+            this.name = name;
+            this.socket = new Socket(host, port);
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.write(("VERSION_CHECK|" + VERSION + "|" + BinaryProtocol.CAPABILITY + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String response = readLine(in);
+            if (!response.contains(BinaryProtocol.CAPABILITY)) {
+                throw new IOException(name + " 未能协商二进制协议: " + response);
+            }
+            write(BinaryProtocol.textFrame(BinaryProtocol.ROOM_JOIN, ROOM));
+            Thread.ofVirtual().start(() -> readChats(in));
+        }
+
+        void sendAll(CountDownLatch go) {
+            try {
+                go.await();
+                for (int seq = 0; seq < messages; seq++) {
+                    write(BinaryProtocol.roomMessage(ROOM, name + "|" + seq));
+                }
+            } catch (IOException e) {
+                System.out.println(name + " 发送失败: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void readChats(DataInputStream in) {
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    byte[] payload = new byte[in.readInt()];
+                    in.readFully(payload);
+                    if (type == BinaryProtocol.CHAT) {
+                        ByteBuffer buffer = ByteBuffer.wrap(payload);
+                        long id = buffer.getLong();
+                        BinaryProtocol.readRoom(buffer);
+                        Chat chat = new Chat(id, BinaryProtocol.readText(buffer));
+                        synchronized (chats) {
+                            chats.add(chat);
+                        }
+                    } else if (type == BinaryProtocol.PING) {
+                        write(BinaryProtocol.heartbeat(BinaryProtocol.PONG, ByteBuffer.wrap(payload).getLong()));
+                    }
+                }
+            } catch (IOException ignored) {
+                // 连接关闭
+            }
+        }
+
+        private synchronized void write(ByteBuffer frame) throws IOException {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            out.flush();
+        }
+
+        int received() {
+            synchronized (chats) {
+                return chats.size();
+            }
+        }
+
+        List<Chat> chats() {
+            synchronized (chats) {
+                return new ArrayList<>(chats);
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+
+        private static String readLine(DataInputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new IOException("连接已关闭");
+                }
+                line.write(b);
+            }
+            return line.toString(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package loadtest;
+
+import util.Base64Util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 连接数压测工具：用虚拟线程打开大量并发客户端连接，比较服务端各IO模式的连接承载能力。
+ * 用法: java loadtest.ConnectionLoadTest [host] [port] [连接数] [idle|chatty] [秒数] [服务端PID]
+ * 指定服务端PID时（仅Linux），每秒从 /proc/&lt;pid&gt;/status 采样服务端的常驻内存和线程数。
+ */
+public class ConnectionLoadTest {
+    private static final long CHAT_INTERVAL_MS = 1000;  // chatty模式下每个客户端的发送间隔
+    private static final int CONNECT_CONCURRENCY = 256;  // 同时进行中的连接数，避免超出服务端的 accept 队列
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final boolean chatty;
+    private final int seconds;
+    private final Path serverStatus;
+
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final Queue<Socket> sockets = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    public ConnectionLoadTest(String host, int port, int connections, boolean chatty, int seconds, String serverPid) {
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.chatty = chatty;
+        this.seconds = seconds;
+        this.serverStatus = serverPid == null ? null : Paths.get("/proc", serverPid, "status");
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 54321;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        boolean chatty = args.length > 3 && args[3].equalsIgnoreCase("chatty");
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 30;
+        String serverPid = args.length > 5 ? args[5] : null;
+
+        new ConnectionLoadTest(host, port, connections, chatty, seconds, serverPid).run();
+    }
+
+    public void run() throws InterruptedException {
+        System.out.printf("压测开始: %s:%d, 连接数=%d, 模式=%s, 时长=%ds%n",
+                host, port, connections, chatty ? "chatty" : "idle", seconds);
+
+        long peakRss = -1;
+        long peakThreads = -1;
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            Semaphore connecting = new Semaphore(CONNECT_CONCURRENCY);
+            for (int i = 0; i < connections; i++) {
+                int id = i;
+                clients.execute(() -> runClient(id, connecting));
+            }
+
+            System.out.println("秒\t已连接\t失败\t已发送\t已接收\t服务端RSS(MB)\t服务端线程");
+            for (int t = 1; t <= seconds; t++) {
+                TimeUnit.SECONDS.sleep(1);
+                long[] server = sampleServer();
+                peakRss = Math.max(peakRss, server[0]);
+                peakThreads = Math.max(peakThreads, server[1]);
+                System.out.printf("%d\t%d\t%d\t%d\t%d\t%s\t%s%n", t, connected.get(), failed.get(),
+                        sent.sum(), received.sum(), toMegabytes(server[0]), format(server[1]));
+            }
+
+            running = false;
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
+        }
+
+        System.out.printf("压测结束: 成功连接=%d, 失败=%d, 发送=%d, 接收=%d, 服务端峰值RSS=%sMB, 服务端峰值线程=%s%n",
+                connections - failed.get(), failed.get(), sent.sum(), received.sum(),
+                toMegabytes(peakRss), format(peakThreads));
+    }
+
+    // 单个客户端：连接后读取服务端消息，chatty模式下定时发送文本消息
+    private void runClient(int id, Semaphore connecting) {
+        boolean opened = false;
+        try (Socket socket = connect(connecting)) {
+            sockets.add(socket);
+            connected.incrementAndGet();
+            opened = true;
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+            if (chatty) {
+                Thread.ofVirtual().start(() -> {
+                    try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+                        while (in.readLine() != null) {
+                            received.increment();
+                        }
+                    } catch (IOException ignored) {}
+                });
+                long seq = 0;
+                while (running && !out.checkError()) {
+                    out.println(Base64Util.encode("压测客户端" + id + " 消息" + seq++));
+                    sent.increment();
+                    Thread.sleep(CHAT_INTERVAL_MS);
+                }
+            } else {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                while (in.readLine() != null) {
+                    received.increment();
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                failed.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (opened) {
+                connected.decrementAndGet();
+            }
+        }
+    }
+
+    private Socket connect(Semaphore connecting) throws IOException, InterruptedException {
+        connecting.acquire();
+        try {
+            return new Socket(host, port);
+        } finally {
+            connecting.release();
+        }
+    }
+
+    // 读取服务端进程的常驻内存(KB)和线程数，无法读取时返回 -1
+    private long[] sampleServer() {
+        long[] result = {-1, -1};
+        if (serverStatus == null) {
+            return result;
+        }
+        try {
+            List<String> lines = Files.readAllLines(serverStatus);
+            for (String line : lines) {
+                if (line.startsWith("VmRSS:")) {
+                    result[0] = Long.parseLong(line.replaceAll("\\D", ""));
+                } else if (line.startsWith("Threads:")) {
+                    result[1] = Long.parseLong(line.replaceAll("\\D", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {}
+        return result;
+    }
+
+    private static String toMegabytes(long kilobytes) {
+        return kilobytes < 0 ? "-" : Long.toString(kilobytes / 1024);
+    }
+
+    private static String format(long value) {
+        return value < 0 ? "-" : Long.toString(value);
+    }
+}
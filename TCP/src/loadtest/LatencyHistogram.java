@@ -0,0 +1,125 @@
+package loadtest;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 延迟直方图，按 HdrHistogram 的思路分桶：每个2的幂区间再等分为 SUB_BUCKETS 个子桶，
+ * 相对误差不超过 1/SUB_BUCKETS，内存固定，记录时只做一次原子加，可由大量线程并发记录。
+ * 数值单位为微秒，输出时换算为毫秒，格式与 HdrHistogram 的 outputPercentileDistribution 相同，
+ * 可直接用 HdrHistogram 的绘图工具查看。
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 10;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;       // 每个2的幂区间的子桶数
+    private static final int HALF = SUB_BUCKETS >> 1;
+    private static final long MAX_VALUE = 1L << 36;              // 约19小时（微秒），更大的值按最大值记录
+    private static final int TICKS_PER_HALF_DISTANCE = 5;        // 与 HdrHistogram 默认的输出密度相同
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long micros) {
+        long value = Math.max(0, Math.min(micros, MAX_VALUE));
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    long count() {
+        return total.get();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    double mean() {
+        long n = total.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    // 不小于 percentile% 的记录值所在子桶的上界（微秒）
+    long valueAt(double percentile) {
+        long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    double stdDeviation() {
+        long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        double mean = mean();
+        double squares = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long c = counts.get(i);
+            if (c > 0) {
+                double d = (lowestEquivalent(i) + highestEquivalent(i)) / 2.0 - mean;
+                squares += d * d * c;
+            }
+        }
+        return Math.sqrt(squares / n);
+    }
+
+    // HdrHistogram 的百分位分布格式，数值单位为毫秒
+    void outputPercentileDistribution(PrintStream out) {
+        out.printf("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+        long n = total.get();
+        if (n > 0) {
+            long seen = 0;
+            double percentile = 0;
+            int index = 0;
+            while (true) {
+                long target = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+                while (seen < target) {
+                    seen += counts.get(index++);
+                }
+                long value = Math.min(highestEquivalent(index - 1), max.get());
+                if (seen == n) {
+                    out.printf("%12.3f %2.12f %10d%n", value / 1000.0, 1.0, seen);
+                    break;
+                }
+                out.printf("%12.3f %2.12f %10d %14.2f%n", value / 1000.0, percentile / 100, seen,
+                        1 / (1 - percentile / 100));
+                // 与 HdrHistogram 相同：越接近100%，两行之间的百分位间隔越小
+                long halfDistance = 1L << ((int) (Math.log(100 / (100 - percentile)) / Math.log(2)) + 1);
+                percentile += 100.0 / (TICKS_PER_HALF_DISTANCE * halfDistance);
+            }
+        }
+        out.printf("#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", mean() / 1000, stdDeviation() / 1000);
+        out.printf("#[Max     = %12.3f, Total count    = %12d]%n", max.get() / 1000.0, n);
+        out.printf("#[Buckets = %12d, SubBuckets     = %12d]%n", counts.length() / HALF - 1, SUB_BUCKETS);
+    }
+
+    // 小于 SUB_BUCKETS 的值各占一个桶，之后每个2的幂区间 HALF 个桶
+    private static int indexOf(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+        return (shift << (SUB_BITS - 1)) + (int) (value >>> shift);
+    }
+
+    private static long lowestEquivalent(int index) {
+        int shift = Math.max(0, (index >> (SUB_BITS - 1)) - 1);
+        return (long) (index - (shift << (SUB_BITS - 1))) << shift;
+    }
+
+    private static long highestEquivalent(int index) {
+        int shift = Math.max(0, (index >> (SUB_BITS - 1)) - 1);
+        return ((long) (index - (shift << (SUB_BITS - 1)) + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,293 @@
+package server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 聊天记录和文件记录的异步批量写入器（write-behind）。
+ * 网络线程只把记录放进有界队列；单个写线程持有一个长期连接，
+ * 按条数或时间窗口把多条 INSERT 合并到一个事务里提交，网络线程不接触 JDBC。
+ * 队列满时提交方最多阻塞 OFFER_TIMEOUT_MS（背压），仍然放不进去则丢弃并计数。
+ * 积压少于一批时，写线程顺带把尚未建索引的聊天记录补充到全文索引，每次最多 INDEX_BATCH_SIZE 条；
+ * 写入繁忙时索引暂缓，搜索结果可能短暂落后于最新消息，但不会拖慢聊天记录的写入。
+ */
+class AsyncLogWriter {
+    private static final int QUEUE_CAPACITY = 65536;     // 队列容量
+    private static final int BATCH_SIZE = 2000;          // 单个事务最多写入的记录数
+    private static final long BATCH_WINDOW_MS = 50;      // 收集一批记录的最长等待时间
+    private static final long OFFER_TIMEOUT_MS = 100;    // 队列满时提交方的最长等待时间
+    private static final long CLOSE_TIMEOUT_MS = 10000;  // 关闭时等待队列写完的最长时间
+    private static final int INDEX_BATCH_SIZE = 1000;    // 一个事务中最多补建索引的聊天记录数
+
+    private static final String INSERT_CHAT_LOG =
+            "INSERT INTO chat_logs(client_address, message, timestamp, room) VALUES(?, ?, ?, ?);";
+    private static final String INSERT_FILE_LOG =
+            "INSERT INTO file_logs(client_address, filename, file_path, timestamp, sha256, size) VALUES(?, ?, ?, ?, ?, ?);";
+    private static final String SELECT_INDEXED_ID = "SELECT last_id FROM chat_logs_fts_state WHERE id = 0;";
+    private static final String SELECT_INDEX_END =
+            "SELECT max(id) FROM (SELECT id FROM chat_logs WHERE id > ? ORDER BY id LIMIT ?);";
+    private static final String INSERT_FTS =
+            "INSERT INTO chat_logs_fts(rowid, message) SELECT id, message FROM chat_logs WHERE id > ? AND id <= ?;";
+    private static final String UPDATE_INDEXED_ID = "UPDATE chat_logs_fts_state SET last_id = ? WHERE id = 0;";
+    // 与表默认值 CURRENT_TIMESTAMP 相同的格式（UTC）
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+
+    private final BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Consumer<String> errorSink;  // 错误信息输出（服务器消息面板）
+    private final Thread thread;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final DurationHistogram insertLatency = new DurationHistogram();  // 每批记录的插入和提交耗时
+    private volatile boolean running = true;
+    private long indexedId = -1;  // 已建全文索引的最大 id，-1 表示尚未从数据库读取（仅由写线程访问）
+
+    AsyncLogWriter(Consumer<String> errorSink) {
+        this.errorSink = errorSink;
+        this.thread = new Thread(this::run, "log-writer");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // 提交一条聊天记录，返回 false 表示队列已满被丢弃
+    boolean logChat(String clientAddress, String message) {
+        return logChat(clientAddress, null, message);
+    }
+
+    // 提交一条房间聊天记录，room 为 null 时为公共聊天
+    boolean logChat(String clientAddress, String room, String message) {
+        return submit(new LogRecord(clientAddress, message, null, null, room, null, 0));
+    }
+
+    // 提交一条文件记录（文件名到内容哈希的映射），返回 false 表示队列已满被丢弃
+    boolean logFile(String clientAddress, String filename, String filePath, String sha256, long size) {
+        return submit(new LogRecord(clientAddress, null, filename, filePath, null, sha256, size));
+    }
+
+    // 队列中等待写入的记录数
+    int pending() {
+        return queue.size();
+    }
+
+    long written() {
+        return written.sum();
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    DurationHistogram insertLatency() {
+        return insertLatency;
+    }
+
+    // 停止接收新记录，把队列中剩余记录写入数据库后返回
+    void close() {
+        running = false;
+        try {
+            thread.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!queue.isEmpty()) {
+            errorSink.accept("关闭时仍有 " + queue.size() + " 条记录未写入数据库");
+        }
+    }
+
+    private boolean submit(LogRecord record) {
+        if (running) {
+            try {
+                if (queue.offer(record, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        dropped.increment();
+        return false;
+    }
+
+    // 写线程主循环：收集一批记录后在一个事务中提交
+    private void run() {
+        List<LogRecord> batch = new ArrayList<>(BATCH_SIZE);
+        PooledConnection conn = null;
+        while (running || !queue.isEmpty()) {
+            try {
+                boolean collected = collectBatch(batch);
+                if (conn == null) {
+                    conn = SqliteUtil.openWriter();
+                }
+                if (collected) {
+                    writeBatch(conn, batch);
+                    batch.clear();
+                }
+                if (running && queue.size() < BATCH_SIZE) {
+                    indexPending(conn);  // 积压不多时补建全文索引，繁忙时让位于聊天记录
+                }
+            } catch (SQLException e) {
+                if (!batch.isEmpty()) {
+                    errorSink.accept("批量写入数据库失败，丢弃 " + batch.size() + " 条记录: " + e.getMessage());
+                    dropped.add(batch.size());
+                } else {
+                    errorSink.accept("更新全文索引失败: " + e.getMessage());
+                }
+                conn = closeQuietly(conn);  // 下一批重新建立连接
+                indexedId = -1;
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            batch.clear();
+        }
+        closeQuietly(conn);
+    }
+
+    // 等待第一条记录，然后在时间窗口内尽量凑满一批
+    private boolean collectBatch(List<LogRecord> batch) throws InterruptedException {
+        LogRecord first = queue.poll(BATCH_WINDOW_MS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return false;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_WINDOW_MS);
+        while (batch.size() < BATCH_SIZE) {
+            queue.drainTo(batch, BATCH_SIZE - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= BATCH_SIZE || remaining <= 0 || !running) {
+                break;
+            }
+            LogRecord next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+        return true;
+    }
+
+    private void writeBatch(PooledConnection conn, List<LogRecord> batch) throws SQLException {
+        PreparedStatement chatStmt = conn.prepare(INSERT_CHAT_LOG);  // 缓存的预编译语句，不需要关闭
+        PreparedStatement fileStmt = conn.prepare(INSERT_FILE_LOG);
+        long start = System.nanoTime();
+        try {
+            int chats = 0;
+            int files = 0;
+            for (LogRecord record : batch) {
+                String timestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(record.timeMillis));
+                if (record.message != null) {
+                    chatStmt.setString(1, record.clientAddress);
+                    chatStmt.setString(2, record.message);
+                    chatStmt.setString(3, timestamp);
+                    chatStmt.setString(4, record.room);
+                    chatStmt.addBatch();
+                    chats++;
+                } else {
+                    fileStmt.setString(1, record.clientAddress);
+                    fileStmt.setString(2, record.filename);
+                    fileStmt.setString(3, record.filePath);
+                    fileStmt.setString(4, timestamp);
+                    fileStmt.setString(5, record.sha256);
+                    fileStmt.setLong(6, record.size);
+                    fileStmt.addBatch();
+                    files++;
+                }
+            }
+            if (chats > 0) {
+                chatStmt.executeBatch();
+            }
+            if (files > 0) {
+                fileStmt.executeBatch();
+            }
+            conn.connection().commit();
+            insertLatency.record(System.nanoTime() - start);
+            written.add(batch.size());
+        } catch (SQLException e) {
+            try {
+                chatStmt.clearBatch();
+                fileStmt.clearBatch();
+                conn.connection().rollback();
+            } catch (SQLException ignored) {}
+            throw e;
+        }
+    }
+
+    // 为 id 大于已索引位置的聊天记录建全文索引，并在同一事务中推进已索引位置
+    private void indexPending(PooledConnection conn) throws SQLException {
+        try {
+            if (indexedId < 0) {
+                try (ResultSet rs = conn.prepare(SELECT_INDEXED_ID).executeQuery()) {
+                    indexedId = rs.next() ? rs.getLong(1) : 0;
+                }
+            }
+            PreparedStatement end = conn.prepare(SELECT_INDEX_END);
+            end.setLong(1, indexedId);
+            end.setInt(2, INDEX_BATCH_SIZE);
+            long endId;
+            try (ResultSet rs = end.executeQuery()) {
+                endId = rs.next() ? rs.getLong(1) : 0;  // 没有新记录时 max() 为 NULL
+            }
+            if (endId <= indexedId) {
+                conn.connection().commit();  // 结束上面的读事务
+                return;
+            }
+            PreparedStatement insert = conn.prepare(INSERT_FTS);
+            insert.setLong(1, indexedId);
+            insert.setLong(2, endId);
+            insert.executeUpdate();
+            PreparedStatement update = conn.prepare(UPDATE_INDEXED_ID);
+            update.setLong(1, endId);
+            update.executeUpdate();
+            conn.connection().commit();
+            indexedId = endId;
+        } catch (SQLException e) {
+            try {
+                conn.connection().rollback();
+            } catch (SQLException ignored) {}
+            throw e;
+        }
+    }
+
+    private static PooledConnection closeQuietly(PooledConnection conn) {
+        if (conn != null) {
+            conn.close();
+        }
+        return null;
+    }
+
+    // 一条待写入的记录，message 为空时表示文件记录
+    private static final class LogRecord {
+        final String clientAddress;
+        final String message;
+        final String filename;
+        final String filePath;
+        final String room;
+        final String sha256;
+        final long size;
+        final long timeMillis = System.currentTimeMillis();
+
+        LogRecord(String clientAddress, String message, String filename, String filePath, String room,
+                  String sha256, long size) {
+            this.clientAddress = clientAddress;
+            this.message = message;
+            this.filename = filename;
+            this.filePath = filePath;
+            this.room = room;
+            this.sha256 = sha256;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import util.HistoryEntry;
+
+/**
+ * 聊天记录查询，使用只读连接池，不影响 AsyncLogWriter 的写入。
+ * 结果按 id 从新到旧返回，分页使用键集方式：下一页只查 id 小于上一页最后一条的记录，
+ * 不使用 OFFSET，翻到多深每页的代价都一样。时间范围先借助 timestamp 索引换算成 id 范围，
+ * 关键词通过 FTS5 全文索引 chat_logs_fts 匹配（trigram 分词）。不足3个字符的关键词无法使用索引，
+ * 退化为 LIKE 扫描，每次查询只扫描起点之前 LIKE_WINDOW 个 id，没有填满一页时返回窗口下界作为下一页起点，
+ * 查询耗时与表的大小无关，不会因为一个短关键词长时间占用读连接；
+ * 索引由 AsyncLogWriter 在写入空闲时补建，写入繁忙时最新的消息可能暂时搜索不到。
+ */
+final class ChatHistory {
+    static final int MAX_PAGE_SIZE = 200;  // 每页最多返回的记录数
+    static final String PUBLIC_ROOM = "";  // 表示公共聊天（room 为 NULL）的房间名
+
+    private static final String COLUMNS = "c.id, c.timestamp, c.client_address, c.message";
+    private static final int LIKE_WINDOW = 20_000;  // 短关键词的 LIKE 扫描每次查询最多检查的 id 数
+    private static final String LAST_ID = "SELECT max(id) FROM chat_logs;";
+    private static final String FIRST_ID_SINCE =
+            "SELECT id FROM chat_logs WHERE timestamp >= ? ORDER BY timestamp, id LIMIT 1;";
+
+    // 查询条件，未设置的字段不参与过滤
+    static final class Query {
+        long beforeId;      // 只返回 id 小于它的记录，0 表示从最新一条开始
+        int limit = 50;     // 每页条数
+        String room;        // 房间名，PUBLIC_ROOM 表示公共聊天，null 表示所有房间
+        String client;      // 发送者地址
+        String keyword;     // 消息中包含的关键词
+        String since;       // 起始时间（UTC，含），格式 yyyy-MM-dd HH:mm:ss
+        String until;       // 结束时间（UTC，不含）
+    }
+
+    // 一页查询结果，nextBeforeId 为 0 表示没有更早的记录
+    static final class Page {
+        final List<HistoryEntry> entries;
+        final long nextBeforeId;
+
+        Page(List<HistoryEntry> entries, long nextBeforeId) {
+            this.entries = entries;
+            this.nextBeforeId = nextBeforeId;
+        }
+    }
+
+    private ChatHistory() {} // Prevents instantiation
+
+    static Page query(Query query) throws SQLException {
+        int limit = Math.max(1, Math.min(MAX_PAGE_SIZE, query.limit));
+        try (PooledConnection conn = SqliteUtil.borrowReader()) {
+            long lowId = 0;  // 含
+            long highId = query.beforeId > 0 ? query.beforeId : Long.MAX_VALUE;  // 不含
+            if (query.since != null) {
+                lowId = firstIdSince(conn, query.since);
+                if (lowId < 0) {
+                    return new Page(List.of(), 0);
+                }
+            }
+            if (query.until != null) {
+                long untilId = firstIdSince(conn, query.until);
+                if (untilId >= 0) {
+                    highId = Math.min(highId, untilId);
+                }
+            }
+
+            String keyword = query.keyword == null || query.keyword.isEmpty() ? null : query.keyword;
+            boolean fullText = keyword != null && keyword.codePointCount(0, keyword.length()) >= 3;
+            boolean scan = keyword != null && !fullText;
+            long floorId = lowId;  // 扫描窗口之前的查询下界
+            if (scan) {
+                long top = highId != Long.MAX_VALUE ? highId : lastId(conn) + 1;
+                lowId = Math.max(lowId, top - LIKE_WINDOW);
+            }
+            StringBuilder sql = new StringBuilder("SELECT ").append(COLUMNS);
+            if (fullText) {
+                sql.append(" FROM chat_logs_fts f JOIN chat_logs c ON c.id = f.rowid")
+                        .append(" WHERE chat_logs_fts MATCH ? AND f.rowid >= ? AND f.rowid < ?");
+            } else {
+                sql.append(" FROM chat_logs c WHERE c.id >= ? AND c.id < ?");
+                if (keyword != null) {
+                    sql.append(" AND c.message LIKE ? ESCAPE '\\'");
+                }
+            }
+            if (query.room != null) {
+                sql.append(query.room.equals(PUBLIC_ROOM) ? " AND c.room IS NULL" : " AND c.room = ?");
+            }
+            if (query.client != null) {
+                sql.append(" AND c.client_address = ?");
+            }
+            sql.append(fullText ? " ORDER BY f.rowid DESC" : " ORDER BY c.id DESC").append(" LIMIT ?;");
+
+            PreparedStatement stmt = conn.prepare(sql.toString());  // 按条件组合缓存的预编译语句
+            int index = 1;
+            if (fullText) {
+                stmt.setString(index++, "\"" + keyword.replace("\"", "\"\"") + "\"");  // 作为短语匹配子串
+            }
+            stmt.setLong(index++, lowId);
+            stmt.setLong(index++, highId);
+            if (keyword != null && !fullText) {
+                stmt.setString(index++, "%" + keyword.replace("\\", "\\\\").replace("%", "\\%")
+                        .replace("_", "\\_") + "%");
+            }
+            if (query.room != null && !query.room.equals(PUBLIC_ROOM)) {
+                stmt.setString(index++, query.room);
+            }
+            if (query.client != null) {
+                stmt.setString(index++, query.client);
+            }
+            stmt.setInt(index, limit);
+
+            List<HistoryEntry> entries = new ArrayList<>(limit);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    entries.add(new HistoryEntry(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4)));
+                }
+            }
+            long next = entries.size() == limit ? entries.get(entries.size() - 1).id : 0;
+            if (next == 0 && scan && lowId > floorId) {
+                next = lowId;  // 窗口内没有更多匹配，从窗口下界继续向前查
+            }
+            return new Page(entries, next);
+        }
+    }
+
+    private static long lastId(PooledConnection conn) throws SQLException {
+        try (ResultSet rs = conn.prepare(LAST_ID).executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;  // 空表时 max(id) 为 NULL，getLong 返回 0
+        }
+    }
+
+    // 时间不早于 timestamp 的第一条记录的 id，没有时返回 -1。
+    // 记录由单个写线程按时间顺序写入，id 与时间同序，时间范围可以换算成 id 范围
+    private static long firstIdSince(PooledConnection conn, String timestamp) throws SQLException {
+        PreparedStatement stmt = conn.prepare(FIRST_ID_SINCE);
+        stmt.setString(1, timestamp);
+        try (ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : -1;
+        }
+    }
+}
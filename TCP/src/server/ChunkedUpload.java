@@ -0,0 +1,166 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 一次分块上传的状态：每个数据块写入 uploads/incoming 下的 .part 临时文件，同时计算 SHA-256，
+ * 收齐声明的字节数后按哈希放入 FileStore，服务端内存占用与文件大小无关。
+ * 客户端事先声明了哈希时，临时文件以哈希命名并在断开后保留，下次从已写入的字节处续传，
+ * 结束时校验哈希；旧协议不声明哈希，结束时才知道内容，已有相同内容时丢弃临时文件。
+ */
+class ChunkedUpload {
+    private final FileStore store;
+    private final String filename;
+    private final long size;
+    private final String expectedHash;  // 客户端声明的哈希，旧协议为 null
+    private final Path partFile;
+    private final FileChannel channel;
+    private final MessageDigest digest;
+    private long received;
+
+    private ChunkedUpload(FileStore store, String filename, long size, String expectedHash, Path partFile,
+                          FileChannel channel, MessageDigest digest, long received) {
+        this.store = store;
+        this.filename = filename;
+        this.size = size;
+        this.expectedHash = expectedHash;
+        this.partFile = partFile;
+        this.channel = channel;
+        this.digest = digest;
+        this.received = received;
+    }
+
+    // 开始上传。expectedHash 不为 null 时调用方须已通过 FileStore.claim 占用该内容，
+    // 已有的临时文件内容重新计入哈希后从其末尾续传
+    static ChunkedUpload begin(FileStore store, String filename, long size, String expectedHash) throws IOException {
+        if (size < 0) {
+            throw new IOException("文件大小无效: " + size);
+        }
+        String name = sanitize(filename);
+        Path partFile = store.partPath(expectedHash);
+        FileChannel channel = FileChannel.open(partFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MessageDigest digest = newDigest();
+            long received = expectedHash != null ? channel.size() : 0;
+            if (received > size) {
+                received = 0;
+            }
+            channel.truncate(received);
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            for (long position = 0; position < received; ) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), received - position));
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    throw new IOException("读取未完成的上传失败");
+                }
+                digest.update(buffer.flip());
+                position += n;
+            }
+            return new ChunkedUpload(store, name, size, expectedHash, partFile, channel, digest, received);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // 去掉客户端传来的路径部分
+    static String sanitize(String filename) throws IOException {
+        Path name = Path.of(filename).getFileName();
+        if (name == null || name.toString().isEmpty()) {
+            throw new IOException("文件名无效: " + filename);
+        }
+        return name.toString();
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);  // 所有 Java 平台都必须支持 SHA-256
+        }
+    }
+
+    String filename() {
+        return filename;
+    }
+
+    long size() {
+        return size;
+    }
+
+    // 已写入临时文件的字节数，也是续传的起始偏移
+    long received() {
+        return received;
+    }
+
+    // 在指定偏移写入一个数据块，块必须按顺序到达且不能超过声明的大小
+    void write(long offset, byte[] data) throws IOException {
+        write(offset, ByteBuffer.wrap(data));
+    }
+
+    void write(long offset, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (offset != received) {
+            throw new IOException("数据块偏移不连续: 期望 " + received + "，收到 " + offset);
+        }
+        if (received + length > size) {
+            throw new IOException("数据超出声明的文件大小 " + size);
+        }
+        digest.update(data.duplicate());
+        long position = offset;
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+        received += length;
+    }
+
+    // 结束上传：校验大小和哈希后放入存储，返回内容的哈希
+    String finish() throws IOException {
+        try {
+            channel.close();
+            if (received != size) {
+                Files.deleteIfExists(partFile);
+                throw new IOException("文件不完整: 收到 " + received + " / " + size + " 字节");
+            }
+            String hash = FileStore.toHex(digest.digest());
+            if (expectedHash != null && !expectedHash.equals(hash)) {
+                Files.deleteIfExists(partFile);
+                throw new IOException("文件校验失败: SHA-256 不一致");
+            }
+            store.commit(partFile, hash);
+            return hash;
+        } finally {
+            release();
+        }
+    }
+
+    // 放弃上传：声明了哈希的上传保留已写入的部分以便续传，否则删除临时文件
+    void abort() {
+        try {
+            if (expectedHash != null) {
+                channel.force(false);
+                channel.close();
+            } else {
+                channel.close();
+                Files.deleteIfExists(partFile);
+            }
+        } catch (IOException ignored) {
+        } finally {
+            release();
+        }
+    }
+
+    private void release() {
+        if (expectedHash != null) {
+            store.release(expectedHash);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 客户端连接的字节输出通道，阻塞模式和NIO模式各有一个实现。
+ * 一次 send() 的数据作为整体写出，不会与其他线程的 send() 交错。
+ * send() 的数据先在连接上合并，阻塞模式在 flush() 或写缓冲区满时写出，
+ * NIO 模式在本轮事件循环结束时用一次聚集写写出，突发的多条小消息只产生少量系统调用。
+ */
+interface ClientOutput {
+    // 发送一段完整的协议数据（文本行或二进制帧）。实现不得修改 data 的位置，
+    // 同一个缓冲区可以被多个连接共享（广播）
+    void send(ByteBuffer data) throws IOException;
+
+    // 写出 send() 合并在连接上的数据，处理器在读完当前已到达的输入、即将等待下一条消息前调用
+    void flush() throws IOException;
+
+    // 发送协议头后紧跟文件中 [position, position+count) 的内容，文件数据用 FileChannel.transferTo
+    // 直接从文件写到套接字，不经过堆内缓冲区。closeWhenDone 为 true 时由实现负责在写完
+    // （或连接关闭）后关闭 file，NIO 实现可能在方法返回后才真正写出
+    void sendFile(ByteBuffer header, FileChannel file, long position, long count, boolean closeWhenDone)
+            throws IOException;
+
+    // 广播用的异步发送：只放入该连接的有界发送队列，由连接自己的写出方写到套接字，
+    // 队列已满时按 SlowConsumerPolicy 处理（可能断开连接）。不会抛出异常，也不修改 data 的位置
+    void offer(ByteBuffer data);
+
+    void close();
+}
@@ -0,0 +1,448 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 集群消息转发：本节点接受的服务器广播和房间消息按顺序编号后放入有界的发送环，
+ * 由每个对端一个的发送线程通过 TCP 推送给其他节点，对端只投递给自己的本地客户端，不再转发，
+ * 因此所有节点互相配置为对端（全连接）时每条消息到达每个节点各一次。
+ * 接收方按源节点记录已投递的最大序号：重复的序号丢弃，连接断开后发送方从接收方回复的序号之后重发，
+ * 同一源节点的消息按编号顺序投递，恰好一次。节点重启后以新的启动标识重新编号；
+ * 接收方第一次见到某个节点时从其握手时的序号之后开始接收，不回放连接之前的消息。
+ * 每条消息同时带源节点分配的消息id，各节点以同一个id投递给客户端，客户端换到其他节点后仍可按该id回放。
+ * 源节点由握手中的节点名确定：每个连接只传送发送方自己的消息，不转发其他节点的消息。
+ * 集群端口只监听配置的地址（默认回环地址），只接受来自 cluster.peers 中各对端地址的连接，
+ * 并用共享密钥验证握手，其他来源的连接不能注入消息。
+ * 消息id的低位是节点标记（见 RecentMessageCache），对端的节点标记与本节点相同时拒绝连接，不同节点分配的id不会相同。
+ * 连接协议：接收方先发送16字节随机数，发送方写 CLUSTER2、节点名、节点标记(short)、启动标识、当前序号，
+ * 以及用共享密钥对随机数和这些字段计算的 HMAC-SHA256，接收方验证后回复已投递的最大序号，
+ * 之后每条消息为 序号(long) + 消息id(long) + 房间名(UTF，空表示服务器广播) + 文本长度(int) + UTF-8 文本。
+ */
+final class ClusterRelay {
+    private static final String MAGIC = "CLUSTER2";
+    private static final int BACKLOG = Math.max(1, Integer.getInteger("cluster.backlog", 10000));  // 断线重发保留的消息数
+    private static final long RETRY_MS = 1000;            // 连接对端失败后的重试间隔
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final int MAX_TEXT = 16 * 1024 * 1024;  // 单条消息的最大字节数
+    private static final int NONCE_SIZE = 16;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_SIZE = 32;
+
+    private final String nodeId;
+    private final int nodeTag;  // 本节点写入消息id低位的标记
+    private final long incarnation = System.currentTimeMillis();  // 本次启动的标识，重启后序号从1重新开始
+    private final InetSocketAddress bindAddress;
+    private final SecretKeySpec secret;           // 握手使用的共享密钥
+    private final List<InetSocketAddress> peers;
+    private final Delivery delivery;  // 投递给本地客户端
+    private final Consumer<String> log;
+
+    // 发送环：序号为 seq 的消息保存在 ring[seq % BACKLOG]，由 lock 保护
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+    private final Relayed[] ring = new Relayed[BACKLOG];
+    private long lastSeq;  // 最近一条本节点消息的序号
+
+    private final Map<String, Origin> origins = new ConcurrentHashMap<>();  // 源节点 -> 接收状态
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final SecureRandom random = new SecureRandom();
+    final LongAdder relayedOut = new LongAdder();   // 发送给对端的消息数（含重发）
+    final LongAdder relayedIn = new LongAdder();    // 从对端收到并投递的消息数
+    final LongAdder duplicates = new LongAdder();   // 收到后因重复丢弃的消息数
+    private volatile boolean running = true;
+    private ServerSocket serverSocket;
+
+    ClusterRelay(String nodeId, int nodeTag, InetSocketAddress bindAddress, String secret, List<InetSocketAddress> peers,
+                 Delivery delivery, Consumer<String> log) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("未设置集群共享密钥 cluster.secret");
+        }
+        this.nodeId = nodeId;
+        this.nodeTag = nodeTag;
+        this.bindAddress = bindAddress;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        this.peers = peers;
+        this.delivery = delivery;
+        this.log = log;
+    }
+
+    // 解析 host:port,host:port 形式的对端列表
+    static List<InetSocketAddress> parsePeers(String value) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        if (value == null) {
+            return peers;
+        }
+        for (String item : value.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            int colon = item.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("集群对端格式应为 host:port: " + item);
+            }
+            peers.add(InetSocketAddress.createUnresolved(item.substring(0, colon),
+                    Integer.parseInt(item.substring(colon + 1))));
+        }
+        return peers;
+    }
+
+    // 监听集群端口并为每个对端启动发送线程
+    void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(bindAddress);
+        Thread.ofPlatform().daemon().name("cluster-accept").start(this::acceptLoop);
+        List<String> names = new ArrayList<>();
+        for (InetSocketAddress peer : peers) {
+            names.add(name(peer));
+            Thread.ofPlatform().daemon().name("cluster-link-" + name(peer)).start(() -> runLink(peer));
+        }
+        log.accept("集群节点 " + nodeId + " 监听：" + name(bindAddress) + "，对端：" + names);
+    }
+
+    void close() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ignored) {}
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+        lock.lock();
+        try {
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 发布一条本节点接受的消息，id 为本节点投递时使用的消息id，房间名为空表示服务器广播；只入环，不做网络IO
+    void publish(long id, String room, String text) {
+        lock.lock();
+        try {
+            long seq = ++lastSeq;
+            ring[(int) (seq % BACKLOG)] = new Relayed(seq, id, room, text);
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 连接一个对端并持续推送本节点的消息，断开后重连并从对端确认的位置继续
+    private void runLink(InetSocketAddress peer) {
+        boolean reported = false;  // 连续失败只记录一次
+        while (running) {
+            Socket socket = new Socket();
+            sockets.add(socket);
+            try {
+                socket.connect(new InetSocketAddress(peer.getHostString(), peer.getPort()), CONNECT_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                byte[] nonce = new byte[NONCE_SIZE];
+                in.readFully(nonce);
+                long seq = currentSeq();
+                out.writeUTF(MAGIC);
+                out.writeUTF(nodeId);
+                out.writeShort(nodeTag);
+                out.writeLong(incarnation);
+                out.writeLong(seq);
+                out.write(sign(nonce, nodeId, nodeTag, incarnation, seq));
+                out.flush();
+                long acked = in.readLong();
+                log.accept("已连接集群节点 " + name(peer) + "，从第 " + (acked + 1) + " 条开始发送");
+                reported = false;
+                streamTo(peer, out, acked);
+            } catch (IOException e) {
+                if (running && !reported) {
+                    log.accept("集群节点 " + name(peer) + " 连接断开: " + e.getMessage() + "，" + RETRY_MS + "毫秒后重试");
+                    reported = true;
+                }
+            } finally {
+                sockets.remove(socket);
+                closeQuietly(socket);
+            }
+            sleep(RETRY_MS);
+        }
+    }
+
+    private long currentSeq() {
+        lock.lock();
+        try {
+            return lastSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 从 acked 之后开始发送环中的消息，追上后等待新消息
+    private void streamTo(InetSocketAddress peer, DataOutputStream out, long acked) throws IOException {
+        long next = acked + 1;
+        List<Relayed> batch = new ArrayList<>();
+        while (running) {
+            lock.lock();
+            try {
+                while (running && lastSeq < next) {
+                    published.await(1, TimeUnit.SECONDS);
+                }
+                long oldest = Math.max(1, lastSeq - BACKLOG + 1);
+                if (next < oldest) {
+                    log.accept("集群节点 " + name(peer) + " 落后过多，" + (oldest - next) + " 条消息已不在重发范围内");
+                    next = oldest;
+                }
+                for (long seq = next; seq <= lastSeq; seq++) {
+                    batch.add(ring[(int) (seq % BACKLOG)]);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            for (Relayed message : batch) {
+                byte[] text = message.text.getBytes(StandardCharsets.UTF_8);
+                out.writeLong(message.seq);
+                out.writeLong(message.id);
+                out.writeUTF(message.room);
+                out.writeInt(text.length);
+                out.write(text);
+                next = message.seq + 1;
+            }
+            out.flush();
+            relayedOut.add(batch.size());
+            batch.clear();
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (!isPeer(socket.getInetAddress())) {
+                    log.accept("拒绝非对端地址的集群连接: " + socket.getInetAddress());
+                    closeQuietly(socket);
+                    continue;
+                }
+                sockets.add(socket);
+                Thread.ofPlatform().daemon().name("cluster-in").start(() -> receive(socket));
+            } catch (IOException e) {
+                if (running) {
+                    log.accept("集群端口异常: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // 接收一个源节点的消息：握手时回复已投递的最大序号，之后按序号去重并按顺序投递
+    private void receive(Socket socket) {
+        String origin = null;
+        Origin state = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            byte[] nonce = new byte[NONCE_SIZE];
+            random.nextBytes(nonce);
+            out.write(nonce);
+            out.flush();
+            socket.setSoTimeout(CONNECT_TIMEOUT_MS);  // 握手超时，未通过验证的连接不会一直占用线程
+            if (!MAGIC.equals(in.readUTF())) {
+                log.accept("集群端口收到无效的连接: " + socket.getInetAddress());
+                return;
+            }
+            String claimed = in.readUTF();
+            int tag = in.readUnsignedShort();
+            long incarnation = in.readLong();
+            long senderSeq = in.readLong();
+            byte[] mac = new byte[MAC_SIZE];
+            in.readFully(mac);
+            if (!MessageDigest.isEqual(mac, sign(nonce, claimed, tag, incarnation, senderSeq))) {
+                log.accept("集群连接的共享密钥验证失败: " + socket.getInetAddress());
+                return;
+            }
+            if (tag == nodeTag && !claimed.equals(nodeId)) {
+                log.accept("集群节点 " + claimed + " 的节点标记与本节点相同（" + tag + "），消息id会重复，"
+                        + "请用 cluster.node_tag 为各节点设置不同的值");
+                return;
+            }
+            socket.setSoTimeout(0);
+            origin = claimed;
+            if (origin.equals(nodeId)) {
+                log.accept("忽略与本节点同名的集群连接: " + socket.getInetAddress());
+                return;
+            }
+            state = origins.computeIfAbsent(origin, name -> new Origin());
+            long acked;
+            Socket previous;
+            synchronized (state) {
+                if (state.incarnation != incarnation) {
+                    // 第一次见到该节点时从它的当前序号之后开始；节点重启后它的序号从1重新开始，需要全部接收
+                    state.lastSeq = state.incarnation == 0 ? senderSeq : 0;
+                    state.incarnation = incarnation;
+                }
+                acked = state.lastSeq;
+                previous = state.socket;
+                state.socket = socket;  // 同一源节点的新连接取代旧连接
+            }
+            if (previous != null) {
+                closeQuietly(previous);
+            }
+            out.writeLong(acked);
+            out.flush();
+            log.accept("集群节点 " + origin + " 已连接");
+
+            while (running) {
+                long seq = in.readLong();
+                long id = in.readLong();
+                String room = in.readUTF();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_TEXT) {
+                    throw new IOException("消息长度无效: " + length);
+                }
+                byte[] text = new byte[length];
+                in.readFully(text);
+                synchronized (state) {
+                    if (state.socket != socket || state.incarnation != incarnation) {
+                        return;  // 已被新连接取代
+                    }
+                    if (seq <= state.lastSeq) {
+                        duplicates.increment();
+                        continue;
+                    }
+                    if (seq != state.lastSeq + 1) {
+                        log.accept("集群节点 " + origin + " 的消息有缺失: " + (state.lastSeq + 1) + "-" + (seq - 1));
+                    }
+                    state.lastSeq = seq;
+                    // 在源节点的锁内投递，取代中的新旧连接不会交错投递
+                    delivery.deliver(origin, id, room, new String(text, StandardCharsets.UTF_8));
+                }
+                relayedIn.increment();
+            }
+        } catch (EOFException e) {
+            if (running && origin != null) {
+                log.accept("集群节点 " + origin + " 已断开");
+            }
+        } catch (IOException e) {
+            if (running && !superseded(state, socket)) {
+                log.accept("集群连接异常: " + e.getMessage());
+            }
+        } finally {
+            sockets.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    // 地址是否属于配置的某个对端；每次接受连接时重新解析，对端的地址变化后仍然有效
+    private boolean isPeer(InetAddress address) {
+        for (InetSocketAddress peer : peers) {
+            try {
+                for (InetAddress allowed : InetAddress.getAllByName(peer.getHostString())) {
+                    if (allowed.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException ignored) {
+                // 暂时无法解析的对端不匹配任何地址
+            }
+        }
+        return false;
+    }
+
+    // 握手的 HMAC-SHA256：覆盖接收方的随机数和发送方声明的字段，不能重放到其他连接
+    private byte[] sign(byte[] nonce, String name, int tag, long incarnation, long seq) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secret);
+            mac.update(nonce);
+            mac.update(name.getBytes(StandardCharsets.UTF_8));
+            mac.update(ByteBuffer.allocate(18).putShort((short) tag).putLong(incarnation).putLong(seq).array());
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("计算握手签名失败: " + e.getMessage(), e);
+        }
+    }
+
+    // 该连接已被同一源节点的新连接取代（旧连接随后被关闭，不是异常）
+    private static boolean superseded(Origin state, Socket socket) {
+        if (state == null) {
+            return false;
+        }
+        synchronized (state) {
+            return state.socket != socket;
+        }
+    }
+
+    private static String name(InetSocketAddress peer) {
+        return peer.getHostString() + ":" + peer.getPort();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 把其他节点的消息投递给本地客户端：源节点名、源节点分配的消息id、房间名（空为广播）、文本
+    interface Delivery {
+        void deliver(String origin, long id, String room, String text);
+    }
+
+    // 一条待转发的本节点消息
+    private static final class Relayed {
+        final long seq;
+        final long id;
+        final String room;
+        final String text;
+
+        Relayed(long seq, long id, String room, String text) {
+            this.seq = seq;
+            this.id = id;
+            this.room = room;
+            this.text = text;
+        }
+    }
+
+    // 一个源节点的接收状态，由该对象的监视器保护
+    private static final class Origin {
+        long incarnation;    // 0 表示尚未见过
+        long lastSeq;        // 已投递的最大序号
+        Socket socket;       // 当前的接收连接
+    }
+}
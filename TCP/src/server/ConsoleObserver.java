@@ -0,0 +1,78 @@
+package server;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无界面模式的日志输出：onLog 只把消息放入有界队列，由单独的线程成批写到输出流，
+ * 网络线程（NIO 模式下为事件循环）不会因为控制台或管道写得慢而阻塞。
+ * 队列满时丢弃最旧的消息，下一批输出时提示省略的条数。队列容量通过 server.log_queue 设置（默认10000）。
+ */
+final class ConsoleObserver implements ServerObserver {
+    private static final int CAPACITY = Math.max(16, Integer.getInteger("server.log_queue", 10000));
+    private static final long CLOSE_TIMEOUT_MS = 1000;  // 关闭时等待剩余消息输出的最长时间
+
+    private final PrintStream out;
+    private final ArrayBlockingQueue<String> pending = new ArrayBlockingQueue<>(CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    ConsoleObserver(PrintStream out) {
+        this.out = out;
+        this.writer = Thread.ofPlatform().daemon().name("console-log").start(this::writeLoop);
+    }
+
+    // 可在任意线程调用，只入队，不等待输出
+    @Override
+    public void onLog(String message) {
+        while (!pending.offer(message)) {
+            if (pending.poll() != null) {
+                dropped.increment();
+            }
+        }
+    }
+
+    // 停止接收并输出队列中剩余的消息
+    void close() {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        while (running || !pending.isEmpty()) {
+            try {
+                String first = running ? pending.poll(1, TimeUnit.SECONDS) : pending.poll();
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                continue;  // close() 中断等待，之后只输出剩余的消息
+            }
+            pending.drainTo(batch);
+            long skipped = dropped.sumThenReset();
+            if (skipped > 0) {
+                text.append("（日志输出不及，省略 ").append(skipped).append(" 条消息）").append(System.lineSeparator());
+            }
+            for (String message : batch) {
+                text.append(message).append(System.lineSeparator());
+            }
+            out.print(text);  // 整批一次写出
+            out.flush();
+            batch.clear();
+            text.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定分桶的耗时直方图，桶边界与 Prometheus histogram 的 le 标签对应。
+ * 每个桶是一个 LongAdder，多个线程同时记录时不争用同一个计数器；读取时各桶之间不保证是同一时刻的快照。
+ */
+final class DurationHistogram {
+    // 桶上界（秒），覆盖 10µs 到 10s，超出最后一个边界的记录只计入 +Inf
+    static final double[] BOUNDS = {
+            0.00001, 0.000025, 0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005,
+            0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final long[] BOUND_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUND_NANOS[i] = Math.round(BOUNDS[i] * 1e9);
+        }
+    }
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];  // 各桶自身的计数（非累计），最后一个为 +Inf
+    private final LongAdder sumNanos = new LongAdder();
+
+    DurationHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        int i = 0;
+        while (i < BOUND_NANOS.length && nanos > BOUND_NANOS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    // 各桶的累计计数，下标与 BOUNDS 对应，最后一个元素为总数（+Inf）
+    long[] cumulativeCounts() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    long count() {
+        return cumulativeCounts()[buckets.length - 1];
+    }
+
+    double sumSeconds() {
+        return sumNanos.sum() / 1e9;
+    }
+
+    double meanMillis() {
+        long count = count();
+        return count == 0 ? 0 : sumNanos.sum() / 1e6 / count;
+    }
+
+    // 百分位所在桶的上界（毫秒），落在 +Inf 桶时返回无穷大
+    double percentileMillis(double percentile) {
+        long[] counts = cumulativeCounts();
+        long total = counts[counts.length - 1];
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(percentile / 100 * total);
+        for (int i = 0; i < BOUNDS.length; i++) {
+            if (counts[i] >= target) {
+                return BOUNDS[i] * 1000;
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+}
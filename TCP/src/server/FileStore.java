@@ -0,0 +1,158 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按内容寻址的上传文件存储：文件内容按 SHA-256 保存在 uploads/objects/前两位/哈希 下，
+ * 相同内容无论以什么文件名、被多少客户端上传都只保存一份。文件名到哈希的映射记录在 file_logs 中，
+ * 同一文件名以最近一次上传为准；刚上传的映射可能还在 AsyncLogWriter 的队列里，先查内存中最近的映射。
+ * 未完成的上传保存在 uploads/incoming/哈希.part，断开后再次上传同一内容时从已写入的字节处续传。
+ */
+final class FileStore {
+    private static final int RECENT_NAMES = 1024;  // 内存中保留的最近上传的文件名映射数
+    private static final long PART_TTL_HOURS = Long.getLong("upload.part_ttl_hours", 24);  // 未完成上传的保留时间
+    private static final String SELECT_HASH =
+            "SELECT sha256 FROM file_logs WHERE filename = ? AND sha256 IS NOT NULL ORDER BY id DESC LIMIT 1;";
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Path uploadDir;
+    private final Path root;  // 上传目录的绝对路径，下载只允许读取其中的普通文件
+    private final Path objectDir;
+    private final Path incomingDir;
+    private final Set<String> activeHashes = ConcurrentHashMap.newKeySet();  // 正在上传的内容，同一内容同时只接收一份
+    private final Map<String, String> recentNames = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > RECENT_NAMES;
+                }
+            });
+
+    FileStore(Path uploadDir) {
+        this.uploadDir = uploadDir;
+        this.root = uploadDir.toAbsolutePath().normalize();
+        this.objectDir = uploadDir.resolve("objects");
+        this.incomingDir = uploadDir.resolve("incoming");
+    }
+
+    // 创建目录并删除过期的未完成上传
+    void open() throws IOException {
+        Files.createDirectories(objectDir);
+        Files.createDirectories(incomingDir);
+        FileTime expiry = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(PART_TTL_HOURS));
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(incomingDir, "*.part")) {
+            for (Path part : parts) {
+                if (Files.getLastModifiedTime(part).compareTo(expiry) < 0) {
+                    Files.deleteIfExists(part);
+                }
+            }
+        }
+    }
+
+    static boolean isValidHash(String hash) {
+        return hash.matches("[0-9a-f]{64}");
+    }
+
+    static String toHex(byte[] digest) {
+        return HEX.formatHex(digest);
+    }
+
+    Path objectPath(String hash) {
+        return objectDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    // 内容已完整保存且大小一致
+    boolean has(String hash, long size) {
+        try {
+            return Files.size(objectPath(hash)) == size;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // 已知哈希的上传使用固定的临时文件，断开后可以续传；不知道哈希的旧协议上传各用一个临时文件
+    Path partPath(String hash) {
+        return incomingDir.resolve((hash != null ? hash : UUID.randomUUID().toString()) + ".part");
+    }
+
+    // 占用一个内容的上传权，返回 false 表示其他连接正在上传相同内容
+    boolean claim(String hash) {
+        return activeHashes.add(hash);
+    }
+
+    void release(String hash) {
+        activeHashes.remove(hash);
+    }
+
+    // 把校验过的临时文件放入存储，已有相同内容时直接删除临时文件
+    Path commit(Path part, String hash) throws IOException {
+        Path object = objectPath(hash);
+        if (Files.exists(object)) {
+            Files.deleteIfExists(part);
+            return object;
+        }
+        Files.createDirectories(object.getParent());
+        Files.move(part, object, StandardCopyOption.ATOMIC_MOVE);
+        return object;
+    }
+
+    // 记录文件名映射，随后由调用方写入 file_logs
+    void remember(String filename, String hash) {
+        recentNames.put(filename, hash);
+    }
+
+    // 内存中的映射，没有时返回 null，需要再调用 resolve 查询数据库
+    Path cached(String filename) {
+        String hash = recentNames.get(filename);
+        return hash != null ? objectPath(hash) : null;
+    }
+
+    // 可以发送给客户端的文件：上传目录内的普通文件（不跟随符号链接），其余（目录、".."、目录外的路径、
+    // 不存在的文件）返回 null。打开文件前都要经过这里检查
+    Path regularFile(Path path) {
+        Path normalized = path.toAbsolutePath().normalize();
+        if (!normalized.startsWith(root) || normalized.equals(root)
+                || !Files.isRegularFile(normalized, LinkOption.NOFOLLOW_LINKS)) {
+            return null;
+        }
+        return normalized;
+    }
+
+    // 按文件名找到内容：先查最近的映射，再查 file_logs，都没有时回退到旧版本直接保存在 uploads 下的同名文件。
+    // 旧版本的文件只接受上传目录下的普通文件，找不到时返回 null
+    Path resolve(String filename) throws SQLException {
+        Path path = cached(filename);
+        if (path != null) {
+            return path;
+        }
+        try (PooledConnection conn = SqliteUtil.borrowReader()) {
+            PreparedStatement stmt = conn.prepare(SELECT_HASH);
+            stmt.setString(1, filename);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    String hash = rs.getString(1);
+                    recentNames.put(filename, hash);
+                    return objectPath(hash);
+                }
+            }
+        }
+        return regularFile(uploadDir.resolve(filename));
+    }
+}
@@ -0,0 +1,156 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 空闲连接检测，基于哈希时间轮：时间按刻度（1秒）前进，每个刻度只检查落在当前槽里的连接。
+ * 连接收到数据时只记下当前刻度（一次 volatile 写），不移动它在时间轮中的位置；
+ * 轮到检查时再按最后活动刻度决定：支持心跳的连接空闲超过 interval 发送 PING，超过 timeout 断开；
+ * 不支持心跳的连接（文本协议、旧客户端）只在配置了 legacyTimeout 时按空闲时间断开，否则依赖 TCP keepalive。
+ * 每次检查后按需要重新放入之后的槽，每个刻度的开销只与到期的连接数有关，与连接总数无关。
+ */
+final class IdleReaper {
+    static final long TICK_MS = 1000;
+    private static final int WHEEL_SIZE = 512;  // 槽数（2的幂）；更远的检查时间提前到一圈之内，检查时重新计算
+
+    // 被检测的连接
+    interface Session {
+        long lastActivity();  // 最后一次收到数据时的刻度
+
+        boolean heartbeats();  // 是否支持心跳（收到过客户端的 PING）
+
+        boolean isClosed();
+
+        void ping();  // 发送 PING，不阻塞
+
+        void reap(long idleSeconds);  // 断开连接
+    }
+
+    private final long intervalTicks;
+    private final long timeoutTicks;
+    private final long legacyTimeoutTicks;  // 0 表示不按空闲时间断开不支持心跳的连接
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<Entry>[] wheel = new ArrayDeque[WHEEL_SIZE];  // 只由时间轮线程访问
+    private final ConcurrentLinkedQueue<Session> added = new ConcurrentLinkedQueue<>();  // 新连接，下一个刻度放入时间轮
+    private final long startMillis = System.currentTimeMillis();
+    private volatile long now;  // 当前刻度
+    private volatile boolean closed;
+    private Thread thread;
+    final LongAdder reaped = new LongAdder();  // 因无响应或空闲被断开的连接数
+    final LongAdder pings = new LongAdder();
+
+    IdleReaper(long intervalMs, long timeoutMs, long legacyTimeoutMs) {
+        this.intervalTicks = Math.max(1, intervalMs / TICK_MS);
+        this.timeoutTicks = Math.max(intervalTicks + 1, timeoutMs / TICK_MS);
+        this.legacyTimeoutTicks = legacyTimeoutMs > 0 ? Math.max(1, legacyTimeoutMs / TICK_MS) : 0;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+    }
+
+    void start() {
+        thread = new Thread(this::run, "idle-reaper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void close() {
+        closed = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    // 当前刻度，连接收到数据时记录
+    long now() {
+        return now;
+    }
+
+    void register(Session session) {
+        added.add(session);
+    }
+
+    private void run() {
+        long processed = now;  // 已检查过的刻度
+        while (!closed) {
+            try {
+                Thread.sleep(TICK_MS - (System.currentTimeMillis() - startMillis) % TICK_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long current = (System.currentTimeMillis() - startMillis) / TICK_MS;
+            now = current;
+            Session session;
+            while ((session = added.poll()) != null) {
+                schedule(new Entry(session), current + intervalTicks);
+            }
+            // 线程被延迟时补上错过的刻度
+            while (processed < current) {
+                processed++;
+                expire(processed);
+            }
+        }
+    }
+
+    private void expire(long tick) {
+        ArrayDeque<Entry> slot = wheel[(int) (tick & (WHEEL_SIZE - 1))];
+        for (int n = slot.size(); n > 0; n--) {
+            Entry entry = slot.poll();
+            if (entry.deadline > tick) {
+                slot.add(entry);  // 属于之后某一圈
+                continue;
+            }
+            Session session = entry.session;
+            if (session.isClosed()) {
+                continue;
+            }
+            long last = session.lastActivity();
+            long idle = now - last;
+            if (session.heartbeats()) {
+                if (idle >= timeoutTicks) {
+                    reap(session, idle);
+                    continue;
+                }
+                if (idle >= intervalTicks) {
+                    session.ping();
+                    pings.increment();
+                    schedule(entry, Math.min(now + intervalTicks, last + timeoutTicks));
+                } else {
+                    schedule(entry, last + intervalTicks);
+                }
+            } else if (legacyTimeoutTicks > 0 && idle >= legacyTimeoutTicks) {
+                reap(session, idle);
+            } else {
+                // 连接之后可能声明支持心跳，至少每个 interval 检查一次
+                long next = now + intervalTicks;
+                if (legacyTimeoutTicks > 0) {
+                    next = Math.min(next, last + legacyTimeoutTicks);
+                }
+                schedule(entry, next);
+            }
+        }
+    }
+
+    private void reap(Session session, long idleTicks) {
+        reaped.increment();
+        session.reap(idleTicks * TICK_MS / 1000);
+    }
+
+    private void schedule(Entry entry, long deadline) {
+        long current = now;
+        deadline = Math.max(deadline, current + 1);
+        entry.deadline = Math.min(deadline, current + WHEEL_SIZE - 1);
+        wheel[(int) (entry.deadline & (WHEEL_SIZE - 1))].add(entry);
+    }
+
+    private static final class Entry {
+        final Session session;
+        long deadline;  // 下次检查的刻度
+
+        Entry(Session session) {
+            this.session = session;
+        }
+    }
+}
@@ -0,0 +1,697 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import util.BinaryProtocol;
+import util.FrameLimits;
+import util.FrameTooLargeException;
+import util.NetOptions;
+
+/**
+ * 基于 ServerSocketChannel/Selector 的非阻塞服务器核心。
+ * 少量事件循环线程负责所有连接的读写，每个连接只持有自己的读写缓冲区，
+ * 按行或按帧切分后交给 ServerCore.ClientHandler 处理，协议语义与阻塞模式一致。
+ * 消息处理直接运行在所属的事件循环线程上，因此同一连接的消息保持顺序。
+ * 处理消息时产生的回复先留在连接的待写队列中，本轮事件循环结束时每个连接用一次聚集写写出。
+ * 限流的 DELAY 策略不阻塞事件循环：停止关注该连接（或监听套接字）的可读事件，由事件循环的定时任务到时恢复。
+ * 读缓冲区只为不超过 FrameLimits 上限的消息扩容，超长的行或帧在判定后随读随丢，处理完大消息后缩回默认大小。
+ */
+class NioServer {
+    private static final int READ_BUFFER_SIZE = 8192;    // 每个连接的读缓冲区大小
+    private static final int MAX_GATHER = 64;            // 一次聚集写最多包含的缓冲区数
+
+    private final ServerCore server;
+    private final int port;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger registering = new AtomicInteger();  // 已接受、尚未在事件循环中登记的连接数
+    private ServerSocketChannel serverChannel;
+
+    NioServer(ServerCore server, int port, int loopCount) {
+        this.server = server;
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    // 打开监听端口并启动事件循环线程
+    void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        NetOptions.apply(serverChannel.socket());
+        serverChannel.bind(new InetSocketAddress(port), NetOptions.BACKLOG);
+        // 由第一个事件循环负责接受连接
+        loops[0].execute(() -> serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT));
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    // 关闭监听端口和所有事件循环
+    void close() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException ignored) {}
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    // 接受新连接，并按轮询方式分配给事件循环；超过接受速率时暂停接受，超过最大连接数时关闭新连接
+    private void accept() throws IOException {
+        RateLimiter limiter = server.limiter();
+        SocketChannel channel;
+        while (true) {
+            long wait = limiter.acceptDelay();
+            if (wait > 0) {
+                pauseAccept(wait);
+                return;
+            }
+            if ((channel = serverChannel.accept()) == null) {
+                limiter.refundAccept();  // 没有等待中的连接
+                return;
+            }
+            if (limiter.rejectConnection(server.clientCount() + registering.get())) {
+                server.log("连接数已达上限，拒绝连接：" + channel.socket().getInetAddress());
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            NetOptions.apply(channel.socket());
+            server.log("客户端已连接：" + channel.socket().getInetAddress());
+
+            EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+            Connection connection = new Connection(channel, loop);
+            registering.incrementAndGet();
+            loop.execute(connection::register);
+        }
+    }
+
+    // 在第一个事件循环上暂停关注新连接，新连接留在内核的等待队列中
+    private void pauseAccept(long nanos) {
+        SelectionKey key = serverChannel.keyFor(loops[0].selector);
+        key.interestOps(0);
+        loops[0].schedule(() -> {
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_ACCEPT);
+            }
+        }, nanos);
+    }
+
+    // 事件循环：一个线程 + 一个Selector
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<IoTask> tasks = new ConcurrentLinkedQueue<>();
+        private final ArrayDeque<Connection> dirty = new ArrayDeque<>();  // 本轮有待写数据的连接
+        private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHER];  // 聚集写使用的数组，只在本线程使用
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(t -> t.at));  // 只在本线程使用
+        private volatile boolean running = true;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "nio-loop-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        // 在事件循环线程中执行任务，其他线程调用时唤醒Selector
+        void execute(IoTask task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        // 延迟 delayNanos 后在事件循环线程中执行，只能在事件循环线程调用
+        void schedule(IoTask task, long delayNanos) {
+            timers.add(new Timer(System.nanoTime() + delayNanos, task));
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    // 有待执行任务时不阻塞，其他线程提交任务时会唤醒Selector；有定时任务时最多等到最早的一个到期
+                    Timer next = timers.peek();
+                    long timeoutMs = next == null ? 0 : (next.at - System.nanoTime() + 999_999) / 1_000_000;
+                    if (!tasks.isEmpty() || (next != null && timeoutMs <= 0)) {
+                        selector.selectNow();
+                    } else if (next == null) {
+                        selector.select();
+                    } else {
+                        selector.select(timeoutMs);
+                    }
+                    runTasks();
+                    runTimers();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            try {
+                                accept();
+                            } catch (IOException e) {
+                                server.log("接受连接失败: " + e.getMessage());
+                            }
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flushOutbound();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            // 单个连接出错只关闭该连接，不影响事件循环
+                            server.log("客户端连接异常: " + e.getMessage());
+                            connection.close();
+                        }
+                    }
+                    flushDirty();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    server.log("服务器异常: " + e.getMessage());
+                }
+            } finally {
+                closeAll();
+            }
+        }
+
+        // 本轮处理过程中在事件循环线程上调用的 send()，只把连接标记为待写
+        void markDirty(Connection connection) {
+            if (!connection.dirty) {
+                connection.dirty = true;
+                dirty.add(connection);
+            }
+        }
+
+        // 本轮结束时统一写出，每个连接的多条回复合并为一次系统调用
+        private void flushDirty() {
+            Connection connection;
+            while ((connection = dirty.poll()) != null) {
+                connection.dirty = false;
+                try {
+                    connection.flushOutbound();
+                } catch (IOException | RuntimeException e) {
+                    server.log("客户端连接异常: " + e.getMessage());
+                    connection.close();
+                }
+            }
+        }
+
+        private void runTasks() {
+            IoTask task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (IOException | RuntimeException e) {
+                    server.log("服务器异常: " + e.getMessage());  // 任务自己处理连接错误，这里只防止事件循环退出
+                }
+            }
+        }
+
+        private void runTimers() {
+            long now = System.nanoTime();
+            Timer timer;
+            while ((timer = timers.peek()) != null && timer.at - now <= 0) {
+                timers.poll();
+                try {
+                    timer.task.run();
+                } catch (IOException | RuntimeException e) {
+                    server.log("服务器异常: " + e.getMessage());
+                }
+            }
+        }
+
+        private void closeAll() {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    // 单个客户端连接的状态：输入缓冲和待发送队列
+    // 握手前按行切分，处理器切换到二进制协议后按帧头长度切分，两种模式共用同一个输入缓冲
+    private final class Connection implements ClientOutput {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final Queue<Object> outbound = new ConcurrentLinkedQueue<>();  // 直接回复：ByteBuffer 或 FileRegion
+        private final OutboundQueue broadcasts = new OutboundQueue();  // 有界的广播队列，直接回复写完后再写出
+        private final ArrayDeque<Object> pending = new ArrayDeque<>();  // 正在写出的数据，只在事件循环线程使用
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private boolean dirty;  // 已在本轮的待写列表中
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);  // 处理间隙保持写模式：position 之前为未处理数据
+        private int pendingFrameSize;  // 等待中的二进制帧总长度，超过缓冲区容量时需要扩容
+        private int lineCapacity = READ_BUFFER_SIZE;  // 未完成的文本行最多可以把缓冲区扩到的容量（该类型行的上限）
+        private long skipping;  // 超长帧还需丢弃的字节数
+        private boolean skippingLine;  // 正在丢弃超长行，直到行尾
+        private SelectionKey key;
+        private ServerCore.ClientHandler handler;
+        private boolean paused;  // DELAY 策略下暂停读取，只在事件循环线程访问
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        void register() throws IOException {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                handler = server.registerClient(channel.socket(), this);
+            } finally {
+                registering.decrementAndGet();
+            }
+        }
+
+        // 读取数据并切分出完整的消息
+        void read() throws IOException {
+            if (!input.hasRemaining()) {
+                input = resize(input, (int) Math.min(input.capacity() * 2L, lineCapacity));  // 较长的文本行
+            }
+            int n = channel.read(input);
+            if (n < 0) {
+                close();
+                return;
+            }
+            handler.received(n);
+            dispatch();
+        }
+
+        // 处理缓冲区中的完整消息，直到数据不足或被限流暂停
+        private void dispatch() throws IOException {
+            input.flip();
+            while (!closed.get() && !paused
+                    && (skipping > 0 || skippingLine ? skip() : handler.isBinary() ? dispatchFrame() : dispatchLine())) {
+                // 继续处理缓冲区中的下一条消息
+            }
+            input.compact();
+            if (pendingFrameSize > input.capacity()) {
+                input = resize(input, pendingFrameSize);
+            } else if (input.capacity() > READ_BUFFER_SIZE && input.position() <= READ_BUFFER_SIZE
+                    && pendingFrameSize <= READ_BUFFER_SIZE) {
+                input = resize(input, READ_BUFFER_SIZE);  // 大消息处理完后缩回默认大小
+            }
+        }
+
+        // 处理一行文本，缓冲区中没有完整的行时返回 false
+        private boolean dispatchLine() throws IOException {
+            int start = input.position();
+            int end = input.limit();
+            byte[] data = input.array();
+            for (int i = start; i < end; i++) {
+                if (data[i] == '\n') {
+                    int length = i - start;
+                    if (length > 0 && data[i - 1] == '\r') {
+                        length--;
+                    }
+                    int max = FrameLimits.maxLine(data, start, length);
+                    if (length > max) {
+                        input.position(i + 1);
+                        handler.rejectOversize(new FrameTooLargeException(length, max));
+                        return true;
+                    }
+                    String line = new String(data, start, length, ServerCore.LINE_CHARSET);
+                    long wait = handler.admitLine(line);
+                    if (wait > 0) {
+                        pause(wait);  // 这一行留在缓冲区中，恢复后重新检查
+                        return false;
+                    }
+                    input.position(i + 1);
+                    if (wait == 0) {
+                        handler.handleLine(line, data, start, length);
+                    }
+                    return true;
+                }
+            }
+            // 还没有读到行尾：已超过上限（加上可能的 \r）时丢弃这一行，否则允许缓冲区扩到上限
+            int length = end - start;
+            int max = FrameLimits.maxLine(data, start, length);
+            if (length > max + 1) {
+                input.position(end);
+                skippingLine = true;
+                handler.rejectOversize(new FrameTooLargeException(length, max));
+                return true;
+            }
+            lineCapacity = max + 2;
+            return false;
+        }
+
+        // 处理一个二进制帧，缓冲区中没有完整的帧时返回 false（必要时扩容）
+        private boolean dispatchFrame() throws IOException {
+            if (input.remaining() < BinaryProtocol.HEADER_SIZE) {
+                return false;
+            }
+            int start = input.position();
+            byte type = input.get(start);
+            int length = input.getInt(start + 1);
+            if (length < 0) {
+                throw new IOException("帧长度无效: " + length);
+            }
+            int max = FrameLimits.maxFrame(type);
+            if (length > max) {
+                // 不等负载到齐：跳过帧头，负载随到随丢，缓冲区不扩容
+                input.position(start + BinaryProtocol.HEADER_SIZE);
+                skipping = length;
+                handler.rejectOversize(new FrameTooLargeException(length, max));
+                return true;
+            }
+            int frameSize = BinaryProtocol.HEADER_SIZE + length;
+            if (input.remaining() < frameSize) {
+                pendingFrameSize = frameSize;
+                return false;
+            }
+            pendingFrameSize = 0;
+            long wait = handler.admitFrame(type, length);
+            if (wait > 0) {
+                pause(wait);
+                return false;
+            }
+            ByteBuffer payload = input.slice(start + BinaryProtocol.HEADER_SIZE, length);
+            input.position(start + frameSize);
+            if (wait == 0) {
+                handler.handleFrame(type, payload);
+            }
+            return true;
+        }
+
+        // 丢弃超长消息剩下的字节：丢弃完返回 true，继续处理之后的消息；数据不足时返回 false
+        private boolean skip() {
+            if (skippingLine) {
+                int end = input.limit();
+                byte[] data = input.array();
+                for (int i = input.position(); i < end; i++) {
+                    if (data[i] == '\n') {
+                        input.position(i + 1);
+                        skippingLine = false;
+                        return true;
+                    }
+                }
+                input.position(end);
+                return false;
+            }
+            int n = (int) Math.min(skipping, input.remaining());
+            input.position(input.position() + n);
+            skipping -= n;
+            return skipping == 0;
+        }
+
+        // DELAY 策略：停止读取，期间客户端的数据积压在 TCP 缓冲区中；到时恢复读取并处理缓冲区中剩下的消息
+        private void pause(long nanos) {
+            paused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            loop.schedule(this::resume, nanos);
+        }
+
+        private void resume() {
+            if (closed.get()) {
+                return;
+            }
+            paused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            try {
+                dispatch();
+            } catch (IOException | RuntimeException e) {
+                server.log("客户端连接异常: " + e.getMessage());
+                close();
+            }
+        }
+
+        // 把写模式缓冲区中的未处理数据复制到指定容量的新缓冲区
+        private ByteBuffer resize(ByteBuffer buffer, int capacity) {
+            ByteBuffer resized = ByteBuffer.allocate(Math.max(capacity, buffer.position()));
+            resized.put(buffer.flip());
+            return resized;
+        }
+
+        @Override
+        public void send(ByteBuffer data) throws IOException {
+            if (closed.get()) {
+                throw new IOException("连接已关闭");
+            }
+            outbound.add(data.duplicate());  // 共享的广播缓冲区不能被修改位置
+            server.metrics().messagesOut.increment();
+            scheduleFlush();
+        }
+
+        @Override
+        public void sendFile(ByteBuffer header, FileChannel file, long position, long count, boolean closeWhenDone)
+                throws IOException {
+            if (closed.get()) {
+                if (closeWhenDone) {
+                    file.close();
+                }
+                throw new IOException("连接已关闭");
+            }
+            outbound.add(new FileRegion(header.duplicate(), file, position, count, closeWhenDone));
+            server.metrics().messagesOut.increment();
+            scheduleFlush();
+        }
+
+        @Override
+        public void offer(ByteBuffer data) {
+            if (closed.get()) {
+                return;
+            }
+            // 事件循环线程自己不能等待队列腾出空间，否则没有人写出
+            if (!broadcasts.offer(data.duplicate(), !loop.inLoop())) {
+                close();  // DISCONNECT 策略
+                return;
+            }
+            server.metrics().messagesOut.increment();
+            try {
+                scheduleFlush();
+            } catch (IOException e) {
+                server.log("客户端连接异常: " + e.getMessage());
+                close();
+            }
+        }
+
+        @Override
+        public void flush() {
+            // 本轮事件循环结束时统一写出
+        }
+
+        // 事件循环线程上延迟到本轮结束时写出；其他线程连续提交的多次写出请求合并为一个事件循环任务
+        private void scheduleFlush() throws IOException {
+            if (loop.inLoop()) {
+                loop.markDirty(this);
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    flushScheduled.set(false);
+                    try {
+                        flushOutbound();
+                    } catch (IOException | RuntimeException e) {
+                        // 与 flushDirty 相同：写出失败（或键已被并发关闭）只关闭这个连接
+                        server.log("客户端连接异常: " + e.getMessage());
+                        close();
+                    }
+                });
+            }
+        }
+
+        // 尽量写出队列中的数据，写不完时注册 OP_WRITE 等待可写
+        void flushOutbound() throws IOException {
+            if (closed.get() || key == null) {
+                return;
+            }
+            while (refillPending()) {
+                boolean done;
+                if (pending.peekFirst() instanceof FileRegion) {
+                    done = ((FileRegion) pending.peekFirst()).transferTo(channel, server.metrics().bytesOut);
+                    if (done) {
+                        pending.pollFirst();
+                    }
+                } else {
+                    done = writeGathered();
+                }
+                if (!done) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        // 待写数据为空时先取全部直接回复，没有回复时再从有界队列取一批广播（其余仍可按策略丢弃）
+        private boolean refillPending() {
+            if (pending.isEmpty()) {
+                Object item;
+                while ((item = outbound.poll()) != null) {
+                    pending.add(item);
+                }
+                ByteBuffer buffer;
+                while (pending.size() < MAX_GATHER && (buffer = broadcasts.poll()) != null) {
+                    pending.add(buffer);
+                }
+            }
+            return !pending.isEmpty();
+        }
+
+        // 把队首连续的缓冲区合并为一次聚集写，全部写完时返回 true
+        private boolean writeGathered() throws IOException {
+            ByteBuffer[] buffers = loop.gathered;
+            int count = 0;
+            long bytes = 0;
+            for (Object item : pending) {
+                if (!(item instanceof ByteBuffer) || count == buffers.length || bytes >= NetOptions.WRITE_BUFFER) {
+                    break;
+                }
+                buffers[count] = (ByteBuffer) item;
+                bytes += buffers[count++].remaining();
+            }
+            try {
+                server.metrics().bytesOut.add(channel.write(buffers, 0, count));
+                for (int i = 0; i < count; i++) {
+                    if (buffers[i].hasRemaining()) {
+                        return false;
+                    }
+                    pending.pollFirst();
+                }
+                return true;
+            } finally {
+                Arrays.fill(buffers, 0, count, null);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (loop.inLoop()) {
+                closeNow();
+            } else {
+                loop.execute(this::closeNow);
+            }
+        }
+
+        void closeNow() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            broadcasts.clear();
+            Object item;
+            while ((item = pending.poll()) != null || (item = outbound.poll()) != null) {
+                if (item instanceof FileRegion) {
+                    ((FileRegion) item).release();
+                }
+            }
+            if (handler != null) {
+                server.unregisterClient(handler);
+                handler.onDisconnect();
+            }
+        }
+    }
+
+    // 事件循环的定时任务
+    private static final class Timer {
+        final long at;  // 到期时刻（System.nanoTime 时间）
+        final IoTask task;
+
+        Timer(long at, IoTask task) {
+            this.at = at;
+            this.task = task;
+        }
+    }
+
+    // 待发送的协议头和文件区间，可写时先写协议头，再用 transferTo 从文件直接写入套接字
+    private static final class FileRegion {
+        private final ByteBuffer header;
+        private final FileChannel file;
+        private final boolean closeWhenDone;
+        private long position;
+        private long remaining;
+
+        FileRegion(ByteBuffer header, FileChannel file, long position, long count, boolean closeWhenDone) {
+            this.header = header;
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+            this.closeWhenDone = closeWhenDone;
+        }
+
+        // 尽量写出剩余部分，全部写完时返回 true
+        boolean transferTo(SocketChannel channel, LongAdder written) throws IOException {
+            written.add(channel.write(header));
+            if (header.hasRemaining()) {
+                return false;
+            }
+            while (remaining > 0) {
+                long n = file.transferTo(position, remaining, channel);
+                if (n <= 0) {
+                    if (position >= file.size()) {
+                        throw new IOException("文件在发送过程中被截断");
+                    }
+                    return false;  // 套接字发送缓冲区已满
+                }
+                position += n;
+                remaining -= n;
+                written.add(n);
+            }
+            release();
+            return true;
+        }
+
+        void release() {
+            if (closeWhenDone) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    // 可抛出IO异常的事件循环任务
+    @FunctionalInterface
+    private interface IoTask {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 每个连接一个的有界广播发送队列。广播线程只负责入队，由连接自己的写出方出队写到套接字，
+ * 一个卡住的客户端只会填满自己的队列，不会拖慢其他客户端的广播。
+ * 队列满时按 SlowConsumerPolicy 处理。参数可通过系统属性调整：
+ * broadcast.policy、broadcast.queue（队列长度，默认1024）、broadcast.block_ms（BLOCK 策略的等待时间，默认100）。
+ */
+final class OutboundQueue {
+    static final SlowConsumerPolicy POLICY = SlowConsumerPolicy.fromProperty();
+    static final int CAPACITY = Math.max(1, Integer.getInteger("broadcast.queue", 1024));
+    static final long BLOCK_MS = Math.max(0, Long.getLong("broadcast.block_ms", 100));
+
+    // 全局计数：因队列已满而丢弃的广播消息数、因处理过慢被断开的客户端数
+    static final LongAdder DROPPED = new LongAdder();
+    static final LongAdder DISCONNECTED = new LongAdder();
+
+    private final ArrayBlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private volatile boolean rejected;  // DISCONNECT 策略已触发，连接关闭前不再接收数据
+
+    // 入队一条共享的广播数据（调用方保证不会修改它），返回 false 表示应断开该连接。
+    // canBlock 为 false 时（例如调用方就是负责写出的事件循环线程）BLOCK 策略不等待
+    boolean offer(ByteBuffer data, boolean canBlock) {
+        if (rejected) {
+            return false;
+        }
+        if (queue.offer(data)) {
+            return true;
+        }
+        switch (POLICY) {
+            case DISCONNECT:
+                rejected = true;
+                queue.clear();
+                DISCONNECTED.increment();
+                return false;
+            case BLOCK:
+                try {
+                    if (canBlock && queue.offer(data, BLOCK_MS, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                DROPPED.increment();
+                return true;
+            default:
+                // 与写出方并发出队时可能需要重试，最多丢弃到能放入为止
+                do {
+                    if (queue.poll() != null) {
+                        DROPPED.increment();
+                    }
+                } while (!queue.offer(data));
+                return true;
+        }
+    }
+
+    ByteBuffer poll() {
+        return queue.poll();
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    void clear() {
+        queue.clear();
+    }
+}
@@ -0,0 +1,58 @@
+package server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SqliteUtil 管理的数据库连接，缓存按 SQL 预编译好的语句。
+ * 同一时刻只能被一个线程使用；读连接 close() 时归还连接池，写连接 close() 时真正关闭。
+ */
+public final class PooledConnection implements AutoCloseable {
+    private final Connection connection;
+    private final boolean pooled;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    PooledConnection(Connection connection, boolean pooled) {
+        this.connection = connection;
+        this.pooled = pooled;
+    }
+
+    // 获取缓存的预编译语句，首次使用时编译；调用方不要关闭返回的语句
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null || stmt.isClosed()) {
+            stmt = connection.prepareStatement(sql);
+            statements.put(sql, stmt);
+        }
+        return stmt;
+    }
+
+    public Connection connection() {
+        return connection;
+    }
+
+    @Override
+    public void close() {
+        if (pooled) {
+            SqliteUtil.releaseReader(this);
+        } else {
+            closePhysical();
+        }
+    }
+
+    // 关闭缓存的语句和底层连接
+    void closePhysical() {
+        for (PreparedStatement stmt : statements.values()) {
+            try {
+                stmt.close();
+            } catch (SQLException ignored) {}
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException ignored) {}
+    }
+}
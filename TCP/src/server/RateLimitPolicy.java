@@ -0,0 +1,19 @@
+package server;
+
+// 超出限流时的处理方式，通过 -Dlimit.policy 选择
+public enum RateLimitPolicy {
+    DELAY,       // 暂停读取该连接，令牌足够后再处理，压力经 TCP 传回客户端
+    DROP,        // 丢弃超出的消息并提示客户端；分块上传的消息和数据块不丢弃，改为暂停读取
+    DISCONNECT;  // 断开该客户端
+
+    // 读取系统属性，未指定时暂停读取
+    public static RateLimitPolicy fromProperty() {
+        String value = System.getProperty("limit.policy", "delay");
+        for (RateLimitPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(value.trim())) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("未知的限流策略: " + value);
+    }
+}
@@ -0,0 +1,141 @@
+package server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 客户端限流。每个连接和每个来源地址各有消息数（条/秒）和上传字节数（字节/秒）两个令牌桶，桶容量为一秒的量；
+ * 接受连接时另外限制总连接数和每秒接受的连接数。地址的桶在该地址的第一个连接建立时创建、最后一个连接断开时移除，
+ * 处理消息时只访问连接自己持有的桶（CAS 更新），不查表也不加全局锁。
+ * 参数（0 表示不限制，默认均为0）：limit.messages、limit.upload_bytes（每个连接），
+ * limit.address_messages、limit.address_upload_bytes（每个地址），limit.policy（见 RateLimitPolicy）；
+ * 上传数据块只计入字节数，不计入消息数。
+ * 连接数和接受速率见 ServerConfig。
+ */
+final class RateLimiter {
+    static final RateLimitPolicy POLICY = RateLimitPolicy.fromProperty();
+    private static final int MESSAGES = Math.max(0, Integer.getInteger("limit.messages", 0));
+    private static final long UPLOAD_BYTES = Math.max(0, Long.getLong("limit.upload_bytes", 0));
+    private static final int ADDRESS_MESSAGES = Math.max(0, Integer.getInteger("limit.address_messages", 0));
+    private static final long ADDRESS_UPLOAD_BYTES = Math.max(0, Long.getLong("limit.address_upload_bytes", 0));
+
+    private final int maxConnections;
+    private final TokenBucket accepts;  // 每秒接受的连接数，不限制时为 null
+    private final ConcurrentHashMap<InetAddress, AddressBuckets> addresses = new ConcurrentHashMap<>();
+
+    // 全局计数：超出限流被暂停读取的次数、丢弃的消息数、断开的客户端数，以及超过最大连接数被拒绝的连接数
+    final LongAdder delayed = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder disconnected = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+
+    RateLimiter(int maxConnections, int acceptRate) {
+        this.maxConnections = maxConnections;
+        this.accepts = acceptRate > 0 ? new TokenBucket(acceptRate, acceptRate) : null;
+    }
+
+    // 接受下一个连接之前调用：返回需要等待的纳秒数，0 表示现在可以接受
+    long acceptDelay() {
+        return accepts != null ? accepts.tryAcquire(1, System.nanoTime()) : 0;
+    }
+
+    // 取了令牌之后并没有接受到连接时退还
+    void refundAccept() {
+        if (accepts != null) {
+            accepts.refund(1);
+        }
+    }
+
+    // 已有 current 个连接时是否拒绝新连接，拒绝时计数，由调用方关闭连接
+    boolean rejectConnection(int current) {
+        if (maxConnections > 0 && current >= maxConnections) {
+            rejected.increment();
+            return true;
+        }
+        return false;
+    }
+
+    // 新连接的限流状态，连接断开时调用 close
+    Client open(InetAddress address) {
+        AddressBuckets shared = null;
+        if (ADDRESS_MESSAGES > 0 || ADDRESS_UPLOAD_BYTES > 0) {
+            shared = addresses.compute(address, (key, buckets) -> {
+                if (buckets == null) {
+                    buckets = new AddressBuckets();
+                }
+                buckets.connections++;
+                return buckets;
+            });
+        }
+        return new Client(address, shared);
+    }
+
+    void close(Client client) {
+        if (client.shared != null) {
+            addresses.computeIfPresent(client.address, (key, buckets) -> --buckets.connections == 0 ? null : buckets);
+        }
+    }
+
+    // 同一地址的所有连接共用的桶
+    private static final class AddressBuckets {
+        final TokenBucket messages = ADDRESS_MESSAGES > 0 ? new TokenBucket(ADDRESS_MESSAGES, ADDRESS_MESSAGES) : null;
+        final TokenBucket bytes = ADDRESS_UPLOAD_BYTES > 0
+                ? new TokenBucket(ADDRESS_UPLOAD_BYTES, ADDRESS_UPLOAD_BYTES) : null;
+        int connections;  // 只在 ConcurrentHashMap.compute 中访问
+    }
+
+    // 一个连接的限流状态：自己的桶和所在地址的桶
+    static final class Client {
+        private final InetAddress address;
+        private final AddressBuckets shared;
+        private final TokenBucket[] buckets;  // 启用的桶，依次取令牌
+        private final boolean[] countsBytes;   // 对应的桶按上传字节计数还是按消息计数
+
+        private Client(InetAddress address, AddressBuckets shared) {
+            this.address = address;
+            this.shared = shared;
+            TokenBucket[] all = {
+                    MESSAGES > 0 ? new TokenBucket(MESSAGES, MESSAGES) : null,
+                    shared != null ? shared.messages : null,
+                    UPLOAD_BYTES > 0 ? new TokenBucket(UPLOAD_BYTES, UPLOAD_BYTES) : null,
+                    shared != null ? shared.bytes : null};
+            int count = 0;
+            for (TokenBucket bucket : all) {
+                if (bucket != null) {
+                    count++;
+                }
+            }
+            buckets = new TokenBucket[count];
+            countsBytes = new boolean[count];
+            for (int i = 0, j = 0; i < all.length; i++) {
+                if (all[i] != null) {
+                    buckets[j] = all[i];
+                    countsBytes[j++] = i >= 2;
+                }
+            }
+        }
+
+        // 为一条消息取令牌：返回 0 表示放行，否则返回需要等待的纳秒数，此时已取的令牌全部退还
+        long acquire(int messages, long bytes) {
+            long now = System.nanoTime();
+            for (int i = 0; i < buckets.length; i++) {
+                long cost = countsBytes[i] ? bytes : messages;
+                if (cost == 0) {
+                    continue;
+                }
+                long wait = buckets[i].tryAcquire(cost, now);
+                if (wait > 0) {
+                    for (int j = 0; j < i; j++) {
+                        long taken = countsBytes[j] ? bytes : messages;
+                        if (taken > 0) {
+                            buckets[j].refund(taken);
+                        }
+                    }
+                    return wait;
+                }
+            }
+            return 0;
+        }
+    }
+}
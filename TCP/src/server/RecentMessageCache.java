@@ -0,0 +1,116 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 最近消息缓存：每个房间和全局广播各一个环形缓冲区，保存最近若干条已编码好的 CHAT 帧，
+ * 客户端连接、重连或加入房间时按"某个消息id之后"回放，不查询数据库，重连风暴不会压到 SQLite 上。
+ * 每个环按条数和字节数限制，环的个数也有上限，超出时淘汰最久没有新消息的房间，内存占用有界。
+ */
+final class RecentMessageCache {
+    static final String GLOBAL = "";  // 服务器广播使用的环
+    private static final int CAPACITY = Integer.getInteger("replay.messages", 200);      // 每个环最多保存的消息数
+    private static final int MAX_BYTES = Integer.getInteger("replay.bytes", 256 * 1024); // 每个环最多保存的字节数
+    private static final int MAX_RINGS = Integer.getInteger("replay.rooms", 1024);       // 最多缓存的房间数
+    static final int NODE_BITS = 10;                        // 消息id低位的节点标记位数
+    static final int MAX_NODE_TAG = (1 << NODE_BITS) - 1;
+
+    // 消息id = 计数 << NODE_BITS | 节点标记。计数在本次运行内单调递增，以启动时间为起点，
+    // 服务器重启后新的id仍大于客户端记住的旧id；节点标记在集群内各不相同，不同节点同时分配的id也不会相同。
+    // 集群中其他节点的消息沿用源节点的id，投递前 observe 把计数推到其后，本节点之后的id大于所有已投递的id
+    private final AtomicLong clock = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final long nodeTag;
+    private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+
+    RecentMessageCache(int nodeTag) {
+        if (nodeTag < 0 || nodeTag > MAX_NODE_TAG) {
+            throw new IllegalArgumentException("节点标记应在 0-" + MAX_NODE_TAG + " 之间: " + nodeTag);
+        }
+        this.nodeTag = nodeTag;
+    }
+
+    long nextId() {
+        return clock.incrementAndGet() << NODE_BITS | nodeTag;
+    }
+
+    // 记录一条由其他节点分配id的消息，之后本节点分配的id都大于它
+    void observe(long id) {
+        clock.accumulateAndGet(id >>> NODE_BITS, Math::max);
+    }
+
+    // 保存一条已编码的帧，帧在之后只被读取，可以与在线投递共享
+    void add(String room, long id, ByteBuffer frame) {
+        Ring ring = rings.get(room);
+        if (ring == null) {
+            ring = rings.computeIfAbsent(room, name -> new Ring());
+            if (rings.size() > MAX_RINGS) {
+                evictIdlest();
+            }
+        }
+        ring.add(id, frame);
+    }
+
+    // id 大于 sinceId 的缓存消息，按写入顺序返回
+    List<ByteBuffer> since(String room, long sinceId) {
+        Ring ring = rings.get(room);
+        return ring != null ? ring.since(sinceId) : List.of();
+    }
+
+    // 只在新建环后超出上限时调用，遍历一遍找到最久没有写入的房间
+    private void evictIdlest() {
+        String idlest = null;
+        long oldest = Long.MAX_VALUE;
+        for (Map.Entry<String, Ring> entry : rings.entrySet()) {
+            long lastId = entry.getValue().lastId;
+            if (!entry.getKey().equals(GLOBAL) && lastId < oldest) {
+                oldest = lastId;
+                idlest = entry.getKey();
+            }
+        }
+        if (idlest != null) {
+            rings.remove(idlest);
+        }
+    }
+
+    // 固定容量的环：id 和帧分别存放在两个数组中，写满后覆盖最旧的一条
+    private static final class Ring {
+        private final long[] ids = new long[CAPACITY];
+        private final ByteBuffer[] frames = new ByteBuffer[CAPACITY];
+        private int head;   // 最旧一条的下标
+        private int size;
+        private long bytes;
+        volatile long lastId = Long.MAX_VALUE;  // 新建但尚未写入的环不会被淘汰
+
+        synchronized void add(long id, ByteBuffer frame) {
+            while (size > 0 && (size == CAPACITY || bytes + frame.remaining() > MAX_BYTES)) {
+                bytes -= frames[head].remaining();
+                frames[head] = null;
+                head = (head + 1) % CAPACITY;
+                size--;
+            }
+            int tail = (head + size) % CAPACITY;
+            ids[tail] = id;
+            frames[tail] = frame;
+            bytes += frame.remaining();
+            size++;
+            lastId = id;
+        }
+
+        // 同一个房间的消息可能由不同连接的线程并发写入，id 不一定严格按写入顺序，因此逐条比较
+        synchronized List<ByteBuffer> since(long sinceId) {
+            List<ByteBuffer> result = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) % CAPACITY;
+                if (ids[index] > sinceId) {
+                    result.add(frames[index]);
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 房间注册表：房间名到成员集合的并发映射，按房间名 O(1) 找到成员，投递时只遍历该房间的成员。
+ * 加入和离开在 ConcurrentHashMap 对应桶上原子地修改成员集合，不同房间互不阻塞，没有全局锁；
+ * 最后一个成员离开时删除房间，空房间不会累积。
+ */
+class RoomRegistry<M> {
+    private final ConcurrentHashMap<String, Set<M>> rooms = new ConcurrentHashMap<>();
+
+    // 加入房间，房间不存在时创建，返回 false 表示已经是成员
+    boolean join(String room, M member) {
+        boolean[] added = new boolean[1];
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            added[0] = members.add(member);
+            return members;
+        });
+        return added[0];
+    }
+
+    // 离开房间，返回 false 表示不是成员
+    boolean leave(String room, M member) {
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room, (name, members) -> {
+            removed[0] = members.remove(member);
+            return members.isEmpty() ? null : members;
+        });
+        return removed[0];
+    }
+
+    // 房间当前的成员，可在遍历时并发加入/离开；房间不存在时返回空集合
+    Set<M> members(String room) {
+        Set<M> members = rooms.get(room);
+        return members != null ? members : Collections.emptySet();
+    }
+
+    int roomCount() {
+        return rooms.size();
+    }
+}
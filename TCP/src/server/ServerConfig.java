@@ -0,0 +1,63 @@
+package server;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * 服务器启动参数。IO模式取自第一个命令行参数或 -Dserver.mode，其余通过系统属性设置：
+ * server.port（监听端口，默认54321）、server.upload_dir（上传目录，默认 uploads）、
+ * server.nio_loops（NIO事件循环线程数，默认CPU核数的一半）、
+ * server.metrics_port（本机 Prometheus 指标端口，默认9464，0 表示不启动）。
+ * 心跳：server.heartbeat_ms（连接空闲多久后发送 PING，默认30000，0 表示不检测空闲连接）、
+ * server.idle_timeout_ms（支持心跳的连接多久没有收到数据即断开，默认90000）、
+ * server.legacy_idle_timeout_ms（不支持心跳的连接多久没有收到数据即断开，默认0表示不断开）。
+ * 接受连接：server.max_connections（最大连接数，超出时立即关闭新连接）、server.accept_rate（每秒接受的连接数），
+ * 默认0表示不限制；每个客户端的限流见 RateLimiter。
+ * 集群：cluster.port（节点间转发的监听端口，默认0表示不加入集群）、cluster.peers（其他节点的 host:port 列表，逗号分隔）、
+ * cluster.node（节点名，集群内唯一，默认 node-监听端口）、cluster.bind（集群端口监听的地址，默认回环地址 127.0.0.1）、
+ * cluster.secret（节点间握手的共享密钥，加入集群时必须设置，所有节点相同）、
+ * cluster.node_tag（写入消息id低位的节点标记，0-1023，集群内唯一，默认由节点名计算，与对端相同时拒绝连接）。
+ */
+final class ServerConfig {
+    final ServerMode mode;    // 服务器IO模式
+    final int port;           // 服务器监听端口
+    final Path uploadDir;     // 上传文件保存目录
+    final int nioLoops;       // NIO事件循环线程数
+    final int metricsPort;    // /metrics 端点的端口，只监听回环地址
+    final int clusterPort;    // 集群转发端口，0 表示单机运行
+    final String clusterPeers;  // 其他节点的集群端口
+    final String nodeId;      // 集群内的节点名
+    final String clusterBind;   // 集群端口监听的地址
+    final String clusterSecret; // 节点间握手的共享密钥
+    final int nodeTag;        // 消息id中的节点标记
+    final long heartbeatMs;         // 空闲多久后发送 PING，0 表示关闭空闲检测
+    final long idleTimeoutMs;       // 支持心跳的连接的空闲上限
+    final long legacyIdleTimeoutMs; // 不支持心跳的连接的空闲上限，0 表示不限
+    final int maxConnections;  // 最大连接数，0 表示不限
+    final int acceptRate;      // 每秒接受的连接数，0 表示不限
+
+    ServerConfig(ServerMode mode) {
+        this.mode = mode;
+        this.port = Integer.getInteger("server.port", 54321);
+        this.uploadDir = Paths.get(System.getProperty("server.upload_dir", "uploads"));
+        this.nioLoops = Math.max(1, Integer.getInteger("server.nio_loops",
+                Runtime.getRuntime().availableProcessors() / 2));
+        this.metricsPort = Integer.getInteger("server.metrics_port", 9464);
+        this.clusterPort = Integer.getInteger("cluster.port", 0);
+        this.clusterPeers = System.getProperty("cluster.peers", "");
+        this.nodeId = System.getProperty("cluster.node", "node-" + port);
+        this.clusterBind = System.getProperty("cluster.bind", "127.0.0.1");
+        this.clusterSecret = System.getProperty("cluster.secret", "");
+        this.nodeTag = Integer.getInteger("cluster.node_tag",
+                Math.floorMod(nodeId.hashCode(), RecentMessageCache.MAX_NODE_TAG + 1));
+        this.heartbeatMs = Long.getLong("server.heartbeat_ms", 30000);
+        this.idleTimeoutMs = Long.getLong("server.idle_timeout_ms", 90000);
+        this.legacyIdleTimeoutMs = Long.getLong("server.legacy_idle_timeout_ms", 0);
+        this.maxConnections = Integer.getInteger("server.max_connections", 0);
+        this.acceptRate = Integer.getInteger("server.accept_rate", 0);
+    }
+
+    static ServerConfig fromArgs(String[] args) {
+        return new ServerConfig(ServerMode.fromArgs(args));
+    }
+}
@@ -0,0 +1,1382 @@
+package server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import util.Base64Util;
+import util.BinaryProtocol;
+import util.FrameCompression;
+import util.FrameLimits;
+import util.FrameTooLargeException;
+import util.HistoryEntry;
+import util.NetOptions;
+import util.ProtocolReader;
+
+/**
+ * 不依赖 Swing 的服务器核心：监听端口、管理连接和房间、处理协议。
+ * 可以由 ServerMain 无界面启动，也可以由 ServerGUI 启动并作为观察者附加；
+ * 日志通过 ServerObserver 通知，网络线程不等待任何界面刷新。
+ */
+class ServerCore {
+    static final Charset LINE_CHARSET = Charset.defaultCharset();  // 文本协议的行编码，与客户端的 PrintWriter 一致
+    private static final int MAX_ACTIVE_UPLOADS = 4;  // 每个连接同时进行的分块上传数上限
+    private static final int DOWNLOAD_SEGMENT_SIZE = 4 * 1024 * 1024;  // 下载时每个数据段的最大字节数
+    private static final int MAX_ROOMS_PER_CLIENT = 64;  // 每个连接最多加入的房间数
+    private static final int MAX_ROOM_NAME = 64;         // 房间名最大长度
+    private static final int UPLOAD_WINDOW = 64 * 1024;     // 旧协议整文件上传每次解码的字符数（4的倍数）
+    private static final int ROOM_LOCK_STRIPES = 64;        // 房间发送锁的分段数
+    private static final ByteBuffer PING_FRAME = BinaryProtocol.heartbeat(BinaryProtocol.PING, 0);  // 所有连接共享
+
+    private final ServerConfig config;  // 端口、目录、IO模式等启动参数
+    private final ServerMode mode;      // 服务器IO模式
+    private ServerSocket serverSocket;  // 服务器套接字
+    private ExecutorService executor;   // 线程池
+    private NioServer nioServer;        // NIO模式下的服务器核心
+    private ClusterRelay relay;         // 与其他节点之间的消息转发，单机运行时为 null
+    private IdleReaper reaper;          // 心跳和空闲连接检测，未启动或已关闭心跳时为 null
+    private RateLimiter limiter;        // 连接数和每个客户端的限流，启动监听时创建（基准测试直接调用处理器，不限流）
+    private ExecutorService historyExecutor;  // 数据库读取线程（聊天记录查询、下载文件名解析），不占用网络线程
+    private AsyncLogWriter logWriter;   // 聊天/文件记录的异步批量写入器
+    private final FileStore fileStore;  // 按内容哈希保存的上传文件
+    private final Set<ClientHandler> clients = ConcurrentHashMap.newKeySet(); // 已连接的客户端（并发集合，无需加锁）
+    private final RoomRegistry<ClientHandler> rooms = new RoomRegistry<>();     // 房间 -> 成员
+    private final RecentMessageCache recent;        // 最近的房间消息和广播，用于断线回放
+    private final Object[] roomLocks = new Object[ROOM_LOCK_STRIPES];  // 按房间名分段的发送锁，见 roomLock
+    private final List<ServerObserver> observers = new CopyOnWriteArrayList<>(); // 日志观察者
+    private final ServerMetrics metrics = new ServerMetrics(this);            // 计数器和耗时，JMX 和 /metrics 共用
+    private final CountDownLatch stopped = new CountDownLatch(1);              // 关闭后释放 awaitShutdown()
+
+    // 版本信息内部类
+    private static class VersionInfo {
+        public static final String CURRENT_VERSION = "v1.1";
+        public static final String UPDATE_URL = "https://github.com/zzzzjal/TCP/releases/download/" + CURRENT_VERSION + "/TCP.jar";
+
+        // 版本比较方法
+        public static boolean isNewerVersion(String version1, String version2) {
+            // 移除版本号中的'v'前缀
+            String v1 = version1.replace("v", "");
+            String v2 = version2.replace("v", "");
+            
+            // 分割版本号
+            String[] v1Parts = v1.split("\\.");
+            String[] v2Parts = v2.split("\\.");
+            
+            // 比较主版本号
+            int v1Major = Integer.parseInt(v1Parts[0]);
+            int v2Major = Integer.parseInt(v2Parts[0]);
+            if (v1Major != v2Major) {
+                return v1Major < v2Major;
+            }
+            
+            // 比较次版本号
+            int v1Minor = Integer.parseInt(v1Parts[1]);
+            int v2Minor = Integer.parseInt(v2Parts[1]);
+            return v1Minor < v2Minor;
+        }
+    }
+
+    ServerCore(ServerConfig config) {
+        this.config = config;
+        this.mode = config.mode;
+        this.fileStore = new FileStore(config.uploadDir);
+        this.recent = new RecentMessageCache(config.nodeTag);
+        for (int i = 0; i < roomLocks.length; i++) {
+            roomLocks[i] = new Object();
+        }
+    }
+
+    void addObserver(ServerObserver observer) {
+        observers.add(observer);
+    }
+
+    void removeObserver(ServerObserver observer) {
+        observers.remove(observer);
+    }
+
+    // 输出一条服务器日志，观察者的回调在调用线程上执行，必须很快返回
+    void log(String message) {
+        for (ServerObserver observer : observers) {
+            observer.onLog(message);
+        }
+    }
+
+    // 服务器发送的广播消息，加入集群时同时转发给其他节点
+    void broadcast(String message) {
+        synchronized (roomLock(RecentMessageCache.GLOBAL)) {
+            long id = recent.nextId();
+            broadcastToClients(id, message);
+            if (relay != null) {
+                relay.publish(id, RecentMessageCache.GLOBAL, message);
+            }
+        }
+        log("服务器发送: " + message);
+    }
+
+    // 其他节点转发来的广播或房间消息，只投递给本节点的客户端。
+    // 沿用源节点分配的消息id，并让本节点之后分配的id大于它，客户端换节点后按已见过的id回放仍然有效
+    private void deliverRelayed(String origin, long id, String room, String text) {
+        recent.observe(id);
+        if (room.equals(RecentMessageCache.GLOBAL)) {
+            broadcastToClients(id, text);
+            log("集群广播（来自 " + origin + "）: " + text);
+        } else {
+            routeToRoom(id, room, null, text);
+        }
+    }
+
+    // 同一房间（广播为 GLOBAL）的消息在这把锁内分配id、放入成员的发送队列并交给集群转发，
+    // 本地队列、回放缓存和转发序号中的顺序都与id顺序一致；只做入队，不做网络IO，不同房间大多不会争用
+    private Object roomLock(String room) {
+        return roomLocks[Math.floorMod(room.hashCode(), roomLocks.length)];
+    }
+
+    int clientCount() {
+        return clients.size();
+    }
+
+    ServerMetrics metrics() {
+        return metrics;
+    }
+
+    AsyncLogWriter logWriter() {
+        return logWriter;
+    }
+
+    RateLimiter limiter() {
+        return limiter;
+    }
+
+    IdleReaper reaper() {
+        return reaper;
+    }
+
+    ClusterRelay relay() {
+        return relay;
+    }
+
+    // 每个连接一行统计，供 JMX 查看
+    String[] connectionStats() {
+        return clients.stream().map(ClientHandler::describe).toArray(String[]::new);
+    }
+
+    // 阻塞直到服务器关闭
+    void awaitShutdown() throws InterruptedException {
+        stopped.await();
+    }
+
+    // 启动服务器
+    void start() {
+        startStorage(new AsyncLogWriter(this::log));
+        startCluster();
+        startReaper();
+        limiter = new RateLimiter(config.maxConnections, config.acceptRate);
+        metrics.start(config.metricsPort);
+        if (mode == ServerMode.NIO) {
+            startNioServer();
+            return;
+        }
+        executor = mode == ServerMode.VIRTUAL
+                ? Executors.newVirtualThreadPerTaskExecutor()  // 每个连接一个虚拟线程
+                : Executors.newCachedThreadPool();  // 创建线程池
+        executor.execute(() -> {
+            try {
+                // 通过 ServerSocketChannel 打开，接受的连接带有 SocketChannel，文件下载可以零拷贝发送
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                NetOptions.apply(channel.socket());
+                serverSocket = channel.bind(new InetSocketAddress(config.port), NetOptions.BACKLOG).socket();
+                log("服务器启动，监听端口：" + config.port
+                        + (mode == ServerMode.VIRTUAL ? "（虚拟线程模式）" : ""));
+
+                while (!serverSocket.isClosed()) {
+                    long wait = limiter.acceptDelay();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);  // 超过接受速率时暂不接受，新连接留在内核的等待队列中
+                        continue;
+                    }
+                    Socket clientSocket = serverSocket.accept();  // 接受客户端连接
+                    if (limiter.rejectConnection(clients.size())) {
+                        log("连接数已达上限，拒绝连接：" + clientSocket.getInetAddress());
+                        clientSocket.close();
+                        continue;
+                    }
+                    NetOptions.apply(clientSocket);
+                    log("客户端已连接：" + clientSocket.getInetAddress());
+
+                    // 为客户端创建处理线程
+                    executor.execute(registerClient(clientSocket, new StreamClientOutput(clientSocket, executor, metrics)));
+                }
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    log("服务器异常: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                // 服务器关闭
+            }
+        });
+    }
+
+    // 启动聊天记录写入器和数据库查询线程并准备上传目录，不监听端口。
+    // 基准测试直接调用，可以传入不写数据库的写入器，只测量消息处理本身
+    void startStorage(AsyncLogWriter writer) {
+        logWriter = writer;
+        logWriter.start();
+        historyExecutor = Executors.newFixedThreadPool(SqliteUtil.readerCount());
+        try {
+            fileStore.open();
+        } catch (IOException e) {
+            log("初始化上传目录失败: " + e.getMessage());
+        }
+    }
+
+    // 配置了集群端口时加入集群，失败时以单机方式继续运行
+    private void startCluster() {
+        if (config.clusterPort <= 0) {
+            return;
+        }
+        try {
+            relay = new ClusterRelay(config.nodeId, config.nodeTag, new InetSocketAddress(config.clusterBind, config.clusterPort),
+                    config.clusterSecret, ClusterRelay.parsePeers(config.clusterPeers), this::deliverRelayed, this::log);
+            relay.start();
+        } catch (IOException | IllegalArgumentException e) {
+            relay = null;
+            log("加入集群失败: " + e.getMessage());
+        }
+    }
+
+    // 心跳间隔大于0时启动空闲连接检测，之后接受的连接都登记到时间轮
+    private void startReaper() {
+        if (config.heartbeatMs <= 0) {
+            return;
+        }
+        reaper = new IdleReaper(config.heartbeatMs, config.idleTimeoutMs, config.legacyIdleTimeoutMs);
+        reaper.start();
+    }
+
+    // 以NIO模式启动服务器
+    private void startNioServer() {
+        try {
+            nioServer = new NioServer(this, config.port, config.nioLoops);
+            nioServer.start();
+            log("NIO服务器启动，监听端口：" + config.port + "，事件循环线程数：" + config.nioLoops);
+        } catch (IOException e) {
+            log("服务器异常: " + e.getMessage());
+        }
+    }
+
+    // 登记新客户端，并创建对应的消息处理器
+    ClientHandler registerClient(Socket socket, ClientOutput output) {
+        ClientHandler handler = new ClientHandler(socket, output);
+        clients.add(handler);
+        metrics.accepted.increment();
+        if (reaper != null) {
+            reaper.register(handler);
+        }
+        return handler;
+    }
+
+    // 房间名不能为空、过长或包含协议分隔符
+    private static boolean isValidRoomName(String room) {
+        return !room.isEmpty() && room.length() <= MAX_ROOM_NAME
+                && room.indexOf('|') < 0 && room.indexOf('\n') < 0 && room.indexOf('\r') < 0;
+    }
+
+    // 客户端断开时移除其处理器
+    void unregisterClient(ClientHandler handler) {
+        if (clients.remove(handler) && handler.limits != null) {
+            limiter.close(handler.limits);
+        }
+    }
+
+    // 广播消息给所有客户端
+    // 文本行和二进制帧各编码一次，由所有同协议的连接共享；遍历并发集合时不持有监视器。
+    // 二进制帧带消息id，同时存入回放缓存
+    private void broadcastToClients(long id, String message) {
+        long start = System.nanoTime();
+        ByteBuffer binaryFrame = BinaryProtocol.chat(id, RecentMessageCache.GLOBAL, message);
+        recent.add(RecentMessageCache.GLOBAL, id, binaryFrame);
+        SharedFrame shared = new SharedFrame(binaryFrame);
+        ByteBuffer textLine = null;
+        for (ClientHandler client : clients) {
+            ByteBuffer data;
+            if (client.binary) {
+                data = shared.forClient(client);
+            } else {
+                data = textLine != null ? textLine : (textLine = base64Line("", message));
+            }
+            client.output.offer(data);  // 只入队，慢客户端不会拖慢广播
+        }
+        metrics.broadcastFanout.record(System.nanoTime() - start);
+    }
+
+    // 把房间消息投递给房间内除发送者以外的成员，只遍历该房间的成员集合
+    private void routeToRoom(long id, String room, ClientHandler sender, String text) {
+        long start = System.nanoTime();
+        ByteBuffer binaryFrame = BinaryProtocol.chat(id, room, text);
+        recent.add(room, id, binaryFrame);
+        SharedFrame shared = new SharedFrame(binaryFrame);
+        ByteBuffer textLine = null;
+        for (ClientHandler member : rooms.members(room)) {
+            if (member == sender) {
+                continue;
+            }
+            ByteBuffer data;
+            if (member.binary) {
+                data = shared.forClient(member);
+            } else {
+                data = textLine != null ? textLine : (textLine = base64Line("ROOM_MSG|" + room + "|", text));
+            }
+            member.output.offer(data);
+        }
+        metrics.broadcastFanout.record(System.nanoTime() - start);
+    }
+
+    // 由多个连接共享的二进制帧：按连接协商的压缩算法取用，同一算法只压缩一次（仅在一次投递中使用）
+    private static final class SharedFrame {
+        private final ByteBuffer plain;
+        private String codec;         // 最近一次压缩使用的算法
+        private ByteBuffer compressed;
+
+        SharedFrame(ByteBuffer plain) {
+            this.plain = plain;
+        }
+
+        ByteBuffer forClient(ClientHandler client) {
+            FrameCompression compression = client.compression;
+            if (compression == null) {
+                return plain;
+            }
+            if (!compression.name().equals(codec)) {
+                compressed = compression.compress(plain);
+                codec = compression.name();
+            }
+            return compressed;
+        }
+    }
+
+    // 文本协议的一行（行尾加换行符）
+    private static ByteBuffer encodeLine(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(LINE_CHARSET));
+    }
+
+    // 以 prefix 开头、以 text 的Base64编码结尾的一行，直接编码到发送缓冲区，不生成中间的Base64字符串：
+    // 整个数组编码到行的开头（java.util.Base64 的无分配路径），再后移让出前缀的位置
+    private static ByteBuffer base64Line(String prefix, String text) {
+        byte[] head = prefix.getBytes(LINE_CHARSET);
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        byte[] line = new byte[head.length + Base64Util.encodedLength(data.length) + 1];
+        int encoded = Base64Util.encode(data, 0, data.length, line, 0);
+        if (head.length > 0) {
+            System.arraycopy(line, 0, line, head.length, encoded);
+            System.arraycopy(head, 0, line, 0, head.length);
+        }
+        line[line.length - 1] = '\n';
+        return ByteBuffer.wrap(line);
+    }
+
+    // 关闭服务器
+    void shutdown() {
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+            if (nioServer != null) {
+                nioServer.close();
+            }
+            if (relay != null) {
+                relay.close();
+            }
+            if (reaper != null) {
+                reaper.close();
+            }
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (historyExecutor != null) {
+                historyExecutor.shutdownNow();
+            }
+            for (ClientHandler client : clients) {
+                client.output.close();
+            }
+            clients.clear();
+            metrics.close();
+            log("广播统计: 丢弃消息 " + OutboundQueue.DROPPED.sum()
+                    + " 条，断开慢客户端 " + OutboundQueue.DISCONNECTED.sum() + " 个");
+            if (logWriter != null) {
+                logWriter.close();  // 所有连接关闭后，把队列中剩余的记录写入数据库
+            }
+            SqliteUtil.closeReaders();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    // 客户端处理线程
+    // 握手前使用Base64文本行协议；客户端在 VERSION_CHECK 中声明并被接受后，改用二进制帧协议
+    class ClientHandler implements Runnable, IdleReaper.Session {
+        private final Socket socket;      // 客户端套接字
+        private final ClientOutput output;  // 客户端输出通道
+        private final Map<String, ChunkedUpload> uploads = new HashMap<>();  // 进行中的分块上传（仅由本连接的处理线程访问）
+        private final Set<String> joinedRooms = new HashSet<>();  // 已加入的房间（仅由本连接的处理线程访问）
+        private volatile boolean binary;  // 是否已切换到二进制帧协议
+        private volatile FrameCompression compression;  // 握手时协商的压缩，未协商时为 null
+        private byte[] lineBytes;  // 正在处理的文本行的原始字节 [lineOffset, lineOffset+lineLength)，只在 handleLine 期间有效
+        private int lineOffset;
+        private int lineLength;
+        private byte[] decodeBuffer = new byte[0];  // 上传数据的解码结果，本连接复用（仅由本连接的处理线程访问）
+        private final long connectedAt = System.currentTimeMillis();
+        private volatile long messagesIn;  // 本连接收到的消息数和字节数，只由本连接的处理线程写入
+        private volatile long bytesIn;
+        private volatile long lastActivity = reaper != null ? reaper.now() : 0;  // 最后收到数据时空闲检测的刻度
+        private volatile boolean heartbeats;  // 客户端发送过 PING，会回复服务器的 PING
+        private final RateLimiter.Client limits;  // 本连接和所在地址的令牌桶，不限流时为 null
+        private boolean dropping;  // DROP 策略下正在丢弃消息，已提示过客户端（仅由本连接的处理线程访问）
+
+        public ClientHandler(Socket socket, ClientOutput output) {
+            this.socket = socket;
+            this.output = output;
+            this.limits = limiter != null ? limiter.open(socket.getInetAddress()) : null;
+        }
+
+        @Override
+        public void run() {
+            try (InputStream in = countingInput(socket.getInputStream())) {
+                ProtocolReader reader = new ProtocolReader(in, LINE_CHARSET, true);
+                while (true) {
+                    if (!reader.hasBuffered()) {
+                        output.flush();  // 已到达的消息都处理完了，一次写出这批回复
+                    }
+                    long wait;
+                    if (binary) {
+                        int type;
+                        try {
+                            type = reader.readFrame();
+                        } catch (FrameTooLargeException e) {
+                            rejectOversize(e);  // 超长的帧已被跳过，继续读取下一帧
+                            continue;
+                        }
+                        if (type < 0) {
+                            break;
+                        }
+                        while ((wait = admitFrame((byte) type, reader.payload().remaining())) > 0) {
+                            pauseReading(wait);
+                        }
+                        if (wait == 0) {
+                            handleFrame((byte) type, reader.payload());
+                        }
+                    } else {
+                        String line;
+                        try {
+                            line = reader.readLine();
+                        } catch (FrameTooLargeException e) {
+                            rejectOversize(e);
+                            continue;
+                        }
+                        if (line == null) {
+                            break;
+                        }
+                        while ((wait = admitLine(line)) > 0) {
+                            pauseReading(wait);
+                        }
+                        if (wait == 0) {
+                            handleLine(line, reader.lineBytes(), 0, reader.lineLength());
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                log("客户端连接异常: " + e.getMessage());
+            } finally {
+                // 客户端断开连接时清理资源
+                unregisterClient(this);
+                onDisconnect();
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
+        }
+
+        boolean isBinary() {
+            return binary;
+        }
+
+        // 阻塞模式的 DELAY 策略：先写出已有的回复，然后暂停读取，期间客户端的数据积压在 TCP 缓冲区中
+        private void pauseReading(long nanos) throws IOException {
+            output.flush();
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("服务器正在关闭");
+            }
+        }
+
+        // 限流检查，读取方在处理一行文本之前调用，返回值见 admit。上传数据按解码后的字节数计，
+        // 数据块只计字节数；分块上传的各条消息丢弃任何一条都会使整个上传失败，因此不丢弃
+        long admitLine(String line) throws IOException {
+            if (limits == null) {
+                return 0;
+            }
+            if (line.startsWith("FILE_CHUNK|")) {
+                return admit(0, line.length() * 3L / 4, false);
+            }
+            boolean chunked = line.startsWith("FILE_BEGIN|") || line.startsWith("FILE_OFFER|")
+                    || line.startsWith("FILE_END|");
+            return admit(1, line.startsWith("FILE|") ? line.length() * 3L / 4 : 0, !chunked);
+        }
+
+        // 限流检查，读取方在处理一个二进制帧之前调用，返回值见 admit。心跳帧不计入，分块上传的帧同上不丢弃
+        long admitFrame(byte type, int length) throws IOException {
+            if (limits == null) {
+                return 0;
+            }
+            byte plain = (byte) (type & ~BinaryProtocol.COMPRESSED);
+            if (plain == BinaryProtocol.PING || plain == BinaryProtocol.PONG) {
+                return 0;
+            }
+            if (plain == BinaryProtocol.FILE_CHUNK) {
+                return admit(0, length, false);
+            }
+            boolean chunked = plain == BinaryProtocol.FILE_BEGIN || plain == BinaryProtocol.FILE_OFFER
+                    || plain == BinaryProtocol.FILE_END;
+            return admit(1, 0, !chunked);
+        }
+
+        // 返回 0 表示处理这条消息；大于 0 表示 DELAY 策略下需要暂停读取的纳秒数，之后重新检查同一条消息；
+        // -1 表示 DROP 策略丢弃这条消息，不可丢弃的消息（droppable 为 false）在 DROP 策略下同样暂停读取。
+        // DISCONNECT 策略抛出异常，由读取方像连接出错一样关闭连接
+        private long admit(int messages, long bytes, boolean droppable) throws IOException {
+            long wait = limits.acquire(messages, bytes);
+            if (wait == 0) {
+                dropping = false;
+                return 0;
+            }
+            switch (RateLimiter.POLICY) {
+                case DELAY:
+                    limiter.delayed.increment();
+                    return wait;
+                case DROP:
+                    if (!droppable) {
+                        limiter.delayed.increment();
+                        return wait;
+                    }
+                    limiter.dropped.increment();
+                    if (!dropping) {
+                        dropping = true;
+                        try {
+                            sendText("发送过快，超出的消息已被丢弃");
+                        } catch (IOException ignored) {}
+                    }
+                    return -1;
+                default:
+                    limiter.disconnected.increment();
+                    throw new IOException("客户端发送过快，断开连接");
+            }
+        }
+
+        // 超过长度上限的消息已被丢弃（连接仍在消息边界上）：计数并告知客户端，连接继续使用
+        void rejectOversize(FrameTooLargeException e) {
+            metrics.oversizeRejected.increment();
+            log("丢弃超长消息：" + socket.getInetAddress() + "，已读到" + e.length() + "字节，上限" + e.max() + "字节");
+            try {
+                sendText(e.getMessage());
+            } catch (IOException ignored) {}
+        }
+
+        // 统计从套接字读到的字节数（NIO模式由事件循环在读取后直接调用 received）
+        private InputStream countingInput(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        received(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        received(n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        void received(int bytes) {
+            bytesIn += bytes;
+            metrics.bytesIn.add(bytes);
+            IdleReaper r = reaper;
+            if (r != null) {
+                long tick = r.now();
+                if (lastActivity != tick) {  // 同一刻度内的多次读取只写一次
+                    lastActivity = tick;
+                }
+            }
+        }
+
+        @Override
+        public long lastActivity() {
+            return lastActivity;
+        }
+
+        @Override
+        public boolean heartbeats() {
+            return heartbeats;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return socket.isClosed();
+        }
+
+        // 经由广播队列发送共享的 PING 帧，不阻塞时间轮线程
+        @Override
+        public void ping() {
+            output.offer(PING_FRAME);
+        }
+
+        // 断开后由连接的处理线程（或事件循环）发现关闭并清理
+        @Override
+        public void reap(long idleSeconds) {
+            log("断开无响应的连接：" + socket.getInetAddress() + "（" + idleSeconds + "秒没有收到数据）");
+            output.close();
+        }
+
+        String describe() {
+            return socket.getInetAddress() + " " + (binary ? "binary" : "text")
+                    + " 已连接" + (System.currentTimeMillis() - connectedAt) / 1000 + "秒"
+                    + " 收到消息" + messagesIn + "条 " + bytesIn + "字节";
+        }
+
+        // 根据消息类型处理不同请求，阻塞模式和NIO模式共用。raw 为这一行的原始字节（不含行尾），Base64 部分从中解码
+        void handleLine(String line, byte[] raw, int offset, int length) throws IOException {
+            lineBytes = raw;
+            lineOffset = offset;
+            lineLength = length;
+            messagesIn++;
+            metrics.textMessagesIn.increment();
+            if (line.startsWith("VERSION_CHECK|")) {
+                handleVersionCheck(line);  // 处理版本检查
+            } else if (line.startsWith("FILE_CHUNK|")) {
+                handleFileChunk(line);  // 分块上传：数据块
+            } else if (line.startsWith("FILE_OFFER|")) {
+                handleFileOffer(line);  // 按哈希提交上传
+            } else if (line.startsWith("FILE_BEGIN|")) {
+                handleFileBegin(line);  // 分块上传：开始
+            } else if (line.startsWith("FILE_END|")) {
+                handleFileEnd(line);  // 分块上传：结束
+            } else if (line.startsWith("ROOM_MSG|")) {
+                handleRoomMessage(line);  // 房间消息
+            } else if (line.startsWith("ROOM_JOIN|")) {
+                joinRoom(line.substring("ROOM_JOIN|".length()));  // 加入房间
+            } else if (line.startsWith("ROOM_LEAVE|")) {
+                leaveRoom(line.substring("ROOM_LEAVE|".length()));  // 离开房间
+            } else if (line.startsWith("HISTORY|")) {
+                handleHistory(line);  // 聊天记录查询
+            } else if (line.startsWith("FILE_GET|")) {
+                handleFileGet(line);  // 文件下载
+            } else if (line.startsWith("FILE|")) {
+                handleFileUpload(line);  // 处理文件上传（整文件单行，兼容旧客户端）
+            } else {
+                handleTextMessage(line);  // 处理文本消息
+            }
+        }
+
+        // 处理二进制帧，负载只在本次调用期间有效
+        void handleFrame(byte type, ByteBuffer payload) throws IOException {
+            messagesIn++;
+            metrics.binaryMessagesIn.increment();
+            if ((type & BinaryProtocol.COMPRESSED) != 0) {
+                if (compression == null) {
+                    throw new IOException("收到未协商的压缩帧");
+                }
+                // 解压前按声明的原始长度检查上限，超长的帧不解压
+                int original = payload.remaining() >= 4 ? payload.getInt(payload.position()) : 0;
+                if (original > FrameLimits.maxFrame(type)) {
+                    rejectOversize(new FrameTooLargeException(original, FrameLimits.maxFrame(type)));
+                    return;
+                }
+                payload = compression.decompress(payload);
+                type &= ~BinaryProtocol.COMPRESSED;
+            }
+            try {
+                dispatchFrame(type, payload);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                // 负载短于该类型的固定字段或长度字段越界：之后的数据已不可信，计为解码失败并关闭连接
+                metrics.decodeFailures.increment();
+                throw new IOException("帧格式错误（类型 " + type + "，负载 " + payload.limit() + " 字节）");
+            }
+        }
+
+        private void dispatchFrame(byte type, ByteBuffer payload) throws IOException {
+            switch (type) {
+                case BinaryProtocol.MESSAGE:
+                    processTextMessage(BinaryProtocol.readText(payload));
+                    break;
+                case BinaryProtocol.VERSION_CHECK:
+                    sendControl(versionResult(BinaryProtocol.readText(payload)));
+                    break;
+                case BinaryProtocol.FILE_OFFER: {
+                    int uploadId = payload.getInt();
+                    long size = payload.getLong();
+                    byte[] hash = new byte[BinaryProtocol.SHA256_SIZE];
+                    payload.get(hash);
+                    offerUpload(Integer.toString(uploadId), size, FileStore.toHex(hash), BinaryProtocol.readText(payload));
+                    break;
+                }
+                case BinaryProtocol.FILE_BEGIN: {
+                    int uploadId = payload.getInt();
+                    long size = payload.getLong();
+                    beginUpload(Integer.toString(uploadId), size, BinaryProtocol.readText(payload));
+                    break;
+                }
+                case BinaryProtocol.FILE_CHUNK: {
+                    String uploadId = Integer.toString(payload.getInt());
+                    long offset = payload.getLong();
+                    writeChunk(uploadId, offset, payload);
+                    break;
+                }
+                case BinaryProtocol.FILE_END:
+                    endUpload(Integer.toString(payload.getInt()));
+                    break;
+                case BinaryProtocol.ROOM_JOIN:
+                    joinRoom(BinaryProtocol.readText(payload));
+                    break;
+                case BinaryProtocol.ROOM_LEAVE:
+                    leaveRoom(BinaryProtocol.readText(payload));
+                    break;
+                case BinaryProtocol.ROOM_MESSAGE: {
+                    String room = BinaryProtocol.readRoom(payload);
+                    processRoomMessage(room, BinaryProtocol.readText(payload));
+                    break;
+                }
+                case BinaryProtocol.HISTORY: {
+                    int requestId = payload.getInt();
+                    long beforeId = payload.getLong();
+                    int limit = payload.getInt();
+                    String room = BinaryProtocol.readRoom(payload);
+                    queryHistory(requestId, beforeId, limit, room, BinaryProtocol.readText(payload));
+                    break;
+                }
+                case BinaryProtocol.REPLAY: {
+                    long sinceId = payload.getLong();
+                    replay(sinceId, BinaryProtocol.readText(payload));
+                    break;
+                }
+                case BinaryProtocol.FILE_GET: {
+                    int requestId = payload.getInt();
+                    long offset = payload.getLong();
+                    long length = payload.getLong();
+                    sendDownload(requestId, offset, length, BinaryProtocol.readText(payload));
+                    break;
+                }
+                case BinaryProtocol.PING:
+                    heartbeats = true;
+                    sendFrame(BinaryProtocol.heartbeat(BinaryProtocol.PONG, payload.getLong()));
+                    break;
+                case BinaryProtocol.PONG:
+                    break;  // 收到数据时已经记录了活动时间
+                default:
+                    metrics.decodeFailures.increment();
+                    log("未知的帧类型: " + type);
+            }
+        }
+
+        // 发送文本消息：文本协议为Base64行，二进制协议为 MESSAGE 帧
+        void sendText(String text) throws IOException {
+            if (binary) {
+                sendFrame(BinaryProtocol.textFrame(BinaryProtocol.MESSAGE, text));
+            } else {
+                output.send(base64Line("", text));
+            }
+        }
+
+        // 发送本连接独有的二进制帧，协商了压缩时超过阈值的帧压缩后发送
+        private void sendFrame(ByteBuffer frame) throws IOException {
+            FrameCompression c = compression;
+            output.send(c != null ? c.compress(frame) : frame);
+        }
+
+        // 发送版本检查结果：文本协议为原始行，二进制协议为 VERSION_CHECK 帧
+        private void sendControl(String response) throws IOException {
+            output.send(binary ? BinaryProtocol.textFrame(BinaryProtocol.VERSION_CHECK, response)
+                    : encodeLine(response));
+        }
+
+        // 发送上传结果：二进制协议为带上传ID的 ACK 帧
+        private void sendUploadResult(String uploadId, String text) throws IOException {
+            if (binary) {
+                sendFrame(BinaryProtocol.ack(Integer.parseInt(uploadId), text));
+            } else {
+                sendText(text);
+            }
+        }
+
+        // 处理版本检查请求: VERSION_CHECK|版本号[|BINARY1[|压缩算法,...]]
+        private void handleVersionCheck(String line) throws IOException {
+            String[] parts = line.split("\\|");
+            String clientVersion = parts[1];
+            boolean binaryOffered = parts.length > 2 && parts[2].equals(BinaryProtocol.CAPABILITY);
+
+            String response = versionResult(clientVersion);
+            if (binaryOffered) {
+                // 客户端在协议标记后列出支持的压缩算法，选中的算法附在回应的协议标记之后
+                FrameCompression negotiated = FrameCompression.negotiate(parts.length > 3 ? parts[3] : null);
+                // 回应协议标记后，后续所有数据都使用二进制帧
+                sendControl(response + "|" + BinaryProtocol.CAPABILITY
+                        + (negotiated != null ? "|" + negotiated.name() : ""));
+                binary = true;
+                compression = negotiated;
+            } else {
+                sendControl(response);
+            }
+        }
+
+        private String versionResult(String clientVersion) {
+            if (VersionInfo.isNewerVersion(clientVersion, VersionInfo.CURRENT_VERSION)) {
+                return "NEED_UPDATE|" + VersionInfo.CURRENT_VERSION + "|" + VersionInfo.UPDATE_URL;
+            }
+            return "CURRENT_VERSION";
+        }
+
+        // 处理文件上传: FILE|文件名|Base64内容。内容从行字节中分段解码后写入临时文件，
+        // 不为整个文件分配字节数组
+        private void handleFileUpload(String line) throws IOException {
+            int nameEnd = line.indexOf('|', "FILE|".length());
+            if (nameEnd < 0) {
+                log("文件上传协议错误: " + line);
+                return;
+            }
+
+            ChunkedUpload upload = null;
+            try {
+                int start = tailOffset(line, nameEnd + 1);
+                int end = lineOffset + lineLength;
+                upload = ChunkedUpload.begin(fileStore, line.substring("FILE|".length(), nameEnd),
+                        Base64Util.decodedLength(lineBytes, start, end - start), null);
+                for (int position = start; position < end; position += UPLOAD_WINDOW) {
+                    int windowEnd = Math.min(position + UPLOAD_WINDOW, end);
+                    ByteBuffer data = decodeReused(position, windowEnd - position);
+                    if (windowEnd < end && data.remaining() != UPLOAD_WINDOW / 4 * 3) {
+                        throw new IllegalArgumentException("Base64填充出现在数据中间");
+                    }
+                    upload.write(upload.received(), data);
+                }
+                String hash = upload.finish();
+                recordUpload(upload.filename(), hash, upload.size());
+                sendText("文件 " + upload.filename() + " 已接收并保存");
+            } catch (IOException | IllegalArgumentException e) {
+                if (e instanceof IllegalArgumentException) {
+                    metrics.decodeFailures.increment();
+                }
+                if (upload != null) {
+                    upload.abort();
+                }
+                log("保存文件失败: " + e.getMessage());
+                sendText("保存文件失败: " + e.getMessage());
+            }
+        }
+
+        // 分块上传开始: FILE_BEGIN|上传ID|文件大小|文件名
+        private void handleFileBegin(String line) throws IOException {
+            String[] parts = line.split("\\|", 4);
+            if (parts.length != 4) {
+                log("文件上传协议错误: " + line);
+                return;
+            }
+            try {
+                beginUpload(parts[1], Long.parseLong(parts[2]), parts[3]);
+            } catch (NumberFormatException e) {
+                metrics.decodeFailures.increment();
+                log("文件上传协议错误: " + line);
+            }
+        }
+
+        // 分块上传数据块: FILE_CHUNK|上传ID|偏移|Base64数据，数据直接从行字节中解码
+        private void handleFileChunk(String line) throws IOException {
+            int idEnd = line.indexOf('|', "FILE_CHUNK|".length());
+            int offsetEnd = idEnd < 0 ? -1 : line.indexOf('|', idEnd + 1);
+            if (offsetEnd < 0) {
+                return;
+            }
+            String uploadId = line.substring("FILE_CHUNK|".length(), idEnd);
+            if (!uploads.containsKey(uploadId)) {
+                return;  // 上传已失败或不存在，忽略后续数据块
+            }
+            try {
+                long offset = Long.parseLong(line, idEnd + 1, offsetEnd, 10);
+                writeChunk(uploadId, offset, decodeTail(line, offsetEnd + 1));
+            } catch (IllegalArgumentException e) {
+                metrics.decodeFailures.increment();
+                failUpload(uploadId, e.getMessage());
+            }
+        }
+
+        // 分块上传结束: FILE_END|上传ID
+        private void handleFileEnd(String line) throws IOException {
+            String[] parts = line.split("\\|");
+            if (parts.length == 2) {
+                endUpload(parts[1]);
+            }
+        }
+
+        private void beginUpload(String uploadId, long size, String filename) throws IOException {
+            try {
+                if (uploads.size() >= MAX_ACTIVE_UPLOADS) {
+                    throw new IOException("同时进行的上传过多");
+                }
+                ChunkedUpload upload = ChunkedUpload.begin(fileStore, filename, size, null);
+                ChunkedUpload previous = uploads.put(uploadId, upload);
+                if (previous != null) {
+                    previous.abort();
+                }
+                log("开始接收文件: " + upload.filename() + " (" + size + "字节)");
+            } catch (IOException e) {
+                log("保存文件失败: " + e.getMessage());
+                sendUploadResult(uploadId, "保存文件失败: " + e.getMessage());
+            }
+        }
+
+        // 按哈希提交上传: FILE_OFFER|上传ID|文件大小|SHA-256十六进制|文件名
+        private void handleFileOffer(String line) throws IOException {
+            String[] parts = line.split("\\|", 5);
+            if (parts.length != 5) {
+                log("文件上传协议错误: " + line);
+                return;
+            }
+            try {
+                offerUpload(parts[1], Long.parseLong(parts[2]), parts[3], parts[4]);
+            } catch (NumberFormatException e) {
+                metrics.decodeFailures.increment();
+                log("文件上传协议错误: " + line);
+            }
+        }
+
+        // 客户端先声明内容哈希，在发送任何数据之前回复续传偏移：已有相同内容时为文件大小（无需上传），
+        // 有未完成的临时文件时为其中已写入的字节数，其他连接正在上传相同内容时为 -1（稍后重试）
+        private void offerUpload(String uploadId, long size, String hash, String filename) throws IOException {
+            try {
+                if (!FileStore.isValidHash(hash)) {
+                    throw new IOException("无效的 SHA-256: " + hash);
+                }
+                String name = ChunkedUpload.sanitize(filename);
+                if (fileStore.has(hash, size)) {
+                    sendResume(uploadId, size);
+                    recordUpload(name, hash, size);
+                    sendUploadResult(uploadId, "文件 " + name + " 服务器已有相同内容，无需重复上传");
+                    return;
+                }
+                if (uploads.size() >= MAX_ACTIVE_UPLOADS) {
+                    throw new IOException("同时进行的上传过多");
+                }
+                if (!fileStore.claim(hash)) {
+                    sendResume(uploadId, -1);
+                    return;
+                }
+                ChunkedUpload upload;
+                try {
+                    upload = ChunkedUpload.begin(fileStore, name, size, hash);
+                } catch (IOException e) {
+                    fileStore.release(hash);
+                    throw e;
+                }
+                ChunkedUpload previous = uploads.put(uploadId, upload);
+                if (previous != null) {
+                    previous.abort();
+                }
+                log("开始接收文件: " + name + " (" + size + "字节"
+                        + (upload.received() > 0 ? "，从 " + upload.received() + " 字节处续传" : "") + ")");
+                sendResume(uploadId, upload.received());
+            } catch (IOException e) {
+                log("保存文件失败: " + e.getMessage());
+                sendResume(uploadId, -2);
+                sendUploadResult(uploadId, "保存文件失败: " + e.getMessage());
+            }
+        }
+
+        // 续传偏移：文本协议为 FILE_RESUME|上传ID|偏移，二进制协议为 FILE_RESUME 帧
+        private void sendResume(String uploadId, long offset) throws IOException {
+            output.send(binary ? BinaryProtocol.fileResume(Integer.parseInt(uploadId), offset)
+                    : encodeLine("FILE_RESUME|" + uploadId + "|" + offset));
+        }
+
+        // 把数据块直接写入磁盘
+        private void writeChunk(String uploadId, long offset, ByteBuffer data) throws IOException {
+            ChunkedUpload upload = uploads.get(uploadId);
+            if (upload == null) {
+                return;  // 上传已失败或不存在，忽略后续数据块
+            }
+            try {
+                upload.write(offset, data);
+            } catch (IOException e) {
+                failUpload(uploadId, e.getMessage());
+            }
+        }
+
+        private void failUpload(String uploadId, String reason) throws IOException {
+            ChunkedUpload upload = uploads.remove(uploadId);
+            if (upload != null) {
+                upload.abort();
+            }
+            log("保存文件失败: " + reason);
+            sendUploadResult(uploadId, "保存文件失败: " + reason);
+        }
+
+        private void endUpload(String uploadId) throws IOException {
+            ChunkedUpload upload = uploads.remove(uploadId);
+            if (upload == null) {
+                return;
+            }
+            try {
+                recordUpload(upload.filename(), upload.finish(), upload.size());
+                sendUploadResult(uploadId, "文件 " + upload.filename() + " 已接收并保存");
+            } catch (IOException e) {
+                log("保存文件失败: " + e.getMessage());
+                sendUploadResult(uploadId, "保存文件失败: " + e.getMessage());
+            }
+        }
+
+        // 记录文件名到内容的映射，下载时按文件名找到内容
+        private void recordUpload(String filename, String hash, long size) {
+            Path object = fileStore.objectPath(hash);
+            fileStore.remember(filename, hash);
+            log("已保存文件: " + filename + " -> " + object.toAbsolutePath());
+            saveFileLog(socket.getInetAddress().toString(), filename, object.toAbsolutePath().toString(), hash, size);
+        }
+
+        // 文件下载: FILE_GET|请求ID|起始偏移|长度(负数表示到文件末尾)|文件名
+        private void handleFileGet(String line) throws IOException {
+            String[] parts = line.split("\\|", 5);
+            if (parts.length != 5) {
+                log("文件下载协议错误: " + line);
+                return;
+            }
+            try {
+                sendDownload(Integer.parseInt(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4]);
+            } catch (NumberFormatException e) {
+                metrics.decodeFailures.increment();
+                log("文件下载协议错误: " + line);
+            }
+        }
+
+        // 按文件名下载：最近上传的文件名直接在内存中找到内容，否则在数据库读取线程中查询 file_logs
+        private void sendDownload(int requestId, long offset, long length, String filename) throws IOException {
+            Path name = Paths.get(filename).getFileName();  // 只允许访问上传目录下的文件
+            if (name == null || name.toString().endsWith(".part")) {
+                sendDownloadError(requestId, "文件名无效: " + filename);
+                return;
+            }
+            Path cached = fileStore.cached(name.toString());
+            if (cached != null) {
+                sendFileRange(requestId, offset, length, name, cached);
+                return;
+            }
+            historyExecutor.execute(() -> {
+                try {
+                    Path path;
+                    try {
+                        path = fileStore.resolve(name.toString());
+                    } catch (SQLException e) {
+                        log("查询文件记录失败: " + e.getMessage());
+                        sendDownloadError(requestId, "查询文件失败: " + name);
+                        output.flush();
+                        return;
+                    }
+                    sendFileRange(requestId, offset, length, name, path);
+                    output.flush();
+                } catch (IOException e) {
+                    log("客户端连接异常: " + e.getMessage());
+                }
+            });
+        }
+
+        // 发送文件的指定区间。文件按段发送，每段先发协议头，再由 ClientOutput
+        // 用 transferTo 直接从文件写入套接字；客户端按偏移续传时只发送剩余部分。
+        // path 为 null 或不是上传目录内的普通文件时按文件不存在处理
+        private void sendFileRange(int requestId, long offset, long length, Path name, Path path) throws IOException {
+            Path regular = path != null ? fileStore.regularFile(path) : null;
+            if (regular == null) {
+                sendDownloadError(requestId, "文件不存在: " + name);
+                return;
+            }
+            FileChannel file;
+            try {
+                file = FileChannel.open(regular, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                sendDownloadError(requestId, "文件不存在: " + name);
+                return;
+            }
+            try {
+                long total = file.size();
+                if (offset < 0 || offset > total) {
+                    file.close();
+                    sendDownloadError(requestId, "起始偏移超出文件大小: " + offset);
+                    return;
+                }
+                long end = length < 0 ? total : Math.min(total, offset + length);
+                log("开始发送文件: " + name + " (" + offset + "-" + end + " / " + total + "字节)");
+                // 至少发送一段，空区间也让客户端收到文件大小并结束下载
+                long position = offset;
+                do {
+                    int count = (int) Math.min(DOWNLOAD_SEGMENT_SIZE, end - position);
+                    ByteBuffer header = binary
+                            ? BinaryProtocol.fileDataHeader(requestId, position, count, total)
+                            : encodeLine("FILE_DATA|" + requestId + "|" + position + "|" + count + "|" + total);
+                    position += count;
+                    output.sendFile(header, file, position - count, count, position >= end);
+                } while (position < end);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        // 下载失败：文本协议为 FILE_ERROR|请求ID|原因，二进制协议为 FILE_ERROR 帧
+        private void sendDownloadError(int requestId, String reason) throws IOException {
+            log("发送文件失败: " + reason);
+            output.send(binary ? BinaryProtocol.fileError(requestId, reason)
+                    : encodeLine("FILE_ERROR|" + requestId + "|" + reason));
+        }
+
+        // 房间消息: ROOM_MSG|房间名|Base64文本
+        private void handleRoomMessage(String line) throws IOException {
+            int roomEnd = line.indexOf('|', "ROOM_MSG|".length());
+            if (roomEnd < 0) {
+                log("房间消息协议错误: " + line);
+                return;
+            }
+            String message;
+            try {
+                message = decodeText(line, roomEnd + 1);
+            } catch (IllegalArgumentException e) {
+                metrics.decodeFailures.increment();
+                sendText("解码失败：无效的Base64数据");
+                return;
+            }
+            processRoomMessage(line.substring("ROOM_MSG|".length(), roomEnd), message);
+        }
+
+        private void joinRoom(String room) throws IOException {
+            if (!isValidRoomName(room)) {
+                sendText("房间名无效: " + room);
+                return;
+            }
+            if (!joinedRooms.contains(room) && joinedRooms.size() >= MAX_ROOMS_PER_CLIENT) {
+                sendText("加入的房间过多，最多 " + MAX_ROOMS_PER_CLIENT + " 个");
+                return;
+            }
+            rooms.join(room, this);
+            joinedRooms.add(room);
+            sendText("已加入房间: " + room);
+        }
+
+        private void leaveRoom(String room) throws IOException {
+            if (joinedRooms.remove(room)) {
+                rooms.leave(room, this);
+                sendText("已离开房间: " + room);
+            }
+        }
+
+        private void processRoomMessage(String room, String message) throws IOException {
+            if (!joinedRooms.contains(room)) {
+                sendText("尚未加入房间: " + room);
+                return;
+            }
+            String address = socket.getInetAddress().toString();
+            log("房间 " + room + " 来自" + address + "的消息: " + message);
+            if (!logWriter.logChat(address, room, message)) {
+                log("保存聊天记录失败: 写入队列已满");
+            }
+            synchronized (roomLock(room)) {
+                long id = recent.nextId();
+                routeToRoom(id, room, this, address + ": " + message);
+                if (relay != null) {
+                    relay.publish(id, room, address + ": " + message);
+                }
+            }
+        }
+
+        // 聊天记录查询: HISTORY|请求ID|起始id(0表示最新)|条数|房间名(空表示公共聊天)|Base64关键词
+        private void handleHistory(String line) throws IOException {
+            String[] parts = line.split("\\|", 6);
+            if (parts.length != 6) {
+                log("聊天记录查询协议错误: " + line);
+                return;
+            }
+            try {
+                queryHistory(Integer.parseInt(parts[1]), Long.parseLong(parts[2]), Integer.parseInt(parts[3]),
+                        parts[4], Base64Util.decodeToString(parts[5]));
+            } catch (IllegalArgumentException e) {
+                metrics.decodeFailures.increment();
+                log("聊天记录查询协议错误: " + line);
+            }
+        }
+
+        // 在查询线程中读取一页记录后回复，公共聊天之外只能查询已加入的房间
+        private void queryHistory(int requestId, long beforeId, int limit, String room, String keyword)
+                throws IOException {
+            if (!room.equals(ChatHistory.PUBLIC_ROOM) && !joinedRooms.contains(room)) {
+                sendText("尚未加入房间: " + room);
+                sendHistory(requestId, new ChatHistory.Page(List.of(), 0));
+                return;
+            }
+            ChatHistory.Query query = new ChatHistory.Query();
+            query.beforeId = beforeId;
+            query.limit = limit;
+            query.room = room;
+            query.keyword = keyword;
+            historyExecutor.execute(() -> {
+                ChatHistory.Page page;
+                try {
+                    page = ChatHistory.query(query);
+                } catch (SQLException e) {
+                    log("查询聊天记录失败: " + e.getMessage());
+                    page = new ChatHistory.Page(List.of(), 0);
+                }
+                try {
+                    sendHistory(requestId, page);
+                    output.flush();
+                } catch (IOException e) {
+                    log("客户端连接异常: " + e.getMessage());
+                }
+            });
+        }
+
+        // 查询结果：文本协议为若干 HISTORY_ITEM|请求ID|id|时间|地址|Base64消息 行加一行
+        // HISTORY_END|请求ID|下一页起始id（0表示没有更多），二进制协议为一个 HISTORY_PAGE 帧
+        private void sendHistory(int requestId, ChatHistory.Page page) throws IOException {
+            if (binary) {
+                sendFrame(BinaryProtocol.historyPage(requestId, page.nextBeforeId, page.entries));
+                return;
+            }
+            StringBuilder lines = new StringBuilder();
+            for (HistoryEntry entry : page.entries) {
+                lines.append("HISTORY_ITEM|").append(requestId).append('|').append(entry.id).append('|')
+                        .append(entry.timestamp).append('|').append(entry.clientAddress).append('|')
+                        .append(Base64Util.encode(entry.message)).append('\n');
+            }
+            lines.append("HISTORY_END|").append(requestId).append('|').append(page.nextBeforeId).append('\n');
+            output.send(ByteBuffer.wrap(lines.toString().getBytes(LINE_CHARSET)));  // 整页一次发送，不与其他回复交错
+        }
+
+        // 回放缓存中 sinceId 之后的消息，房间名为空时回放服务器广播；只能回放已加入的房间。
+        // 缓存的帧直接发送（协商了压缩时按本连接压缩），不查询数据库，也不重新编码
+        private void replay(long sinceId, String room) throws IOException {
+            if (!room.equals(RecentMessageCache.GLOBAL) && !joinedRooms.contains(room)) {
+                sendText("尚未加入房间: " + room);
+                return;
+            }
+            for (ByteBuffer frame : recent.since(room, sinceId)) {
+                sendFrame(frame);
+            }
+        }
+
+        // 连接断开时放弃未完成的分块上传并离开所有房间
+        void onDisconnect() {
+            FrameCompression c = compression;
+            if (c != null) {
+                c.close();  // 释放 Deflater/Inflater 的本地内存
+            }
+            for (ChunkedUpload upload : uploads.values()) {
+                upload.abort();
+            }
+            uploads.clear();
+            for (String room : joinedRooms) {
+                rooms.leave(room, this);
+            }
+            joinedRooms.clear();
+        }
+
+        // 处理文本消息
+        private void handleTextMessage(String line) throws IOException {
+            String decodedMessage;
+            try {
+                decodedMessage = decodeText(line, 0);  // Base64解码
+            } catch (IllegalArgumentException e) {
+                metrics.decodeFailures.increment();
+                log("解码失败，收到非Base64格式数据: " + line);
+                sendText("解码失败：无效的Base64数据");
+                return;
+            }
+            processTextMessage(decodedMessage);
+        }
+
+        // 解码行中从第 start 个字符到行尾的Base64文本
+        private String decodeText(String line, int start) {
+            int offset = tailOffset(line, start);
+            return Base64Util.decodeToString(lineBytes, offset, lineOffset + lineLength - offset);
+        }
+
+        // 解码行中从第 start 个字符到行尾的Base64数据，直接读取行的原始字节
+        private ByteBuffer decodeTail(String line, int start) {
+            int offset = tailOffset(line, start);
+            return decodeReused(offset, lineOffset + lineLength - offset);
+        }
+
+        // 把行字节 [offset, offset+length) 解码到本连接复用的缓冲区，只在需要更大时重新分配（上限由行长度限制决定）。
+        // 返回的 ByteBuffer 在下一次解码前有效，数据块写入磁盘后即不再使用
+        private ByteBuffer decodeReused(int offset, int length) {
+            int size = Base64Util.decodedLength(lineBytes, offset, length);
+            if (decodeBuffer.length < size) {
+                decodeBuffer = new byte[size];
+            }
+            return ByteBuffer.wrap(decodeBuffer, 0, Base64Util.decode(lineBytes, offset, length, decodeBuffer, 0));
+        }
+
+        // 第 start 个字符在行字节中的位置：行中都是单字节字符时字符位置就是字节位置，
+        // 否则（如房间名含中文）按行编码计算前面部分的字节数
+        private int tailOffset(String line, int start) {
+            if (lineLength == line.length()) {
+                return lineOffset + start;
+            }
+            return lineOffset + line.substring(0, start).getBytes(LINE_CHARSET).length;
+        }
+
+        private void processTextMessage(String message) throws IOException {
+            log("来自" + socket.getInetAddress() + "的消息: " + message);
+            saveChatLog(socket.getInetAddress().toString(), message);  // 保存聊天记录
+            sendText("服务器已收到: " + message);
+        }
+
+        // 保存聊天记录（交给异步写入器，不在网络线程中访问数据库）
+        private void saveChatLog(String clientAddr, String message) {
+            if (!logWriter.logChat(clientAddr, message)) {
+                log("保存聊天记录失败: 写入队列已满");
+            }
+        }
+
+        // 保存文件记录（交给异步写入器，不在网络线程中访问数据库）
+        private void saveFileLog(String clientAddr, String filename, String path, String hash, long size) {
+            if (!logWriter.logFile(clientAddr, filename, path, hash, size)) {
+                log("保存文件记录失败: 写入队列已满");
+            }
+        }
+    }
+}
\ No newline at end of file
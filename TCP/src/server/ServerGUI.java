@@ -3,65 +3,30 @@ package server;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import util.Base64Util;
-
-public class ServerGUI {
-    private static final int SERVER_PORT = 54321;  // 服务器监听端口
-
+import util.MessageConsole;
+
+/**
+ * 服务器监控面板，作为观察者附加到 ServerCore。
+ * 日志交给 MessageConsole：网络线程只入队，界面按固定间隔批量刷新并只保留最近的若干行，
+ * 服务器吞吐和内存都不受界面刷新速度影响。
+ */
+public class ServerGUI implements ServerObserver {
     private JFrame frame;               // 主窗口
-    private JTextArea textArea;        // 消息显示区域
+    private MessageConsole console;    // 消息显示区域
     private JTextField sendField;      // 消息发送输入框
     private JButton sendButton;        // 发送按钮
-    private ServerSocket serverSocket; // 服务器套接字
-    private ExecutorService executor;  // 线程池
-    private final List<BufferedWriter> clientWriters = new ArrayList<>(); // 客户端输出流列表
+    private final ServerCore core;     // 服务器核心
 
-    // 版本信息内部类
-    private static class VersionInfo {
-        public static final String CURRENT_VERSION = "v1.1";
-        public static final String UPDATE_URL = "https://github.com/zzzzjal/TCP/releases/download/" + CURRENT_VERSION + "/TCP.jar";
-
-        // 版本比较方法
-        public static boolean isNewerVersion(String version1, String version2) {
-            // 移除版本号中的'v'前缀
-            String v1 = version1.replace("v", "");
-            String v2 = version2.replace("v", "");
-            
-            // 分割版本号
-            String[] v1Parts = v1.split("\\.");
-            String[] v2Parts = v2.split("\\.");
-            
-            // 比较主版本号
-            int v1Major = Integer.parseInt(v1Parts[0]);
-            int v2Major = Integer.parseInt(v2Parts[0]);
-            if (v1Major != v2Major) {
-                return v1Major < v2Major;
-            }
-            
-            // 比较次版本号
-            int v1Minor = Integer.parseInt(v1Parts[1]);
-            int v2Minor = Integer.parseInt(v2Parts[1]);
-            return v1Minor < v2Minor;
-        }
-    }
     public static void main(String[] args) {
+        ServerConfig config = ServerConfig.fromArgs(args);  // 解析启动参数
         // 在事件调度线程中初始化GUI
         EventQueue.invokeLater(() -> {
             try {
                 SqliteUtil.initDatabase();  // 初始化数据库
-                ServerGUI window = new ServerGUI();  // 创建服务器窗口
+                ServerCore core = new ServerCore(config);
+                ServerGUI window = new ServerGUI(core);  // 创建服务器窗口
                 window.frame.setVisible(true);  // 显示窗口
-                window.startServer();  // 启动服务器
+                core.start();  // 启动服务器
             } catch (Exception e) {
                 JOptionPane.showMessageDialog(null, "服务器启动失败: " + e.getMessage());
             }
@@ -70,7 +35,18 @@ public class ServerGUI {
 
     // 构造函数
     public ServerGUI() {
+        this(ServerMode.BLOCKING);
+    }
+
+    public ServerGUI(ServerMode mode) {
+        this(new ServerCore(new ServerConfig(mode)));
+    }
+
+    // 附加到一个服务器核心，窗口关闭时关闭服务器
+    ServerGUI(ServerCore core) {
+        this.core = core;
         initializeGUI();  // 初始化GUI界面
+        core.addObserver(this);
     }
 
     // 初始化GUI界面
@@ -93,14 +69,9 @@ public class ServerGUI {
         frame.getContentPane().add(statusPanel, BorderLayout.NORTH);
 
         // 消息显示区域
-        textArea = new JTextArea();
-        textArea.setEditable(false);
-        textArea.setFont(new Font("微软雅黑", Font.PLAIN, 12));
-        textArea.setBackground(new Color(255, 255, 255));
-        textArea.setMargin(new Insets(5, 5, 5, 5));
-        JScrollPane scrollPane = new JScrollPane(textArea);
-        scrollPane.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
-        frame.getContentPane().add(scrollPane, BorderLayout.CENTER);
+        console = new MessageConsole(new Font("微软雅黑", Font.PLAIN, 12));
+        console.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        frame.getContentPane().add(console, BorderLayout.CENTER);
 
         // 底部面板
         JPanel bottomPanel = new JPanel(new BorderLayout(10, 10));
@@ -136,7 +107,8 @@ public class ServerGUI {
         // 窗口关闭事件监听
         frame.addWindowListener(new WindowAdapter() {
             public void windowClosing(WindowEvent e) {
-                shutdownServer();
+                core.removeObserver(ServerGUI.this);
+                core.shutdown();
             }
         });
     }
@@ -145,214 +117,14 @@ public class ServerGUI {
     private void sendBroadcastMessage() {
         String raw = sendField.getText().trim();
         if (!raw.isEmpty()) {
-            String encoded = Base64Util.encode(raw);  // Base64编码
-            broadcastToClients(encoded);
-            appendMessage("服务器发送: " + raw);
+            core.broadcast(raw);
             sendField.setText("");
         }
     }
 
-    // 启动服务器
-    private void startServer() {
-        executor = Executors.newCachedThreadPool();  // 创建线程池
-        executor.execute(() -> {
-            try {
-                serverSocket = new ServerSocket(SERVER_PORT);
-                appendMessage("服务器启动，监听端口：" + SERVER_PORT);
-
-                while (!serverSocket.isClosed()) {
-                    Socket clientSocket = serverSocket.accept();  // 接受客户端连接
-                    appendMessage("客户端已连接：" + clientSocket.getInetAddress());
-
-                    // 创建客户端输出流
-                    BufferedWriter writer = new BufferedWriter(
-                            new OutputStreamWriter(clientSocket.getOutputStream()));
-
-                    // 将输出流添加到列表
-                    synchronized (clientWriters) {
-                        clientWriters.add(writer);
-                    }
-
-                    // 为客户端创建处理线程
-                    executor.execute(new ClientHandler(clientSocket, writer));
-                }
-            } catch (IOException e) {
-                if (!serverSocket.isClosed()) {
-                    appendMessage("服务器异常: " + e.getMessage());
-                }
-            }
-        });
-    }
-
-    // 广播消息给所有客户端
-    private void broadcastToClients(String encodedMessage) {
-        synchronized (clientWriters) {
-            for (BufferedWriter writer : new ArrayList<>(clientWriters)) {
-                try {
-                    writer.write(encodedMessage + "\n");
-                    writer.flush();
-                } catch (IOException e) {
-                    appendMessage("向客户端发送失败: " + e.getMessage());
-                    clientWriters.remove(writer);
-                }
-            }
-        }
-    }
-
-    // 在消息区域追加消息
-    private void appendMessage(String message) {
-        SwingUtilities.invokeLater(() -> {
-            textArea.append(message + "\n");
-            textArea.setCaretPosition(textArea.getDocument().getLength());
-        });
-    }
-
-    // 关闭服务器
-    private void shutdownServer() {
-        try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-            if (executor != null) {
-                executor.shutdownNow();
-            }
-            synchronized (clientWriters) {
-                for (BufferedWriter writer : clientWriters) {
-                    try {
-                        writer.close();
-                    } catch (IOException ignored) {}
-                }
-                clientWriters.clear();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    // 客户端处理线程
-    class ClientHandler implements Runnable {
-        private final Socket socket;      // 客户端套接字
-        private final BufferedWriter writer;  // 客户端输出流
-
-        public ClientHandler(Socket socket, BufferedWriter writer) {
-            this.socket = socket;
-            this.writer = writer;
-        }
-
-        @Override
-        public void run() {
-            try (BufferedReader in = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream()))) {
-
-                String line;
-                while ((line = in.readLine()) != null) {
-                    // 根据消息类型处理不同请求
-                    if (line.startsWith("VERSION_CHECK|")) {
-                        handleVersionCheck(line, writer);  // 处理版本检查
-                    } else if (line.startsWith("FILE|")) {
-                        handleFileUpload(line, writer, socket);  // 处理文件上传
-                    } else {
-                        handleTextMessage(line, writer, socket);  // 处理文本消息
-                    }
-                }
-            } catch (IOException e) {
-                appendMessage("客户端连接异常: " + e.getMessage());
-            } finally {
-                // 客户端断开连接时清理资源
-                synchronized (clientWriters) {
-                    clientWriters.remove(writer);
-                }
-                try {
-                    socket.close();
-                } catch (IOException ignored) {}
-            }
-        }
-
-        // 处理版本检查请求
-        private void handleVersionCheck(String line, BufferedWriter writer) throws IOException {
-            String[] parts = line.split("\\|");
-            String clientVersion = parts[1];
-
-            if (VersionInfo.isNewerVersion(clientVersion, VersionInfo.CURRENT_VERSION)) {
-                writer.write("NEED_UPDATE|" + VersionInfo.CURRENT_VERSION + "|" + VersionInfo.UPDATE_URL + "\n");
-            } else {
-                writer.write("CURRENT_VERSION\n");
-            }
-            writer.flush();
-        }
-
-        // 处理文件上传
-        private void handleFileUpload(String line, BufferedWriter writer, Socket socket) throws IOException {
-            String[] parts = line.split("\\|", 3);
-            if (parts.length != 3) {
-                appendMessage("文件上传协议错误: " + line);
-                return;
-            }
-
-            String filename = parts[1];
-            String base64Content = parts[2];
-            try {
-                byte[] fileBytes = Base64Util.decode(base64Content);  // Base64解码
-                File uploadDir = new File("uploads");
-                if (!uploadDir.exists() && !uploadDir.mkdirs()) {
-                    throw new IOException("无法创建上传目录");
-                }
-
-                // 保存文件
-                File outFile = new File(uploadDir, filename);
-                try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                    fos.write(fileBytes);
-                }
-
-                appendMessage("已保存文件: " + outFile.getAbsolutePath());
-                saveFileLog(socket.getInetAddress().toString(), filename, outFile.getAbsolutePath());
-                writer.write(Base64Util.encode("文件 " + filename + " 已接收并保存") + "\n");
-            } catch (IOException e) {
-                appendMessage("保存文件失败: " + e.getMessage());
-                writer.write(Base64Util.encode("保存文件失败: " + e.getMessage()) + "\n");
-            }
-            writer.flush();
-        }
-
-        // 处理文本消息
-        private void handleTextMessage(String line, BufferedWriter writer, Socket socket) throws IOException {
-            try {
-                String decodedMessage = Base64Util.decodeToString(line);  // Base64解码
-                appendMessage("来自" + socket.getInetAddress() + "的消息: " + decodedMessage);
-                saveChatLog(socket.getInetAddress().toString(), decodedMessage);  // 保存聊天记录
-                writer.write(Base64Util.encode("服务器已收到: " + decodedMessage) + "\n");
-            } catch (IllegalArgumentException e) {
-                appendMessage("解码失败，收到非Base64格式数据: " + line);
-                writer.write(Base64Util.encode("解码失败：无效的Base64数据") + "\n");
-            }
-            writer.flush();
-        }
-
-        // 保存聊天记录到数据库
-        private void saveChatLog(String clientAddr, String message) {
-            String sql = "INSERT INTO chat_log(client_addr, message) VALUES(?, ?);";
-            try (Connection conn = SqliteUtil.getConnection();
-                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                pstmt.setString(1, clientAddr);
-                pstmt.setString(2, message);
-                pstmt.executeUpdate();
-            } catch (SQLException e) {
-                appendMessage("保存聊天记录失败: " + e.getMessage());
-            }
-        }
-
-        // 保存文件记录到数据库
-        private void saveFileLog(String clientAddr, String filename, String path) {
-            String sql = "INSERT INTO file_log(client_addr, filename, path) VALUES(?, ?, ?);";
-            try (Connection conn = SqliteUtil.getConnection();
-                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                pstmt.setString(1, clientAddr);
-                pstmt.setString(2, filename);
-                pstmt.setString(3, path);
-                pstmt.executeUpdate();
-            } catch (SQLException e) {
-                appendMessage("保存文件记录失败: " + e.getMessage());
-            }
-        }
+    // 由网络线程调用，只入队不等待界面
+    @Override
+    public void onLog(String message) {
+        console.append(message);
     }
-}
\ No newline at end of file
+}
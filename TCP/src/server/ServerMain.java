@@ -0,0 +1,60 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.util.List;
+import util.HistoryEntry;
+
+/**
+ * 无界面启动服务器：日志经 ConsoleObserver 异步输出到标准输出，标准输入的每一行作为服务器广播发送，
+ * 以 /history 开头的行查询最近的聊天记录（/history [关键词]）。
+ * 用法：java server.ServerMain [blocking|virtual|nio]，其他参数见 ServerConfig。
+ */
+public class ServerMain {
+    public static void main(String[] args) throws InterruptedException {
+        ServerConfig config = ServerConfig.fromArgs(args);  // 解析启动参数
+        SqliteUtil.initDatabase();  // 初始化数据库
+        ServerCore core = new ServerCore(config);
+        ConsoleObserver output = new ConsoleObserver(System.out);  // 日志异步输出，网络线程不等待控制台
+        core.addObserver(output);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            core.shutdown();
+            output.close();
+        }, "server-shutdown"));
+        core.start();
+
+        // 标准输入结束（例如后台运行）后继续提供服务，直到进程被终止
+        try (BufferedReader console = new BufferedReader(new InputStreamReader(System.in))) {
+            String line;
+            while ((line = console.readLine()) != null) {
+                line = line.trim();
+                if (line.equals("/history") || line.startsWith("/history ")) {
+                    printHistory(line.substring("/history".length()).trim());
+                } else if (!line.isEmpty()) {
+                    core.broadcast(line);
+                }
+            }
+        } catch (IOException e) {
+            core.log("读取标准输入失败: " + e.getMessage());
+        }
+        core.awaitShutdown();
+    }
+
+    // 输出最近的一页聊天记录（所有房间）
+    private static void printHistory(String keyword) {
+        ChatHistory.Query query = new ChatHistory.Query();
+        query.keyword = keyword;
+        try {
+            List<HistoryEntry> entries = ChatHistory.query(query).entries;
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                HistoryEntry entry = entries.get(i);
+                System.out.println(entry.timestamp + " " + entry.clientAddress + ": " + entry.message);
+            }
+            System.out.println("共 " + entries.size() + " 条");
+        } catch (SQLException e) {
+            System.out.println("查询聊天记录失败: " + e.getMessage());
+        }
+    }
+}
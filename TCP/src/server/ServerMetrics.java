@@ -0,0 +1,281 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 服务器指标：全局计数器用 LongAdder，由各网络线程直接累加，不加锁也不争用同一个缓存行；
+ * 耗时用 DurationHistogram 记录。启动后注册为 JMX MXBean，并在本机端口上以 Prometheus
+ * 文本格式提供 /metrics，抓取时才汇总各计数器。每个连接自己的计数保存在 ClientHandler 中，
+ * 只通过 JMX 的 Connections 属性查看，不放进 Prometheus 输出，避免标签数量随连接数增长。
+ */
+final class ServerMetrics implements ServerMetricsMXBean {
+    private static final String OBJECT_NAME = "TCP.server:type=Metrics";
+
+    final LongAdder accepted = new LongAdder();          // 已接受的连接数
+    final LongAdder textMessagesIn = new LongAdder();    // 收到的文本行
+    final LongAdder binaryMessagesIn = new LongAdder();  // 收到的二进制帧
+    final LongAdder messagesOut = new LongAdder();       // 交给连接发送的回复、广播和文件段
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();          // 实际写到套接字的字节数
+    final LongAdder decodeFailures = new LongAdder();    // 无效的Base64数据、数字字段或帧
+    final LongAdder oversizeRejected = new LongAdder();  // 超过长度上限被丢弃的行或帧（见 FrameLimits）
+    final DurationHistogram broadcastFanout = new DurationHistogram();  // 一次广播或房间消息投递到所有成员的耗时
+
+    private final ServerCore core;
+    private HttpServer http;
+    private ObjectName objectName;
+
+    ServerMetrics(ServerCore core) {
+        this.core = core;
+    }
+
+    // 注册 MXBean，port 大于0时在本机回环地址上启动 /metrics 端点；失败只记录日志，不影响服务器运行
+    void start(int port) {
+        try {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!mbeans.isRegistered(name)) {
+                mbeans.registerMBean(this, name);
+                objectName = name;
+            }
+        } catch (JMException e) {
+            core.log("注册JMX指标失败: " + e.getMessage());
+        }
+        if (port <= 0) {
+            return;
+        }
+        try {
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            http.createContext("/metrics", this::handleScrape);
+            http.start();
+            core.log("指标端点: http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            http = null;
+            core.log("启动指标端点失败: " + e.getMessage());
+        }
+    }
+
+    void close() {
+        if (http != null) {
+            http.stop(0);
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException ignored) {}
+        }
+    }
+
+    private void handleScrape(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    // Prometheus 文本格式的全部指标
+    String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        counter(out, "chat_connections_accepted_total", "已接受的连接数", accepted.sum());
+        gauge(out, "chat_connections_active", "当前连接数", core.clientCount());
+        header(out, "chat_messages_in_total", "收到的消息数（文本行或二进制帧）", "counter");
+        out.append("chat_messages_in_total{protocol=\"text\"} ").append(textMessagesIn.sum()).append('\n');
+        out.append("chat_messages_in_total{protocol=\"binary\"} ").append(binaryMessagesIn.sum()).append('\n');
+        counter(out, "chat_messages_out_total", "交给连接发送的消息数（含之后因慢客户端被丢弃的广播）", messagesOut.sum());
+        counter(out, "chat_bytes_in_total", "从套接字读取的字节数", bytesIn.sum());
+        counter(out, "chat_bytes_out_total", "写到套接字的字节数", bytesOut.sum());
+        counter(out, "chat_decode_failures_total", "无法解码的消息数", decodeFailures.sum());
+        counter(out, "chat_oversize_messages_total", "超过长度上限被丢弃的消息数", oversizeRejected.sum());
+        counter(out, "chat_broadcast_dropped_total", "因发送队列已满丢弃的广播数", OutboundQueue.DROPPED.sum());
+        counter(out, "chat_slow_clients_disconnected_total", "因处理过慢被断开的客户端数", OutboundQueue.DISCONNECTED.sum());
+        histogram(out, "chat_broadcast_fanout_seconds", "一条广播或房间消息投递到所有成员的耗时", broadcastFanout);
+        RateLimiter limiter = core.limiter();
+        if (limiter != null) {
+            header(out, "chat_rate_limited_total", "超出限流的消息数，按处理方式（暂停读取为暂停次数）", "counter");
+            out.append("chat_rate_limited_total{action=\"delay\"} ").append(limiter.delayed.sum()).append('\n');
+            out.append("chat_rate_limited_total{action=\"drop\"} ").append(limiter.dropped.sum()).append('\n');
+            out.append("chat_rate_limited_total{action=\"disconnect\"} ").append(limiter.disconnected.sum()).append('\n');
+            counter(out, "chat_connections_rejected_total", "超过最大连接数被拒绝的连接数", limiter.rejected.sum());
+        }
+        IdleReaper reaper = core.reaper();
+        if (reaper != null) {
+            counter(out, "chat_heartbeat_pings_total", "发送给空闲连接的 PING 数", reaper.pings.sum());
+            counter(out, "chat_idle_connections_reaped_total", "因心跳超时或空闲被断开的连接数", reaper.reaped.sum());
+        }
+        ClusterRelay relay = core.relay();
+        if (relay != null) {
+            counter(out, "chat_cluster_relayed_out_total", "发送给其他节点的消息数（含断线重发）", relay.relayedOut.sum());
+            counter(out, "chat_cluster_relayed_in_total", "从其他节点收到并投递的消息数", relay.relayedIn.sum());
+            counter(out, "chat_cluster_duplicates_total", "从其他节点收到的重复消息数", relay.duplicates.sum());
+        }
+        AsyncLogWriter writer = core.logWriter();
+        if (writer != null) {
+            gauge(out, "chat_db_queue_depth", "等待写入数据库的记录数", writer.pending());
+            counter(out, "chat_db_records_written_total", "已写入数据库的记录数", writer.written());
+            counter(out, "chat_db_records_dropped_total", "队列已满或写入失败而丢弃的记录数", writer.dropped());
+            histogram(out, "chat_db_insert_seconds", "一批记录的插入和提交耗时", writer.insertLatency());
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, String help, DurationHistogram histogram) {
+        header(out, name, help, "histogram");
+        long[] counts = histogram.cumulativeCounts();
+        for (int i = 0; i < DurationHistogram.BOUNDS.length; i++) {
+            String le = BigDecimal.valueOf(DurationHistogram.BOUNDS[i]).stripTrailingZeros().toPlainString();
+            out.append(name).append("_bucket{le=\"").append(le).append("\"} ").append(counts[i]).append('\n');
+        }
+        long total = counts[counts.length - 1];
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(total).append('\n');
+        out.append(name).append("_sum ").append(histogram.sumSeconds()).append('\n');
+        out.append(name).append("_count ").append(total).append('\n');
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return accepted.sum();
+    }
+
+    @Override
+    public int getConnectionsActive() {
+        return core.clientCount();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return textMessagesIn.sum() + binaryMessagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getDecodeFailures() {
+        return decodeFailures.sum();
+    }
+
+    @Override
+    public long getOversizeMessages() {
+        return oversizeRejected.sum();
+    }
+
+    @Override
+    public int getDbQueueDepth() {
+        AsyncLogWriter writer = core.logWriter();
+        return writer != null ? writer.pending() : 0;
+    }
+
+    @Override
+    public long getDbRecordsWritten() {
+        AsyncLogWriter writer = core.logWriter();
+        return writer != null ? writer.written() : 0;
+    }
+
+    @Override
+    public long getDbRecordsDropped() {
+        AsyncLogWriter writer = core.logWriter();
+        return writer != null ? writer.dropped() : 0;
+    }
+
+    @Override
+    public double getDbInsertMeanMillis() {
+        AsyncLogWriter writer = core.logWriter();
+        return writer != null ? writer.insertLatency().meanMillis() : 0;
+    }
+
+    @Override
+    public double getDbInsertP99Millis() {
+        AsyncLogWriter writer = core.logWriter();
+        return writer != null ? writer.insertLatency().percentileMillis(99) : 0;
+    }
+
+    @Override
+    public double getBroadcastFanoutMeanMillis() {
+        return broadcastFanout.meanMillis();
+    }
+
+    @Override
+    public double getBroadcastFanoutP99Millis() {
+        return broadcastFanout.percentileMillis(99);
+    }
+
+    @Override
+    public long getBroadcastsDropped() {
+        return OutboundQueue.DROPPED.sum();
+    }
+
+    @Override
+    public long getSlowClientsDisconnected() {
+        return OutboundQueue.DISCONNECTED.sum();
+    }
+
+    @Override
+    public long getRateLimited() {
+        RateLimiter limiter = core.limiter();
+        return limiter != null ? limiter.delayed.sum() + limiter.dropped.sum() + limiter.disconnected.sum() : 0;
+    }
+
+    @Override
+    public long getConnectionsRejected() {
+        RateLimiter limiter = core.limiter();
+        return limiter != null ? limiter.rejected.sum() : 0;
+    }
+
+    @Override
+    public long getIdleConnectionsReaped() {
+        IdleReaper reaper = core.reaper();
+        return reaper != null ? reaper.reaped.sum() : 0;
+    }
+
+    @Override
+    public String[] getConnections() {
+        return core.connectionStats();
+    }
+}
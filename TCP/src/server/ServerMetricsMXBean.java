@@ -0,0 +1,50 @@
+package server;
+
+/**
+ * 通过 JMX 查看的服务器指标（jconsole/VisualVM 中的 TCP.server:type=Metrics），
+ * 与 Prometheus 端点输出的是同一组计数器。耗时为毫秒，百分位取所在直方图桶的上界。
+ */
+public interface ServerMetricsMXBean {
+    long getConnectionsAccepted();
+
+    int getConnectionsActive();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getDecodeFailures();
+
+    long getOversizeMessages();
+
+    int getDbQueueDepth();
+
+    long getDbRecordsWritten();
+
+    long getDbRecordsDropped();
+
+    double getDbInsertMeanMillis();
+
+    double getDbInsertP99Millis();
+
+    double getBroadcastFanoutMeanMillis();
+
+    double getBroadcastFanoutP99Millis();
+
+    long getBroadcastsDropped();
+
+    long getSlowClientsDisconnected();
+
+    long getRateLimited();
+
+    long getConnectionsRejected();
+
+    long getIdleConnectionsReaped();
+
+    // 每个连接一行：地址、协议、连接秒数、收到的消息数和字节数
+    String[] getConnections();
+}
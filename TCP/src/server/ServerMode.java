@@ -0,0 +1,19 @@
+package server;
+
+// 服务器IO模式，启动时通过命令行参数或 -Dserver.mode 选择
+public enum ServerMode {
+    BLOCKING,  // 阻塞模式：每个客户端占用一个线程
+    VIRTUAL,   // 虚拟线程模式：阻塞式代码，每个客户端占用一个虚拟线程
+    NIO;       // 非阻塞模式：少量Selector事件循环线程处理所有连接
+
+    // 解析启动参数，未指定时使用阻塞模式
+    public static ServerMode fromArgs(String[] args) {
+        String value = args.length > 0 ? args[0] : System.getProperty("server.mode", "blocking");
+        for (ServerMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(value.trim())) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("未知的服务器模式: " + value);
+    }
+}
@@ -0,0 +1,6 @@
+package server;
+
+// 服务器事件的观察者（界面或控制台），回调在网络线程上执行，实现不能阻塞
+interface ServerObserver {
+    void onLog(String message);
+}
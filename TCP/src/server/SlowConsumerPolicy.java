@@ -0,0 +1,19 @@
+package server;
+
+// 慢客户端策略：广播消息写入某个连接的发送队列时队列已满的处理方式，通过 -Dbroadcast.policy 选择
+public enum SlowConsumerPolicy {
+    DROP_OLDEST,  // 丢弃队列中最旧的一条广播，放入新消息
+    DISCONNECT,   // 断开该客户端
+    BLOCK;        // 等待队列腾出空间，超过 broadcast.block_ms 仍无空间时丢弃新消息
+
+    // 读取系统属性，未指定时丢弃最旧消息
+    public static SlowConsumerPolicy fromProperty() {
+        String value = System.getProperty("broadcast.policy", "drop_oldest");
+        for (SlowConsumerPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(value.trim())) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("未知的慢客户端策略: " + value);
+    }
+}
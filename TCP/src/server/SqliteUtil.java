@@ -3,21 +3,52 @@ package server;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * SQLite 持久化工具。
+ * 数据库使用 WAL 日志模式：一个专用写连接（由 AsyncLogWriter 持有）加一个小的只读连接池，
+ * 读查询不会阻塞写入。chat_logs 的消息由 AsyncLogWriter 在写入空闲时批量补充到 FTS5 全文索引 chat_logs_fts，
+ * 已建索引的最大 id 记录在 chat_logs_fts_state 中（见 ChatHistory）。连接参数可通过系统属性调整：
+ * sqlite.file、sqlite.synchronous、sqlite.cache_size、sqlite.mmap_size、sqlite.temp_store、sqlite.readers。
+ */
 public final class SqliteUtil {
-    private static final String DB_FILE = "data/messages.db";
+    private static final String DB_FILE = System.getProperty("sqlite.file", "data/messages.db");  // 数据库文件
     private static final String DB_URL = "jdbc:sqlite:" + DB_FILE;
+    private static final int BUSY_TIMEOUT_MS = 3000;
+
+    // 连接参数，WAL 模式下 synchronous=NORMAL 只在断电时可能丢失最近提交的事务
+    private static final String SYNCHRONOUS = pragmaOption("sqlite.synchronous", "NORMAL",
+            Set.of("OFF", "NORMAL", "FULL", "EXTRA"));
+    private static final long CACHE_SIZE = Long.getLong("sqlite.cache_size", -16000);      // 负数表示KB，约16MB
+    private static final long MMAP_SIZE = Long.getLong("sqlite.mmap_size", 268435456);     // 256MB
+    private static final String TEMP_STORE = pragmaOption("sqlite.temp_store", "MEMORY",
+            Set.of("DEFAULT", "FILE", "MEMORY"));
+    private static final int READER_COUNT = Math.max(1, Integer.getInteger("sqlite.readers", 4));
+
+    private static final BlockingQueue<PooledConnection> idleReaders = new ArrayBlockingQueue<>(READER_COUNT);
+    private static final AtomicInteger openReaders = new AtomicInteger();
+
     private static final String CREATE_CHAT_LOG_TABLE =
             "CREATE TABLE IF NOT EXISTS chat_logs (" +
                     "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
                     "client_address TEXT NOT NULL, " +
                     "message TEXT NOT NULL, " +
-                    "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP" +
+                    "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP, " +
+                    "room TEXT" +   // 房间消息所属的房间，公共聊天为 NULL
                     ");";
 
     private static final String CREATE_FILE_LOG_TABLE =
@@ -26,13 +57,51 @@ public final class SqliteUtil {
                     "client_address TEXT NOT NULL, " +
                     "filename TEXT NOT NULL, " +
                     "file_path TEXT NOT NULL, " +
-                    "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP" +
+                    "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP, " +
+                    "sha256 TEXT, " +   // 文件内容的 SHA-256，内容保存在 uploads/objects 下（见 FileStore）
+                    "size INTEGER" +
+                    ");";
+
+    private static final String[] CREATE_INDEXES = {
+            "CREATE INDEX IF NOT EXISTS idx_chat_logs_timestamp ON chat_logs(timestamp);",
+            "CREATE INDEX IF NOT EXISTS idx_chat_logs_client_address ON chat_logs(client_address);",
+            "CREATE INDEX IF NOT EXISTS idx_chat_logs_room ON chat_logs(room, id);",
+            "CREATE INDEX IF NOT EXISTS idx_file_logs_timestamp ON file_logs(timestamp);",
+            "CREATE INDEX IF NOT EXISTS idx_file_logs_client_address ON file_logs(client_address);",
+            "CREATE INDEX IF NOT EXISTS idx_file_logs_filename ON file_logs(filename, id);"
+    };
+
+    // chat_logs 的外部内容全文索引，trigram 分词支持中文等不以空格分词的文本按子串搜索
+    private static final String CREATE_CHAT_LOG_FTS =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS chat_logs_fts USING fts5(" +
+                    "message, content='chat_logs', content_rowid='id', tokenize='trigram');";
+
+    // 全文索引已覆盖到的 chat_logs 最大 id，只有一行
+    private static final String CREATE_FTS_STATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS chat_logs_fts_state (" +
+                    "id INTEGER PRIMARY KEY CHECK (id = 0), " +
+                    "last_id INTEGER NOT NULL" +
                     ");";
 
+    // 新消息不用触发器同步：trigram 分词会使每次插入慢数倍，改由 AsyncLogWriter 在写入空闲时批量建索引。
+    // 删除或修改已建索引的消息时由触发器同步
+    private static final String[] CREATE_FTS_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS chat_logs_fts_delete AFTER DELETE ON chat_logs " +
+                    "WHEN old.id <= (SELECT last_id FROM chat_logs_fts_state) BEGIN " +
+                    "INSERT INTO chat_logs_fts(chat_logs_fts, rowid, message) VALUES ('delete', old.id, old.message); END;",
+            "CREATE TRIGGER IF NOT EXISTS chat_logs_fts_update AFTER UPDATE OF message ON chat_logs " +
+                    "WHEN old.id <= (SELECT last_id FROM chat_logs_fts_state) BEGIN " +
+                    "INSERT INTO chat_logs_fts(chat_logs_fts, rowid, message) VALUES ('delete', old.id, old.message); " +
+                    "INSERT INTO chat_logs_fts(rowid, message) VALUES (new.id, new.message); END;"
+    };
+
     static {
         try {
             Class.forName("org.sqlite.JDBC");
-            Files.createDirectories(Paths.get("data")); // Ensure data directory exists
+            Path parent = Paths.get(DB_FILE).toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent); // Ensure data directory exists
+            }
         } catch (ClassNotFoundException e) {
             System.err.println("Error: SQLite JDBC driver not found.");
             System.exit(1);
@@ -43,18 +112,139 @@ public final class SqliteUtil {
 
     private SqliteUtil() {} // Prevents instantiation
 
+    // 打开一个已应用连接参数的新连接，由调用方负责关闭
     public static Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(DB_URL + "?busy_timeout=3000");
+        Connection conn = DriverManager.getConnection(DB_URL + "?busy_timeout=" + BUSY_TIMEOUT_MS);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA synchronous=" + SYNCHRONOUS + ";");
+            stmt.execute("PRAGMA cache_size=" + CACHE_SIZE + ";");
+            stmt.execute("PRAGMA mmap_size=" + MMAP_SIZE + ";");
+            stmt.execute("PRAGMA temp_store=" + TEMP_STORE + ";");
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        return conn;
+    }
+
+    // 打开专用写连接（手动提交事务），整个进程只应有一个写连接
+    public static PooledConnection openWriter() throws SQLException {
+        Connection conn = getConnection();
+        conn.setAutoCommit(false);
+        return new PooledConnection(conn, false);
+    }
+
+    // 从只读连接池借出一个连接，使用完毕后调用 close() 归还
+    public static PooledConnection borrowReader() throws SQLException {
+        PooledConnection reader = idleReaders.poll();
+        if (reader != null) {
+            return reader;
+        }
+        if (openReaders.incrementAndGet() <= READER_COUNT) {
+            try {
+                Connection conn = getConnection();
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("PRAGMA query_only=ON;");
+                }
+                return new PooledConnection(conn, true);
+            } catch (SQLException e) {
+                openReaders.decrementAndGet();
+                throw e;
+            }
+        }
+        openReaders.decrementAndGet();
+        try {
+            reader = idleReaders.poll(BUSY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (reader == null) {
+            throw new SQLException("等待数据库读连接超时");
+        }
+        return reader;
+    }
+
+    // 只读连接池的大小，也是同时进行的读查询数上限
+    static int readerCount() {
+        return READER_COUNT;
+    }
+
+    static void releaseReader(PooledConnection reader) {
+        if (!idleReaders.offer(reader)) {
+            reader.closePhysical();
+            openReaders.decrementAndGet();
+        }
+    }
+
+    // 关闭连接池中所有空闲的读连接
+    public static void closeReaders() {
+        PooledConnection reader;
+        while ((reader = idleReaders.poll()) != null) {
+            reader.closePhysical();
+            openReaders.decrementAndGet();
+        }
     }
 
     public static void initDatabase() {
         try (Connection conn = getConnection();
              Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode=WAL;");  // WAL 模式持久保存在数据库文件中
             stmt.execute(CREATE_CHAT_LOG_TABLE);
             stmt.execute(CREATE_FILE_LOG_TABLE);
+            addColumnIfMissing(conn, "chat_logs", "room", "TEXT");  // 旧版本创建的表没有 room 列
+            addColumnIfMissing(conn, "file_logs", "sha256", "TEXT");
+            addColumnIfMissing(conn, "file_logs", "size", "INTEGER");
+            for (String index : CREATE_INDEXES) {
+                stmt.execute(index);
+            }
+            if (!tableExists(conn, "chat_logs_fts")) {
+                // 旧版本数据库已有的聊天记录由 AsyncLogWriter 从头补建索引，不阻塞启动
+                stmt.execute("DROP TABLE IF EXISTS chat_logs_fts_state;");
+            }
+            stmt.execute(CREATE_CHAT_LOG_FTS);
+            stmt.execute(CREATE_FTS_STATE_TABLE);
+            stmt.execute("INSERT OR IGNORE INTO chat_logs_fts_state(id, last_id) VALUES (0, 0);");
+            for (String trigger : CREATE_FTS_TRIGGERS) {
+                stmt.execute(trigger);
+            }
             System.out.println("SQLite database initialized successfully.");
         } catch (SQLException e) {
             System.err.println("Error initializing database: " + e.getMessage());
         }
     }
+
+    private static boolean tableExists(Connection conn, String table) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?;")) {
+            stmt.setString(1, table);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static void addColumnIfMissing(Connection conn, String table, String column, String type)
+            throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ");")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) {
+                    return;
+                }
+            }
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type + ";");
+        }
+    }
+
+    // 读取取值受限的 PRAGMA 参数，非法值回退到默认值
+    private static String pragmaOption(String property, String defaultValue, Set<String> allowed) {
+        String value = System.getProperty(property, defaultValue).trim().toUpperCase(Locale.ROOT);
+        if (!allowed.contains(value)) {
+            System.err.println("Invalid " + property + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+        return value;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,160 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import util.NetOptions;
+
+/**
+ * 阻塞模式（平台线程或虚拟线程）下基于 Socket 输出流的 ClientOutput。
+ * 用 ReentrantLock 保证整段写出，虚拟线程阻塞在写操作上时不会钉住载体线程。
+ * 广播消息进入有界队列，由提交到服务器线程池的写出任务逐个连接串行写出，广播线程不做网络IO。
+ */
+class StreamClientOutput implements ClientOutput {
+    private static final int STALL_CHUNK_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Executor drainExecutor;
+    private final OutboundQueue broadcasts = new OutboundQueue();
+    private final ServerMetrics metrics;
+    private final AtomicBoolean draining = new AtomicBoolean();  // 是否已有写出任务在运行
+    private volatile boolean closed;
+    private ByteBuffer stallBuffer;  // transferTo 因发送缓冲区已满返回 0 时使用，首次需要时分配
+
+    StreamClientOutput(Socket socket, Executor drainExecutor, ServerMetrics metrics) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream(), NetOptions.WRITE_BUFFER);
+        this.drainExecutor = drainExecutor;
+        this.metrics = metrics;
+    }
+
+    // 只写入缓冲区，由处理线程在输入处理完时调用 flush()，缓冲区写满时自动写出
+    @Override
+    public void send(ByteBuffer data) throws IOException {
+        lock.lock();
+        try {
+            out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } finally {
+            lock.unlock();
+        }
+        metrics.messagesOut.increment();
+        metrics.bytesOut.add(data.remaining());
+    }
+
+    @Override
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            out.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void sendFile(ByteBuffer header, FileChannel file, long position, long count, boolean closeWhenDone)
+            throws IOException {
+        lock.lock();
+        try {
+            out.write(header.array(), header.arrayOffset() + header.position(), header.remaining());
+            out.flush();
+            metrics.messagesOut.increment();
+            metrics.bytesOut.add(header.remaining());
+            // 通过 ServerSocketChannel 接受的连接有对应的 SocketChannel，transferTo 可以走 sendfile
+            WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(out);
+            while (count > 0) {
+                long n = file.transferTo(position, count, target);
+                if (n <= 0) {
+                    // 虚拟线程下套接字实际是非阻塞的，发送缓冲区满时 transferTo 返回 0，
+                    // 此时经由 channel.write 写出一块，它会挂起虚拟线程直到可写
+                    n = writeStalled(file, position, count, target);
+                }
+                position += n;
+                count -= n;
+                metrics.bytesOut.add(n);
+            }
+        } finally {
+            lock.unlock();
+            if (closeWhenDone) {
+                file.close();
+            }
+        }
+    }
+
+    @Override
+    public void offer(ByteBuffer data) {
+        if (closed) {
+            return;
+        }
+        if (!broadcasts.offer(data, true)) {
+            close();  // DISCONNECT 策略
+            return;
+        }
+        metrics.messagesOut.increment();
+        if (draining.compareAndSet(false, true)) {
+            try {
+                drainExecutor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                draining.set(false);  // 服务器正在关闭
+            }
+        }
+    }
+
+    // 写出队列中的全部广播，多条消息只 flush 一次；写出期间新入队的消息由同一任务继续处理
+    private void drain() {
+        do {
+            lock.lock();
+            try {
+                ByteBuffer data;
+                while ((data = broadcasts.poll()) != null) {
+                    out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                    metrics.bytesOut.add(data.remaining());
+                }
+                out.flush();
+            } catch (IOException e) {
+                close();  // 读取线程随后发现连接关闭并注销该客户端
+            } finally {
+                lock.unlock();
+                draining.set(false);
+            }
+        } while (!closed && !broadcasts.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    private int writeStalled(FileChannel file, long position, long count, WritableByteChannel target)
+            throws IOException {
+        if (stallBuffer == null) {
+            stallBuffer = ByteBuffer.allocateDirect(STALL_CHUNK_SIZE);
+        }
+        ByteBuffer buffer = stallBuffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), count));
+        if (file.read(buffer, position) <= 0) {
+            throw new IOException("文件在发送过程中被截断");
+        }
+        buffer.flip();
+        int written = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        return written;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        broadcasts.clear();
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,41 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 令牌桶，按 GCRA 实现：不保存令牌数，只保存“桶重新装满的时刻”，每次取令牌把它向后推，
+ * 用一次 CAS 更新，多个线程共用同一个桶（同一地址的多个连接）时不加锁。
+ * rate 为每秒补充的令牌数，burst 为桶容量（空闲后最多可以连续取走的令牌数）。
+ */
+final class TokenBucket {
+    private final double nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE / 2);  // 桶装满的时刻（System.nanoTime 时间）
+
+    TokenBucket(double rate, double burst) {
+        this.nanosPerToken = 1e9 / rate;
+        this.burstNanos = (long) (Math.max(1, burst) * nanosPerToken);
+    }
+
+    // 取 tokens 个令牌：成功返回 0，否则不扣除并返回还需等待的纳秒数。
+    // 一次取的令牌超过桶容量时，只要桶是满的就允许，之后的请求按欠下的令牌等待
+    long tryAcquire(long tokens, long now) {
+        long cost = (long) (tokens * nanosPerToken);
+        while (true) {
+            long current = fullAt.get();
+            long start = Math.max(current, now);
+            long wait = start + cost - burstNanos - now;
+            if (wait > 0 && current > now) {
+                return Math.min(wait, current - now);
+            }
+            if (fullAt.compareAndSet(current, start + cost)) {
+                return 0;
+            }
+        }
+    }
+
+    // 退还 tryAcquire 成功取走的令牌（另一个桶不足、消息没有被处理时）
+    void refund(long tokens) {
+        fullAt.addAndGet(-(long) (tokens * nanosPerToken));
+    }
+}
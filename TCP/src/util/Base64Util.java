@@ -1,15 +1,44 @@
 package util;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Base64;
 
+/**
+ * Base64 编解码，使用标准字母表和 = 填充，规则与 java.util.Base64 的基本编解码器一致
+ * （解码时填充可以省略，但出现时数量必须正确，不接受换行等其他字符）。
+ * 除返回新 String/byte[] 的便捷方法外，还提供数组区间、ByteBuffer 和流的编解码。
+ * 整个数组或需要分配结果时交给 java.util.Base64（JIT 有向量化实现）；原地编解码和解码数组区间到调用方的数组时
+ * 使用逐组编解码的循环，不分配内存。文本协议直接从收到的行字节中解码，不经过 String。
+ */
 public class Base64Util {
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] DECODE = new byte[256];  // 字符 -> 6位值，不在字母表中为 -1
+
+    static {
+        Arrays.fill(DECODE, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE[ALPHABET[i]] = (byte) i;
+        }
+    }
+
     private Base64Util() {} // Prevents instantiation
 
     public static String encode(byte[] data) {
         return Base64.getEncoder().encodeToString(data);
     }
 
+    public static String encode(byte[] data, int offset, int length) {
+        ByteBuffer encoded = Base64.getEncoder().encode(ByteBuffer.wrap(data, offset, length));
+        return new String(encoded.array(), 0, encoded.limit(), StandardCharsets.ISO_8859_1);
+    }
+
     public static String encode(String text) {
         return encode(text.getBytes(StandardCharsets.UTF_8));
     }
@@ -22,12 +51,229 @@ public class Base64Util {
         return new String(decode(base64String), StandardCharsets.UTF_8);
     }
 
-    public static boolean isValidBase64(String str) {
+    public static boolean isValidBase64(CharSequence str) {
         try {
-            Base64.getDecoder().decode(str);
+            Base64.getDecoder().decode(str.toString());
             return true;
         } catch (IllegalArgumentException e) {
             return false;
         }
     }
-}
\ No newline at end of file
+
+    // length 字节编码后的字符数
+    public static int encodedLength(int length) {
+        long encoded = (length + 2L) / 3 * 4;
+        if (encoded > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("数据过长: " + length);
+        }
+        return (int) encoded;
+    }
+
+    // [offset, offset+length) 中的Base64文本解码后的字节数，只看末尾的填充，不检查内容
+    public static int decodedLength(byte[] src, int offset, int length) {
+        int end = offset + length;
+        int padding = 0;
+        if (length > 0 && src[end - 1] == '=') {
+            padding = length > 1 && src[end - 2] == '=' ? 2 : 1;
+        }
+        return dataLength(length - padding);
+    }
+
+    private static int dataLength(int chars) {
+        return chars / 4 * 3 + Math.max(0, chars % 4 - 1);
+    }
+
+    // 编码到调用方的数组，返回写入的字符数。src 与 dst 可以是同一数组的同一起点（原地编码，从末尾向前逐组编码），
+    // 此时数组需要能容纳 encodedLength(length) 字节。编码整个 src 到另一个数组的开头时不分配内存；
+    // 其余情况由 java.util.Base64 编码到临时数组后复制（在前缀之后编码时，可以先编码到开头再移动，见 ServerCore.base64Line）
+    public static int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        int encoded = encodedLength(length);
+        if (dstOffset < 0 || dstOffset + encoded > dst.length) {
+            throw new ArrayIndexOutOfBoundsException("目标缓冲区不足: 需要 " + encoded + " 字节");
+        }
+        if (src != dst) {
+            if (offset == 0 && length == src.length && dstOffset == 0) {
+                return Base64.getEncoder().encode(src, dst);
+            }
+            ByteBuffer result = Base64.getEncoder().encode(ByteBuffer.wrap(src, offset, length));
+            System.arraycopy(result.array(), 0, dst, dstOffset, encoded);
+            return encoded;
+        }
+        int full = length / 3 * 3;
+        int sp = offset + full;
+        int dp = dstOffset + encoded;
+        int rest = length - full;
+        if (rest > 0) {
+            int b0 = src[sp] & 0xff;
+            int b1 = rest == 2 ? src[sp + 1] & 0xff : 0;
+            dp -= 4;
+            dst[dp] = ALPHABET[b0 >>> 2];
+            dst[dp + 1] = ALPHABET[(b0 << 4 | b1 >>> 4) & 0x3f];
+            dst[dp + 2] = rest == 2 ? ALPHABET[(b1 << 2) & 0x3f] : (byte) '=';
+            dst[dp + 3] = '=';
+        }
+        while (sp > offset) {
+            sp -= 3;
+            int bits = (src[sp] & 0xff) << 16 | (src[sp + 1] & 0xff) << 8 | src[sp + 2] & 0xff;
+            dp -= 4;
+            dst[dp] = ALPHABET[bits >>> 18];
+            dst[dp + 1] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[dp + 2] = ALPHABET[(bits >>> 6) & 0x3f];
+            dst[dp + 3] = ALPHABET[bits & 0x3f];
+        }
+        return encoded;
+    }
+
+    // 编码 src 的剩余字节并写入 dst，两者的 position 随之前移
+    public static void encode(ByteBuffer src, ByteBuffer dst) {
+        int length = src.remaining();
+        int encoded = encodedLength(length);
+        if (dst.remaining() < encoded) {
+            throw new BufferOverflowException();
+        }
+        if (src.hasArray() && dst.hasArray() && !dst.isReadOnly()) {
+            encode(src.array(), src.arrayOffset() + src.position(), length,
+                    dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.limit());
+            dst.position(dst.position() + encoded);
+        } else {
+            dst.put(Base64.getEncoder().encode(src));  // 堆外缓冲区退回 java.util.Base64，会分配临时缓冲区
+        }
+    }
+
+    // 解码 [offset, offset+length) 中的Base64文本，内容无效时抛出 IllegalArgumentException。
+    // 直接读取 src 中的这段字节（不复制、不截取子串），只分配解码结果；返回的缓冲区 position 为 0
+    public static ByteBuffer decode(byte[] src, int offset, int length) {
+        return Base64.getDecoder().decode(ByteBuffer.wrap(src, offset, length));
+    }
+
+    // 解码 [offset, offset+length) 中的Base64编码的UTF-8文本
+    public static String decodeToString(byte[] src, int offset, int length) {
+        ByteBuffer decoded = decode(src, offset, length);
+        return new String(decoded.array(), 0, decoded.limit(), StandardCharsets.UTF_8);
+    }
+
+    // 解码到调用方的数组，返回写入的字节数，内容无效时抛出 IllegalArgumentException。不分配内存：
+    // 解码整个 src 到另一个数组的开头时交给 java.util.Base64，其余情况（数组区间、原地解码）逐组解码。
+    // 同一数组时 dstOffset 不能大于 offset（从前向后逐组解码）
+    public static int decode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        if (dstOffset < 0 || dstOffset + decodedLength(src, offset, length) > dst.length) {
+            throw new ArrayIndexOutOfBoundsException("目标缓冲区不足: 需要 " + decodedLength(src, offset, length) + " 字节");
+        }
+        if (src != dst && offset == 0 && length == src.length && dstOffset == 0) {
+            return Base64.getDecoder().decode(src, dst);
+        }
+        int end = offset + length;
+        int dataEnd = paddingStart(src, offset, end);
+        if (dataEnd < 0) {
+            throw new IllegalArgumentException("无效的Base64填充");
+        }
+        int sp = offset;
+        int dp = dstOffset;
+        for (int fullEnd = offset + (dataEnd - offset) / 4 * 4; sp < fullEnd; sp += 4) {
+            int bits = DECODE[src[sp] & 0xff] << 18 | DECODE[src[sp + 1] & 0xff] << 12
+                    | DECODE[src[sp + 2] & 0xff] << 6 | DECODE[src[sp + 3] & 0xff];
+            if (bits < 0) {
+                throw invalid(sp);
+            }
+            dst[dp++] = (byte) (bits >> 16);
+            dst[dp++] = (byte) (bits >> 8);
+            dst[dp++] = (byte) bits;
+        }
+        int rest = dataEnd - sp;
+        if (rest == 1) {
+            throw invalid(sp);
+        }
+        if (rest > 1) {
+            int bits = DECODE[src[sp] & 0xff] << 18 | DECODE[src[sp + 1] & 0xff] << 12
+                    | (rest == 3 ? DECODE[src[sp + 2] & 0xff] << 6 : 0);
+            if (bits < 0) {
+                throw invalid(sp);
+            }
+            dst[dp++] = (byte) (bits >> 16);
+            if (rest == 3) {
+                dst[dp++] = (byte) (bits >> 8);
+            }
+        }
+        return dp - dstOffset;
+    }
+
+    // 解码 src 的剩余字节并写入 dst，两者的 position 随之前移
+    public static void decode(ByteBuffer src, ByteBuffer dst) {
+        if (src.hasArray() && dst.hasArray() && !dst.isReadOnly()) {
+            int length = src.remaining();
+            if (dst.remaining() < decodedLength(src.array(), src.arrayOffset() + src.position(), length)) {
+                throw new BufferOverflowException();
+            }
+            int decoded = decode(src.array(), src.arrayOffset() + src.position(), length,
+                    dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.limit());
+            dst.position(dst.position() + decoded);
+        } else {
+            dst.put(Base64.getDecoder().decode(src));  // 堆外缓冲区退回 java.util.Base64，会分配临时缓冲区
+        }
+    }
+
+    // 把 in 中的全部字节编码后写入 out，返回读取的字节数。整个过程只使用调用方的 buffer（至少4字节）：
+    // 每次读入 buffer 能容纳的3的倍数个字节，原地编码后写出
+    public static long encode(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        int chunk = buffer.length / 4 * 3;
+        if (chunk == 0) {
+            throw new IllegalArgumentException("缓冲区至少需要4字节");
+        }
+        long total = 0;
+        while (true) {
+            int n = in.readNBytes(buffer, 0, chunk);
+            if (n > 0) {
+                out.write(buffer, 0, encode(buffer, 0, n, buffer, 0));
+                total += n;
+            }
+            if (n < chunk) {
+                return total;
+            }
+        }
+    }
+
+    // 把 in 中的全部Base64文本解码后写入 out，返回写出的字节数。整个过程只使用调用方的 buffer（至少8字节）：
+    // 每次读满 buffer 后原地解码，最后一组4个字符留到下一轮，填充只允许出现在流的末尾
+    public static long decode(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        int capacity = buffer.length / 4 * 4;
+        if (capacity < 8) {
+            throw new IllegalArgumentException("缓冲区至少需要8字节");
+        }
+        long total = 0;
+        int pending = 0;  // 上一轮留下的字符数
+        while (true) {
+            int n = pending + in.readNBytes(buffer, pending, capacity - pending);
+            if (n < capacity) {
+                int decoded = decode(buffer, 0, n, buffer, 0);
+                out.write(buffer, 0, decoded);
+                return total + decoded;
+            }
+            int body = capacity - 4;
+            int decoded = decode(buffer, 0, body, buffer, 0);
+            if (decoded != body / 4 * 3) {
+                throw new IllegalArgumentException("Base64填充出现在数据中间");
+            }
+            out.write(buffer, 0, decoded);
+            total += decoded;
+            System.arraycopy(buffer, body, buffer, 0, 4);
+            pending = 4;
+        }
+    }
+
+    // 数据部分的结束位置（末尾填充之前），填充个数不正确时返回 -1
+    private static int paddingStart(byte[] src, int start, int end) {
+        if (end > start && src[end - 1] == '=') {
+            if ((end - start) % 4 != 0) {
+                return -1;
+            }
+            return src[end - 2] == '=' ? end - 2 : end - 1;
+        }
+        return end;
+    }
+
+    private static IllegalArgumentException invalid(int position) {
+        return new IllegalArgumentException("无效的Base64数据，位置 " + position);
+    }
+}
@@ -0,0 +1,232 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 二进制帧协议：客户端在 VERSION_CHECK 握手中声明 CAPABILITY，服务端在版本检查结果末尾
+ * 回应同一标记后，双方从下一个字节开始改用二进制帧，不再经过 Base64。
+ * 帧格式: [类型 1字节][负载长度 4字节，大端][负载]
+ */
+public final class BinaryProtocol {
+    public static final String CAPABILITY = "BINARY1";  // 握手时协商的协议版本标记，随后可跟一个压缩算法列表
+    public static final int HEADER_SIZE = 5;
+
+    public static final byte MESSAGE = 1;        // 文本消息：UTF-8 文本
+    public static final byte VERSION_CHECK = 2;  // 版本检查：客户端发送版本号，服务端回复检查结果
+    public static final byte FILE_BEGIN = 3;     // 分块上传开始：[上传ID int][文件大小 long][文件名 UTF-8]
+    public static final byte FILE_CHUNK = 4;     // 分块上传数据：[上传ID int][偏移 long][原始字节]
+    public static final byte FILE_END = 5;       // 分块上传结束：[上传ID int]
+    public static final byte ACK = 6;            // 上传结果确认：[上传ID int][UTF-8 文本]
+    public static final byte FILE_GET = 7;       // 下载请求：[请求ID int][起始偏移 long][长度 long，负数表示到文件末尾][文件名 UTF-8]
+    public static final byte FILE_DATA = 8;      // 下载数据段：[请求ID int][偏移 long][文件总大小 long][原始字节]
+    public static final byte FILE_ERROR = 9;     // 下载失败：[请求ID int][UTF-8 原因]
+    public static final byte ROOM_JOIN = 10;     // 加入房间：[房间名 UTF-8]
+    public static final byte ROOM_LEAVE = 11;    // 离开房间：[房间名 UTF-8]
+    public static final byte ROOM_MESSAGE = 12;  // 客户端发送的房间消息：[房间名长度 short][房间名 UTF-8][UTF-8 文本]
+    public static final byte HISTORY = 13;       // 聊天记录查询：[请求ID int][起始id long][条数 int][房间名长度 short][房间名 UTF-8][关键词 UTF-8]
+    public static final byte HISTORY_PAGE = 14;  // 查询结果：[请求ID int][下一页起始id long][条数 int]，每条为
+                                                 // [id long][时间长度 short][时间][地址长度 short][地址][消息长度 int][消息]
+    public static final byte CHAT = 15;          // 服务端转发的房间消息或广播：[消息id long][房间名长度 short][房间名 UTF-8，空表示广播][UTF-8 文本]
+    public static final byte REPLAY = 16;        // 回放请求：[消息id long，只回放其后的消息][房间名 UTF-8，空表示广播]
+    public static final byte FILE_OFFER = 17;    // 按哈希提交上传：[上传ID int][文件大小 long][SHA-256 32字节][文件名 UTF-8]
+    public static final byte FILE_RESUME = 18;   // 提交上传的回复：[上传ID int][续传偏移 long]，等于文件大小表示服务器已有该内容，
+                                                 // -1 表示相同内容正在由其他连接上传，-2 表示拒绝（原因随后以 ACK 发送）
+    public static final byte PING = 19;          // 心跳：[令牌 long]，收到后以 PONG 原样回复令牌。客户端握手后先发送一个，表示支持心跳
+    public static final byte PONG = 20;          // 心跳回复：[令牌 long]
+    public static final byte COMPRESSED = (byte) 0x80;  // 类型字节的最高位：负载已压缩（见 FrameCompression）
+    public static final int SHA256_SIZE = 32;
+    public static final int FILE_CHUNK_HEADER = 12;  // FILE_CHUNK 负载中原始字节之前的字段长度
+    public static final int FILE_DATA_HEADER = 20;  // FILE_DATA 负载中原始字节之前的字段长度
+
+    private BinaryProtocol() {} // Prevents instantiation
+
+    // 文本类帧（MESSAGE、VERSION_CHECK、ROOM_JOIN、ROOM_LEAVE）
+    public static ByteBuffer textFrame(byte type, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+        frame.put(type).putInt(bytes.length).put(bytes);
+        return frame.flip();
+    }
+
+    // PING 或 PONG 帧
+    public static ByteBuffer heartbeat(byte type, long token) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 8);
+        frame.put(type).putInt(8).putLong(token);
+        return frame.flip();
+    }
+
+    public static ByteBuffer fileBegin(int uploadId, long size, String filename) {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 12 + name.length);
+        frame.put(FILE_BEGIN).putInt(12 + name.length).putInt(uploadId).putLong(size).put(name);
+        return frame.flip();
+    }
+
+    public static ByteBuffer fileOffer(int uploadId, long size, byte[] sha256, String filename) {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        int length = 12 + SHA256_SIZE + name.length;
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        frame.put(FILE_OFFER).putInt(length).putInt(uploadId).putLong(size).put(sha256, 0, SHA256_SIZE).put(name);
+        return frame.flip();
+    }
+
+    public static ByteBuffer fileResume(int uploadId, long offset) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 12);
+        frame.put(FILE_RESUME).putInt(12).putInt(uploadId).putLong(offset);
+        return frame.flip();
+    }
+
+    public static ByteBuffer fileEnd(int uploadId) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 4);
+        frame.put(FILE_END).putInt(4).putInt(uploadId);
+        return frame.flip();
+    }
+
+    public static ByteBuffer ack(int uploadId, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 4 + bytes.length);
+        frame.put(ACK).putInt(4 + bytes.length).putInt(uploadId).put(bytes);
+        return frame.flip();
+    }
+
+    public static ByteBuffer fileGet(int requestId, long offset, long length, String filename) {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 20 + name.length);
+        frame.put(FILE_GET).putInt(20 + name.length).putInt(requestId).putLong(offset).putLong(length).put(name);
+        return frame.flip();
+    }
+
+    // FILE_DATA 帧中原始字节之前的部分，随后紧跟 count 字节文件内容
+    public static ByteBuffer fileDataHeader(int requestId, long offset, int count, long total) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + FILE_DATA_HEADER);
+        frame.put(FILE_DATA).putInt(FILE_DATA_HEADER + count).putInt(requestId).putLong(offset).putLong(total);
+        return frame.flip();
+    }
+
+    public static ByteBuffer fileError(int requestId, String reason) {
+        byte[] bytes = reason.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 4 + bytes.length);
+        frame.put(FILE_ERROR).putInt(4 + bytes.length).putInt(requestId).put(bytes);
+        return frame.flip();
+    }
+
+    public static ByteBuffer roomMessage(String room, String text) {
+        byte[] name = room.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 2 + name.length + bytes.length);
+        frame.put(ROOM_MESSAGE).putInt(2 + name.length + bytes.length).putShort((short) name.length)
+                .put(name).put(bytes);
+        return frame.flip();
+    }
+
+    public static ByteBuffer chat(long id, String room, String text) {
+        byte[] name = room.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = 10 + name.length + bytes.length;
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        frame.put(CHAT).putInt(length).putLong(id).putShort((short) name.length).put(name).put(bytes);
+        return frame.flip();
+    }
+
+    public static ByteBuffer replay(long sinceId, String room) {
+        byte[] name = room.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 8 + name.length);
+        frame.put(REPLAY).putInt(8 + name.length).putLong(sinceId).put(name);
+        return frame.flip();
+    }
+
+    // 读取 ROOM_MESSAGE、CHAT 负载中的房间名
+    public static String readRoom(ByteBuffer payload) {
+        return readString(payload, payload.getShort() & 0xffff);
+    }
+
+    // 房间名为空字符串表示公共聊天，关键词为空字符串表示不按关键词过滤
+    public static ByteBuffer history(int requestId, long beforeId, int limit, String room, String keyword) {
+        byte[] name = room.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = keyword.getBytes(StandardCharsets.UTF_8);
+        int length = 18 + name.length + bytes.length;
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        frame.put(HISTORY).putInt(length).putInt(requestId).putLong(beforeId).putInt(limit)
+                .putShort((short) name.length).put(name).put(bytes);
+        return frame.flip();
+    }
+
+    public static ByteBuffer historyPage(int requestId, long nextBeforeId, List<HistoryEntry> entries) {
+        List<byte[]> fields = new ArrayList<>(entries.size() * 3);
+        int length = 16;
+        for (HistoryEntry entry : entries) {
+            byte[] timestamp = entry.timestamp.getBytes(StandardCharsets.UTF_8);
+            byte[] address = entry.clientAddress.getBytes(StandardCharsets.UTF_8);
+            byte[] message = entry.message.getBytes(StandardCharsets.UTF_8);
+            fields.add(timestamp);
+            fields.add(address);
+            fields.add(message);
+            length += 16 + timestamp.length + address.length + message.length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        frame.put(HISTORY_PAGE).putInt(length).putInt(requestId).putLong(nextBeforeId).putInt(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            byte[] timestamp = fields.get(i * 3);
+            byte[] address = fields.get(i * 3 + 1);
+            byte[] message = fields.get(i * 3 + 2);
+            frame.putLong(entries.get(i).id)
+                    .putShort((short) timestamp.length).put(timestamp)
+                    .putShort((short) address.length).put(address)
+                    .putInt(message.length).put(message);
+        }
+        return frame.flip();
+    }
+
+    // 读取 HISTORY_PAGE 负载中请求ID和下一页起始id之后的记录
+    public static List<HistoryEntry> readHistoryEntries(ByteBuffer payload) {
+        int count = payload.getInt();
+        List<HistoryEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long id = payload.getLong();
+            String timestamp = readString(payload, payload.getShort() & 0xffff);
+            String address = readString(payload, payload.getShort() & 0xffff);
+            entries.add(new HistoryEntry(id, timestamp, address, readString(payload, payload.getInt())));
+        }
+        return entries;
+    }
+
+    private static String readString(ByteBuffer payload, int length) {
+        if (length > payload.remaining()) {
+            throw new BufferUnderflowException();  // 长度字段超出了负载
+        }
+        String text = new String(payload.array(), payload.arrayOffset() + payload.position(), length,
+                StandardCharsets.UTF_8);
+        payload.position(payload.position() + length);
+        return text;
+    }
+
+    // 复制数据块组成完整的 FILE_CHUNK 帧（需要压缩时使用）
+    public static ByteBuffer fileChunk(int uploadId, long offset, byte[] data, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 12 + length);
+        frame.put(FILE_CHUNK).putInt(12 + length).putInt(uploadId).putLong(offset).put(data, 0, length);
+        return frame.flip();
+    }
+
+    // 直接把数据块写到输出流，不复制数据
+    public static void writeFileChunk(OutputStream out, int uploadId, long offset,
+                                      byte[] data, int off, int len) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 12);
+        header.put(FILE_CHUNK).putInt(12 + len).putInt(uploadId).putLong(offset);
+        out.write(header.array());
+        out.write(data, off, len);
+    }
+
+    // 把负载剩余部分按 UTF-8 解码
+    public static String readText(ByteBuffer payload) {
+        String text = new String(payload.array(), payload.arrayOffset() + payload.position(),
+                payload.remaining(), StandardCharsets.UTF_8);
+        payload.position(payload.limit());
+        return text;
+    }
+}
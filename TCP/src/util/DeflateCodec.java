@@ -0,0 +1,63 @@
+package util;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * JDK 自带的 Deflate 压缩。Deflater/Inflater 占用本地内存，每个连接各持有一对并在每帧之间 reset() 复用，
+ * 不会因为频繁创建而造成本地内存抖动。压缩级别可通过 -Dcompress.level 设置（默认1，速度优先）。
+ */
+public final class DeflateCodec implements FrameCodec {
+    public static final String NAME = "deflate";
+    private static final int LEVEL = Integer.getInteger("compress.level", Deflater.BEST_SPEED);
+
+    private final Deflater deflater = new Deflater(LEVEL);
+    private final Inflater inflater = new Inflater();
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset, int maxLength) {
+        deflater.reset();
+        deflater.setInput(src, offset, length);
+        deflater.finish();
+        int written = 0;
+        while (!deflater.finished() && written < maxLength) {
+            written += deflater.deflate(dst, dstOffset + written, maxLength - written);
+        }
+        return deflater.finished() ? written : -1;
+    }
+
+    @Override
+    public void decompress(byte[] src, int offset, int length, byte[] dst, int dstOffset, int originalLength)
+            throws IOException {
+        inflater.reset();
+        inflater.setInput(src, offset, length);
+        int read = 0;
+        try {
+            while (read < originalLength) {
+                int n = inflater.inflate(dst, dstOffset + read, originalLength - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("解压失败: " + e.getMessage());
+        }
+        if (read != originalLength) {
+            throw new IOException("解压后的长度不符: " + read + " / " + originalLength);
+        }
+    }
+
+    @Override
+    public void close() {
+        deflater.end();
+        inflater.end();
+    }
+}
@@ -0,0 +1,21 @@
+package util;
+
+import java.io.IOException;
+
+/**
+ * 帧负载的压缩算法，握手时按 name() 协商。实例可以持有本地资源（如 Deflater），
+ * 每个连接创建一个并一直复用，连接关闭时调用 close() 释放；实例不要求线程安全，由 FrameCompression 串行调用。
+ */
+public interface FrameCodec {
+    String name();
+
+    // 压缩 src[offset, offset+length) 写入 dst[dstOffset, dstOffset+maxLength)，
+    // 返回压缩后的字节数；放不下（压缩后不够小）时返回 -1
+    int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset, int maxLength);
+
+    // 解压 src[offset, offset+length)，必须恰好得到 originalLength 字节写入 dst[dstOffset, ...)
+    void decompress(byte[] src, int offset, int length, byte[] dst, int dstOffset, int originalLength)
+            throws IOException;
+
+    void close();
+}
@@ -0,0 +1,138 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 一个连接上的帧压缩：握手时客户端在 VERSION_CHECK 中列出支持的算法，服务端选择一个并在回复中给出，
+ * 之后双方对负载不小于阈值的帧按帧独立压缩（共享的广播帧压缩一次即可发给所有同算法的连接）。
+ * 压缩帧的类型字节带 BinaryProtocol.COMPRESSED 标记，负载为 [原始负载长度 int][压缩数据]；
+ * 压缩后没有变小的帧原样发送。文件下载的数据段直接从文件发送，不压缩。
+ * 阈值可通过 -Dcompress.threshold 设置（默认256字节），-Dcompress.enabled=false 关闭压缩协商。
+ */
+public final class FrameCompression {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("compress.enabled", "true"));
+    public static final int THRESHOLD = Integer.getInteger("compress.threshold", 256);
+    public static final int MAX_ORIGINAL_LENGTH = 64 * 1024 * 1024;  // 解压后负载的上限，防止压缩炸弹
+    private static final int MAX_REUSED_BUFFER = 1024 * 1024;  // 超过此大小的解压结果不保留缓冲区
+
+    private static final Map<String, Supplier<FrameCodec>> CODECS = new ConcurrentHashMap<>();
+    // 本身已经压缩过的文件类型，上传时不再压缩
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "jar", "war", "apk",
+            "docx", "xlsx", "pptx", "odt", "png", "jpg", "jpeg", "gif", "webp",
+            "mp3", "aac", "ogg", "flac", "mp4", "mkv", "avi", "mov", "webm", "pdf");
+
+    static {
+        register(DeflateCodec.NAME, DeflateCodec::new);
+    }
+
+    private final FrameCodec codec;
+    private ByteBuffer inflated = ByteBuffer.allocate(8192);  // 解压缓冲区，可复用
+    private boolean closed;  // 由 this 保护
+
+    private FrameCompression(FrameCodec codec) {
+        this.codec = codec;
+    }
+
+    // 注册一种压缩算法，名称不能包含协议分隔符 | 和 ,
+    public static void register(String name, Supplier<FrameCodec> factory) {
+        CODECS.put(name, factory);
+    }
+
+    // 客户端握手时列出的算法，逗号分隔；关闭压缩时为空字符串
+    public static String offered() {
+        return ENABLED ? String.join(",", CODECS.keySet()) : "";
+    }
+
+    // 服务端从客户端列出的算法中选择第一个支持的，都不支持时返回 null
+    public static FrameCompression negotiate(String offered) {
+        if (!ENABLED || offered == null) {
+            return null;
+        }
+        for (String name : offered.split(",")) {
+            FrameCompression compression = create(name.trim());
+            if (compression != null) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    // 按名称创建，未知算法返回 null
+    public static FrameCompression create(String name) {
+        Supplier<FrameCodec> factory = CODECS.get(name);
+        return factory != null ? new FrameCompression(factory.get()) : null;
+    }
+
+    // 按扩展名判断文件是否值得压缩
+    public static boolean isCompressible(String filename) {
+        int dot = filename.lastIndexOf('.');
+        return dot < 0 || !COMPRESSED_EXTENSIONS.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    public String name() {
+        return codec.name();
+    }
+
+    // 压缩一个完整的帧，负载小于阈值、已压缩或压缩后没有变小时返回原帧；可由多个线程调用
+    public ByteBuffer compress(ByteBuffer frame) {
+        int start = frame.position();
+        byte type = frame.get(start);
+        int length = frame.remaining() - BinaryProtocol.HEADER_SIZE;
+        if (length < THRESHOLD || (type & BinaryProtocol.COMPRESSED) != 0) {
+            return frame;
+        }
+        int header = BinaryProtocol.HEADER_SIZE + 4;
+        byte[] out = new byte[header + length - 1];  // 至少要比原负载小一个字节才值得
+        int compressed;
+        synchronized (this) {
+            if (closed) {
+                return frame;  // 连接已关闭，其他线程仍可能在向它投递
+            }
+            compressed = codec.compress(frame.array(), frame.arrayOffset() + start + BinaryProtocol.HEADER_SIZE,
+                    length, out, header, out.length - header);
+        }
+        if (compressed < 0) {
+            return frame;
+        }
+        ByteBuffer result = ByteBuffer.wrap(out, 0, header + compressed);
+        result.put(0, (byte) (type | BinaryProtocol.COMPRESSED)).putInt(1, 4 + compressed).putInt(5, length);
+        return result;
+    }
+
+    // 解压压缩帧的负载，返回的缓冲区在下一次调用前有效；只由连接的读取线程调用
+    public ByteBuffer decompress(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < 4) {
+            throw new IOException("压缩帧不完整");
+        }
+        int length = payload.getInt();
+        if (length < 0 || length > MAX_ORIGINAL_LENGTH) {
+            throw new IOException("压缩帧的原始长度无效: " + length);
+        }
+        ByteBuffer target = inflated;
+        if (length > target.capacity()) {
+            target = ByteBuffer.allocate(length);
+            if (length <= MAX_REUSED_BUFFER) {
+                inflated = target;  // 扩大可复用的缓冲区
+            }
+        }
+        codec.decompress(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(),
+                target.array(), 0, length);
+        return target.clear().limit(length);
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (!closed) {
+                closed = true;
+                codec.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 服务器接受的单条消息的大小上限，按消息类型区分，可通过系统属性调整（字节）：
+ * frame.max_line（普通文本行，默认 64KB）、frame.max_upload_line（整文件上传的 FILE| 行，默认 4MB）、
+ * frame.max_chunk（二进制 FILE_CHUNK 帧的负载，默认 1MB；文本协议的 FILE_CHUNK| 行按其 Base64 长度计）、
+ * frame.max_frame（其他二进制帧的负载，默认 64KB；压缩帧同时检查解压后的长度）。
+ * 超过上限的消息在读到长度（帧头）或行长超限时就被判定，其余字节读出后直接丢弃，不放进缓冲区，
+ * 连接仍停在下一条消息的边界上。每个连接读取一条消息占用的内存因此不超过最大的上限加上读缓冲区。
+ */
+public final class FrameLimits {
+    public static final int MAX_LINE = limit("frame.max_line", 64 * 1024);
+    public static final int MAX_UPLOAD_LINE = limit("frame.max_upload_line", 4 * 1024 * 1024);
+    public static final int MAX_CHUNK = limit("frame.max_chunk", 1024 * 1024);
+    public static final int MAX_FRAME = limit("frame.max_frame", 64 * 1024);
+    // FILE_CHUNK|上传ID|偏移|Base64数据：数据部分为 MAX_CHUNK 的 Base64 长度，另留出前面字段的长度
+    public static final int MAX_CHUNK_LINE = (int) Math.min(Integer.MAX_VALUE - 16, (MAX_CHUNK + 2L) / 3 * 4 + 256);
+
+    private static final byte[] UPLOAD_PREFIX = "FILE|".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNK_PREFIX = "FILE_CHUNK|".getBytes(StandardCharsets.US_ASCII);
+    private static final int MIN_LIMIT = 1024;  // 上限不低于此值，判断行的类型时前缀一定已经读到
+
+    private FrameLimits() {} // Prevents instantiation
+
+    // 以 data[offset, offset+length) 开头的一行允许的最大长度（不含行尾）
+    public static int maxLine(byte[] data, int offset, int length) {
+        if (startsWith(data, offset, length, CHUNK_PREFIX)) {
+            return MAX_CHUNK_LINE;
+        }
+        return startsWith(data, offset, length, UPLOAD_PREFIX) ? MAX_UPLOAD_LINE : MAX_LINE;
+    }
+
+    // 该类型的二进制帧允许的最大负载长度，类型可以带压缩标记
+    public static int maxFrame(int type) {
+        return (byte) (type & ~BinaryProtocol.COMPRESSED) == BinaryProtocol.FILE_CHUNK
+                ? MAX_CHUNK + BinaryProtocol.FILE_CHUNK_HEADER : MAX_FRAME;
+    }
+
+    // 所有类型中最大的上限，用于估算每个连接读取时的内存上限
+    public static int largest() {
+        int line = Math.max(MAX_LINE, Math.max(MAX_UPLOAD_LINE, MAX_CHUNK_LINE));
+        return Math.max(line, Math.max(MAX_FRAME, maxFrame(BinaryProtocol.FILE_CHUNK)));
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int limit(String property, int defaultValue) {
+        return Math.max(MIN_LIMIT, Integer.getInteger(property, defaultValue));
+    }
+}
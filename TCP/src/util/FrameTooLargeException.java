@@ -0,0 +1,28 @@
+package util;
+
+import java.io.IOException;
+
+/**
+ * 消息超过 FrameLimits 的上限，已被整条丢弃。与其他 IOException 不同，抛出时连接仍停在下一条消息的边界上，
+ * 调用方可以回复错误后继续读取。
+ */
+public class FrameTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long length;
+    private final int max;
+
+    public FrameTooLargeException(long length, int max) {
+        super("消息超过长度上限（" + max + "字节），已丢弃");
+        this.length = length;
+        this.max = max;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public int max() {
+        return max;
+    }
+}
@@ -0,0 +1,16 @@
+package util;
+
+// 一条聊天记录，服务端查询结果和客户端收到的历史记录共用
+public final class HistoryEntry {
+    public final long id;               // chat_logs 中的 id，分页时作为下一页的起点
+    public final String timestamp;      // 记录时间（UTC），格式 yyyy-MM-dd HH:mm:ss
+    public final String clientAddress;  // 发送者地址
+    public final String message;
+
+    public HistoryEntry(long id, String timestamp, String clientAddress, String message) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.clientAddress = clientAddress;
+        this.message = message;
+    }
+}
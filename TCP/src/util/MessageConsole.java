@@ -0,0 +1,71 @@
+package util;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务端和客户端共用的消息面板。
+ * 消息保存在固定容量的环形缓冲区中，由固定行高的 JList 显示，只绘制可见的行；
+ * 任意线程调用 append() 只是入队，每个刷新间隔最多向事件调度线程提交一次批量更新。
+ * 可通过系统属性调整：gui.scrollback（保留的行数，默认5000）、gui.refresh_ms（刷新间隔，默认50）。
+ */
+public class MessageConsole extends JScrollPane {
+    private static final int SCROLLBACK = Math.max(100, Integer.getInteger("gui.scrollback", 5000));
+    private static final int REFRESH_MS = Math.max(10, Integer.getInteger("gui.refresh_ms", 50));
+
+    private final RingBufferListModel model = new RingBufferListModel(SCROLLBACK);
+    private final JList<String> list = new JList<>(model);
+    // 等待显示的消息，超过保留行数的部分即使显示也会立即被覆盖，满时丢弃最旧的（留一行给省略提示）
+    private final ArrayBlockingQueue<String> pending = new ArrayBlockingQueue<>(SCROLLBACK - 1);
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Timer timer = new Timer(REFRESH_MS, e -> flush());
+
+    public MessageConsole(Font font) {
+        list.setFont(font);
+        list.setFixedCellHeight(list.getFontMetrics(font).getHeight() + 2);
+        list.setFixedCellWidth(1);  // 不逐行测量宽度，单元格跟随视口宽度，过长的行以省略号结尾
+        list.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);  // 选中后可用 Ctrl+C 复制
+        setViewportView(list);
+        setHorizontalScrollBarPolicy(HORIZONTAL_SCROLLBAR_NEVER);
+        timer.setRepeats(false);
+    }
+
+    // 追加一行消息，可在任意线程调用，不等待界面
+    public void append(String message) {
+        while (!pending.offer(message)) {
+            if (pending.poll() != null) {
+                dropped.increment();
+            }
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            timer.restart();
+        }
+    }
+
+    // 在事件调度线程中把积累的消息一次加入模型；原本停在末尾时保持滚动到最新一行
+    private void flush() {
+        scheduled.set(false);
+        List<String> batch = new ArrayList<>(pending.size() + 1);
+        long skipped = dropped.sumThenReset();
+        if (skipped > 0) {
+            batch.add("（界面刷新不及，省略 " + skipped + " 条消息）");
+        }
+        pending.drainTo(batch);
+        if (batch.isEmpty()) {
+            return;
+        }
+        JScrollBar bar = getVerticalScrollBar();
+        boolean atBottom = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - list.getFixedCellHeight();
+        model.addAll(batch);
+        if (atBottom) {
+            validate();  // 先按新的行数布局，才能滚动到新加入的行
+            list.ensureIndexIsVisible(model.getSize() - 1);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package util;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * 服务端和客户端共用的套接字参数，可通过系统属性调整：
+ * net.tcp_nodelay（默认 true，写出已由应用层合并，不再依赖 Nagle 算法）、
+ * net.send_buffer、net.receive_buffer（内核缓冲区字节数，0 表示使用系统默认值）、
+ * net.write_buffer（每个连接的应用层写缓冲区大小，默认 8192，积累到该大小时立即写出）、
+ * net.keepalive（TCP keepalive，默认 true，不支持应用层心跳的连接断线后由内核最终发现）、
+ * net.backlog（服务端监听套接字的连接等待队列长度，默认1024，实际上限受内核 somaxconn 限制）。
+ */
+public final class NetOptions {
+    public static final boolean TCP_NODELAY = Boolean.parseBoolean(System.getProperty("net.tcp_nodelay", "true"));
+    public static final int SEND_BUFFER = Integer.getInteger("net.send_buffer", 0);
+    public static final int RECEIVE_BUFFER = Integer.getInteger("net.receive_buffer", 0);
+    public static final int WRITE_BUFFER = Math.max(512, Integer.getInteger("net.write_buffer", 8192));
+    public static final boolean KEEP_ALIVE = Boolean.parseBoolean(System.getProperty("net.keepalive", "true"));
+    // JDK 默认的50在大量客户端同时连接时会溢出：内核丢弃握手的最后一步，客户端以为已连接，服务端却从未接受
+    public static final int BACKLOG = Math.max(50, Integer.getInteger("net.backlog", 1024));
+
+    private NetOptions() {} // Prevents instantiation
+
+    // 应用到已建立（或即将建立）的连接
+    public static void apply(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(TCP_NODELAY);
+        socket.setKeepAlive(KEEP_ALIVE);
+        if (SEND_BUFFER > 0) {
+            socket.setSendBufferSize(SEND_BUFFER);
+        }
+        if (RECEIVE_BUFFER > 0) {
+            socket.setReceiveBufferSize(RECEIVE_BUFFER);
+        }
+    }
+
+    // 接收缓冲区超过 64KB 时需要在监听套接字上设置，接受的连接才能协商更大的 TCP 窗口
+    public static void apply(ServerSocket serverSocket) throws SocketException {
+        if (RECEIVE_BUFFER > 0) {
+            serverSocket.setReceiveBufferSize(RECEIVE_BUFFER);
+        }
+    }
+}
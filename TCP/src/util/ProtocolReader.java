@@ -0,0 +1,278 @@
+package util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * 字节级协议读取器：握手前按行读取文本协议，协商成功后在同一个缓冲区上继续读取二进制帧，
+ * 不会像 BufferedReader 那样把后续的二进制数据预读成字符。
+ * 帧负载读入可复用的缓冲区（按需扩大，最大到二进制帧的长度上限），payload() 返回的视图在下一次读取前有效；
+ * 连续的 FILE_CHUNK 帧复用扩大后的缓冲区，读到其他类型的帧时缩回初始大小，空闲的连接不会一直占着大缓冲区。
+ * 服务器端按 FrameLimits 限制单条消息的长度（bounded），超长的行或帧读出后丢弃、不进入缓冲区，
+ * 读取一条消息占用的内存不超过读缓冲区加上对应类型的上限；读取超过读缓冲区大小的行之后，下一次读取时行缓冲区缩回初始大小。
+ * 行的原始字节通过 lineBytes() 取得，Base64 部分可以直接从中解码。
+ */
+public class ProtocolReader {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int LINE_SIZE = 256;
+    // 负载缓冲区扩大到的上限，更长的帧（只有不限制长度时才会读到）临时分配
+    private static final int MAX_PAYLOAD_BUFFER = Math.max(FrameLimits.MAX_FRAME, FrameLimits.maxFrame(BinaryProtocol.FILE_CHUNK));
+
+    private final InputStream in;
+    private final Charset lineCharset;
+    private final boolean bounded;  // 是否按 FrameLimits 限制消息长度
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private byte[] line = new byte[LINE_SIZE];  // 行缓冲区，可复用
+    private int lineLength;  // 最近一次读到的行的字节数（不含行尾）
+    private byte[] payload = new byte[BUFFER_SIZE];  // 帧负载缓冲区，可复用
+    private ByteBuffer payloadView = ByteBuffer.wrap(payload);
+    private ByteBuffer current = payloadView;
+    private int frameLength;  // 当前帧的负载长度
+    private boolean chunkFrame;  // 当前帧是否为 FILE_CHUNK（上传中连续到达，保留扩大后的负载缓冲区）
+
+    public ProtocolReader(InputStream in, Charset lineCharset) {
+        this(in, lineCharset, false);
+    }
+
+    public ProtocolReader(InputStream in, Charset lineCharset, boolean bounded) {
+        this.in = in;
+        this.lineCharset = lineCharset;
+        this.bounded = bounded;
+    }
+
+    // 读取一行文本（不含行尾的 \r\n），流结束时返回 null。
+    // bounded 时超过上限的行读到行尾丢弃后抛出 FrameTooLargeException，之后可以继续读取下一行
+    public String readLine() throws IOException {
+        releaseLine();
+        int length = 0;
+        while (true) {
+            if (pos == limit && !fill()) {
+                return length == 0 ? null : decodeLine(length);
+            }
+            int start = pos;
+            while (pos < limit && buf[pos] != '\n') {
+                pos++;
+            }
+            int count = pos - start;
+            if (length + count > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+            }
+            System.arraycopy(buf, start, line, length, count);
+            length += count;
+            if (bounded) {
+                int max = FrameLimits.maxLine(line, 0, length);
+                if (length > max + 1) {  // 加上可能的 \r 仍超过上限，不必等到行尾
+                    long total = length + discardLine();
+                    throw new FrameTooLargeException(total, max);
+                }
+            }
+            if (pos < limit) {
+                pos++;  // 跳过 \n
+                return decodeLine(length);
+            }
+        }
+    }
+
+    // 读取一个二进制帧，返回帧类型，流结束时返回 -1
+    public int readFrame() throws IOException {
+        int type = readFrameHeader();
+        if (type >= 0) {
+            readPayload();
+        }
+        return type;
+    }
+
+    // 只读取帧头，返回帧类型，负载由调用方随后用 readPayload() 或 readInt()/copyTo() 等读取
+    public int readFrameHeader() throws IOException {
+        if (!chunkFrame) {
+            releasePayload();  // 上一帧不是上传数据块，等待下一帧之前缩回
+        }
+        if (!ensure(BinaryProtocol.HEADER_SIZE)) {
+            if (pos == limit) {
+                return -1;
+            }
+            throw new EOFException("帧头不完整");
+        }
+        int type = buf[pos] & 0xff;  // 最高位是压缩标记，按无符号数返回
+        frameLength = ((buf[pos + 1] & 0xff) << 24) | ((buf[pos + 2] & 0xff) << 16)
+                | ((buf[pos + 3] & 0xff) << 8) | (buf[pos + 4] & 0xff);
+        pos += BinaryProtocol.HEADER_SIZE;
+        chunkFrame = (byte) (type & ~BinaryProtocol.COMPRESSED) == BinaryProtocol.FILE_CHUNK;
+        if (!chunkFrame) {
+            releasePayload();  // 上传结束（FILE_END 等）
+        }
+        if (frameLength < 0) {
+            throw new IOException("帧长度无效: " + frameLength);
+        }
+        if (bounded && frameLength > FrameLimits.maxFrame(type)) {
+            skip(frameLength);  // 按帧头的长度跳过负载，下一次从下一个帧头开始读取
+            throw new FrameTooLargeException(frameLength, FrameLimits.maxFrame(type));
+        }
+        return type;
+    }
+
+    public int frameLength() {
+        return frameLength;
+    }
+
+    // 把当前帧的负载读入可复用的缓冲区
+    public void readPayload() throws IOException {
+        int length = frameLength;
+        if (length > payload.length && length <= MAX_PAYLOAD_BUFFER) {
+            // 上传时扩大后由后续数据块复用，每块不再分配；按倍数扩大，减少逐步变长时的重复分配
+            payload = new byte[Math.min(MAX_PAYLOAD_BUFFER, Math.max(length, payload.length * 2))];
+            payloadView = ByteBuffer.wrap(payload);
+        }
+        byte[] target = length <= payload.length ? payload : new byte[length];
+        int copied = Math.min(length, limit - pos);
+        System.arraycopy(buf, pos, target, 0, copied);
+        pos += copied;
+        int n;
+        while (copied < length && (n = in.read(target, copied, length - copied)) > 0) {
+            copied += n;
+        }
+        if (copied < length) {
+            throw new EOFException("帧数据不完整");
+        }
+        current = target == payload ? payloadView.clear().limit(length) : ByteBuffer.wrap(target);
+    }
+
+    // 最近一次 readLine() 读到的行的原始字节，有效范围为 [0, lineLength())，在下一次读取前有效
+    public byte[] lineBytes() {
+        return line;
+    }
+
+    public int lineLength() {
+        return lineLength;
+    }
+
+    // 缓冲区中是否还有未处理的数据，为 false 时下一次读取可能阻塞
+    public boolean hasBuffered() {
+        return pos < limit;
+    }
+
+    // 最近一次 readFrame() 读到的负载
+    public ByteBuffer payload() {
+        return current;
+    }
+
+    public int readInt() throws IOException {
+        if (!ensure(4)) {
+            throw new EOFException();
+        }
+        int value = ((buf[pos] & 0xff) << 24) | ((buf[pos + 1] & 0xff) << 16)
+                | ((buf[pos + 2] & 0xff) << 8) | (buf[pos + 3] & 0xff);
+        pos += 4;
+        return value;
+    }
+
+    public long readLong() throws IOException {
+        return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+    }
+
+    // 把接下来的 count 个字节写入文件的指定位置，只经过固定大小的读缓冲区
+    public void copyTo(FileChannel target, long position, long count) throws IOException {
+        while (count > 0) {
+            if (pos == limit && !fill()) {
+                throw new EOFException("文件数据不完整");
+            }
+            int n = (int) Math.min(count, limit - pos);
+            ByteBuffer chunk = ByteBuffer.wrap(buf, pos, n);
+            while (chunk.hasRemaining()) {
+                position += target.write(chunk, position);
+            }
+            pos += n;
+            count -= n;
+        }
+    }
+
+    // 跳过接下来的 count 个字节
+    public void skip(long count) throws IOException {
+        while (count > 0) {
+            if (pos == limit && !fill()) {
+                throw new EOFException();
+            }
+            int n = (int) Math.min(count, limit - pos);
+            pos += n;
+            count -= n;
+        }
+    }
+
+    private String decodeLine(int length) throws IOException {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        int max = bounded ? FrameLimits.maxLine(line, 0, length) : Integer.MAX_VALUE;
+        if (length > max) {
+            throw new FrameTooLargeException(length, max);
+        }
+        lineLength = length;
+        return new String(line, 0, length, lineCharset);
+    }
+
+    // 丢弃到行尾（含 \n），返回丢弃的字节数
+    private long discardLine() throws IOException {
+        long count = 0;
+        while (pos < limit || fill()) {
+            int start = pos;
+            while (pos < limit && buf[pos] != '\n') {
+                pos++;
+            }
+            count += pos - start;
+            if (pos < limit) {
+                pos++;
+                break;
+            }
+        }
+        return count;
+    }
+
+    // 读取下一行之前释放为长行扩大的行缓冲区
+    private void releaseLine() {
+        if (line.length > BUFFER_SIZE) {
+            line = new byte[LINE_SIZE];
+        }
+    }
+
+    // 释放为大帧扩大的负载缓冲区，以及不限制长度时临时分配的负载
+    private void releasePayload() {
+        if (payload.length > BUFFER_SIZE) {
+            payload = new byte[BUFFER_SIZE];
+            payloadView = ByteBuffer.wrap(payload);
+        }
+        if (current.capacity() > BUFFER_SIZE) {
+            current = payloadView.clear().limit(0);
+        }
+    }
+
+    private boolean fill() throws IOException {
+        pos = 0;
+        limit = Math.max(0, in.read(buf, 0, buf.length));
+        return limit > 0;
+    }
+
+    // 保证缓冲区中至少有 n 个未读字节
+    private boolean ensure(int n) throws IOException {
+        if (limit - pos >= n) {
+            return true;
+        }
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+        while (limit < n) {
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0) {
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+}
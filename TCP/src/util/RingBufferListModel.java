@@ -0,0 +1,50 @@
+package util;
+
+import javax.swing.AbstractListModel;
+import java.util.List;
+
+/**
+ * 固定容量的环形缓冲区列表模型：超过容量时覆盖最旧的行，内存占用与消息总数无关。
+ * 只能在事件调度线程中访问。
+ */
+final class RingBufferListModel extends AbstractListModel<String> {
+    private final String[] lines;
+    private int head;  // 最旧一行的位置
+    private int size;
+
+    RingBufferListModel(int capacity) {
+        this.lines = new String[capacity];
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return lines[(head + index) % lines.length];
+    }
+
+    // 追加一批行，每批只发出一次删除和一次新增事件；批次超过容量时只保留最后 capacity 行
+    void addAll(List<String> batch) {
+        int skip = Math.max(0, batch.size() - lines.length);
+        int added = batch.size() - skip;
+        if (added == 0) {
+            return;
+        }
+        int removed = Math.max(0, size + added - lines.length);
+        for (int i = skip; i < batch.size(); i++) {
+            lines[(head + size) % lines.length] = batch.get(i);
+            if (size < lines.length) {
+                size++;
+            } else {
+                head = (head + 1) % lines.length;
+            }
+        }
+        if (removed > 0) {
+            fireIntervalRemoved(this, 0, removed - 1);
+        }
+        fireIntervalAdded(this, size - added, size - 1);
+    }
+}